@@ -0,0 +1,14 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Indicate the path of the java compiler to use
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes -cp $DIR/../lib/pg73jdbc3.jar $DIR/../src/*.java
+
+#create the coming MESSAGE partitions and archive the months older than
+#RETENTION_MONTHS (default 12) to $ARCHIVE_DIR; the server does the same every hour
+#Use your database name, port number and login
+java $JAVA_OPTS -Darchive.dir=${ARCHIVE_DIR:-$DIR/../archive} -Darchive.retentionMonths=${RETENTION_MONTHS:-12} \
+   -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar MessageArchiver $DB_NAME $PGPORT $USER
@@ -0,0 +1,14 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Indicate the path of the java compiler to use
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes -cp $DIR/../lib/pg73jdbc3.jar $DIR/../src/*.java
+
+#run the benchmark, it DROPS and recreates every table in $BENCH_DB_NAME
+#Optional first argument: comma separated user counts, e.g. 1000,5000,20000
+#Tune with JAVA_OPTS, e.g. JAVA_OPTS="-Dbench.threads=8 -Dbench.measureMillis=10000"
+java $JAVA_OPTS -Dbench.dataDir=$DIR/../../data -Dbench.sqlDir=$DIR/../../sql/src \
+   -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar MessengerBench $BENCH_DB_NAME $PGPORT $USER $1
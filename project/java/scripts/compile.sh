@@ -5,9 +5,10 @@ export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
 export PATH=$JAVA_HOME/bin:$PATH
 
 # compile the java program
-javac -d $DIR/../classes $DIR/../src/Messenger.java
+javac -d $DIR/../classes -cp $DIR/../lib/pg73jdbc3.jar $DIR/../src/*.java
 
 #run the java program
 #Use your database name, port number and login
-java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Messenger $DB_NAME $PGPORT $USER
+#Pass extra settings through JAVA_OPTS, e.g. JAVA_OPTS="-Dmessenger.poolStats=true"
+java $JAVA_OPTS -Darchive.dir=${ARCHIVE_DIR:-$DIR/../archive} -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Messenger $DB_NAME $PGPORT $USER
 
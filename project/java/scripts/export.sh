@@ -0,0 +1,15 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Indicate the path of the java compiler to use
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes -cp $DIR/../lib/pg73jdbc3.jar $DIR/../src/*.java
+
+#export chat histories to gzip files in $EXPORT_DIR (default ./export), e.g.
+#   export.sh chat 12 17        export.sh user Alice
+#   export.sh range 2024-01-01 2024-02-01
+#Use your database name, port number and login
+java $JAVA_OPTS -Darchive.dir=${ARCHIVE_DIR:-$DIR/../archive} \
+   -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar ChatExporter $DB_NAME $PGPORT $USER ${EXPORT_DIR:-export} "$@"
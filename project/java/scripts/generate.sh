@@ -0,0 +1,13 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Indicate the path of the java compiler to use
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes -cp $DIR/../lib/pg73jdbc3.jar $DIR/../src/*.java
+
+#generate a synthetic data set, e.g. generate.sh /tmp/data10x 10
+#Shape it with JAVA_OPTS, e.g. JAVA_OPTS="-Dgen.seed=7 -Dgen.messagesPerChat=500"
+#Load it with BulkLoader <dbname> <port> <user> <output dir>
+java $JAVA_OPTS -cp $DIR/../classes DataGenerator $1 $2
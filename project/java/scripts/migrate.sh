@@ -0,0 +1,14 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Indicate the path of the java compiler to use
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes -cp $DIR/../lib/pg73jdbc3.jar $DIR/../src/*.java
+
+#migrate a v1 database to schema v2 while Messenger keeps running, writes are
+#blocked only for the final swap; prints table sizes and query latency before
+#and after. The v1 tables are kept as *_v1
+#Use your database name, port number and login
+java $JAVA_OPTS -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar SchemaMigrator $DB_NAME $PGPORT $USER $DIR/../../sql/src
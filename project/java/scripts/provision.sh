@@ -0,0 +1,14 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Indicate the path of the java compiler to use
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes -cp $DIR/../lib/pg73jdbc3.jar $DIR/../src/*.java
+
+#provision user accounts in bulk, the first argument is a count or a login;password;phone file
+#Accounts are created in batches of -Dprovision.batchSize, one transaction each
+#Tune with JAVA_OPTS, e.g. JAVA_OPTS="-Dprovision.batchSize=2000 -Dprovision.threads=8"
+java $JAVA_OPTS \
+   -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar UserProvisioner $DB_NAME $PGPORT $USER $1
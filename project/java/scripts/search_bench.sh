@@ -0,0 +1,16 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Indicate the path of the java compiler to use
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes -cp $DIR/../lib/pg73jdbc3.jar $DIR/../src/*.java
+
+#run the message search benchmark, it DROPS and recreates every table in $BENCH_DB_NAME
+#Optional first argument: comma separated user counts, e.g. 20000
+#MESSAGES_PER_CHAT (default 200) sets the history size; raise it until the
+#seeded MESSAGE table reaches the millions of rows you want to measure
+java $JAVA_OPTS -Dbench.ops=SearchMessages -Dbench.messagesPerChat=${MESSAGES_PER_CHAT:-200} \
+   -Dbench.dataDir=$DIR/../../data -Dbench.sqlDir=$DIR/../../sql/src \
+   -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar MessengerBench $BENCH_DB_NAME $PGPORT $USER ${1:-20000}
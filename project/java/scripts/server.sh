@@ -0,0 +1,21 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Indicate the path of the java compiler to use
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes -cp $DIR/../lib/pg73jdbc3.jar $DIR/../src/*.java
+
+#run the Messenger server, clients connect to localhost:5166 (-Dserver.port)
+#Requests are tab separated lines, see MessengerServer.java for the protocol
+#Tune with JAVA_OPTS, e.g. JAVA_OPTS="-Dserver.maxSessions=5000 -Dmessenger.poolSize=32"
+#Statements slower than SLOW_MILLIS go to logs/slow_queries.<n>.log, some with their EXPLAIN ANALYZE
+#Chat lists, message pages and search are read from the replicas in REPLICAS (host:port,...),
+#see sql/scripts/create_replica.sh
+#Chats live on the databases in SHARDS (db,host:port/db,...), see sql/scripts/create_shards.sh
+mkdir -p $DIR/../logs
+java $JAVA_OPTS -Darchive.dir=${ARCHIVE_DIR:-$DIR/../archive} \
+   -Dslowlog.thresholdMillis=${SLOW_MILLIS:-200} -Dslowlog.file=$DIR/../logs/slow_queries.%g.log \
+   -Dmessenger.replicas=$REPLICAS -Dmessenger.shards=$SHARDS \
+   -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar MessengerServer $DB_NAME $PGPORT $USER
@@ -0,0 +1,15 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# Indicate the path of the java compiler to use
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes -cp $DIR/../lib/pg73jdbc3.jar $DIR/../src/*.java
+
+#run the workload driver, it changes data in $DB_NAME: use a test database
+#Simulated users, duration and operation mix are set with -Dworkload.<setting>
+#Tune with JAVA_OPTS, e.g. JAVA_OPTS="-Dworkload.users=500 -Dworkload.thinkMillis=100"
+#Run once per SHARDS setting (see sql/scripts/create_shards.sh) to see how writes scale with the shards
+java $JAVA_OPTS -Dmessenger.shards=$SHARDS \
+   -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar WorkloadDriver $DB_NAME $PGPORT $USER
@@ -0,0 +1,160 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+
+/**
+ * Background worker that deletes the accounts queued in PURGE_QUEUE.  The
+ * messages of a queued account are deleted purge.chunkRows (1000) at a
+ * time, each chunk in its own short transaction with purge.pauseMillis (50)
+ * between chunks, so row locks on MESSAGE are held briefly and live
+ * traffic interleaves with the purge.  What remains is then deleted
+ * together with the queue entry in one transaction.  With messenger.shards
+ * every shard is emptied in parallel, each in its own chunks.
+ *
+ * The queue is a table, so accounts queued before a shutdown are picked up
+ * by the next purger.  When the queue is empty the worker waits for a new
+ * entry or purge.pollMillis (60000).  An account whose purge fails is
+ * retried after purge.retryMillis (60000), twice as long after every
+ * further failure up to purge.maxRetryMillis (3600000), and the accounts
+ * queued after it are purged meanwhile.
+ *
+ */
+public class AccountPurger implements Runnable {
+
+   private final int _chunkRows = Integer.getInteger ("purge.chunkRows", 1000);
+   private final long _pauseMillis = Long.getLong ("purge.pauseMillis", 50L);
+   private final long _pollMillis = Long.getLong ("purge.pollMillis", 60000L);
+   private final long _retryMillis = Long.getLong ("purge.retryMillis", 60000L);
+   private final long _maxRetryMillis = Long.getLong ("purge.maxRetryMillis", 3600000L);
+
+   private final Messenger _esql;
+   private final Object _signal = new Object ();
+   private volatile boolean _running = true;
+   private Thread _thread;
+
+   public AccountPurger (Messenger esql) {
+      this._esql = esql;
+   }//end AccountPurger
+
+   /**
+    * Starts the worker thread
+    */
+   public synchronized void start () {
+      if (this._thread != null)
+         return;
+      this._thread = new Thread (this, "account-purger");
+      this._thread.setDaemon (true);
+      this._thread.start ();
+   }//end start
+
+   /**
+    * Tells the worker that an account was queued
+    */
+   public void wake () {
+      synchronized (this._signal) {
+         this._signal.notifyAll ();
+      }//end synchronized
+   }//end wake
+
+   /**
+    * Stops the worker after the chunk it is deleting
+    */
+   public void stop () {
+      this._running = false;
+      wake ();
+      Thread t;
+      synchronized (this) {
+         t = this._thread;
+      }//end synchronized
+      if (t == null)
+         return;
+      try{
+         t.join (5000);
+      }catch (InterruptedException e){
+         Thread.currentThread ().interrupt ();
+      }//end try
+   }//end stop
+
+   private void pause (long millis) {
+      synchronized (this._signal) {
+         try{
+            if (this._running)
+               this._signal.wait (millis);
+         }catch (InterruptedException e){
+            this._running = false;
+         }//end try
+      }//end synchronized
+   }//end pause
+
+   public void run () {
+      while (this._running) {
+         String login;
+         try{
+            login = this._esql.queryOne (Queries.NEXT_PURGE, RowMapper.STRING);
+         }catch (SQLException e){
+            System.err.println ("Account purge: " + e.getMessage ());
+            pause (this._pollMillis);
+            continue;
+         }//end try
+         if (login == null) {
+            pause (this._pollMillis);
+            continue;
+         }//end if
+         OperationStats.Scope op = this._esql.stats ().begin ("AccountPurger");
+         try{
+            purge (login);
+         }catch (SQLException e){
+            // the queue entry stays and is retried later, the next one goes first
+            op.fail ();
+            System.err.println ("Account purge of " + login + ": " + e.getMessage ());
+            try{
+               this._esql.executeUpdate (Queries.RETRY_PURGE, this._retryMillis, this._maxRetryMillis, login);
+            }catch (SQLException retry){
+               System.err.println ("Account purge: " + retry.getMessage ());
+               pause (this._pollMillis);
+            }//end try
+         }finally{
+            op.end ();
+         }//end try
+      }//end while
+   }//end run
+
+   /**
+    * Deletes the messages of one account chunk by chunk and then the
+    * account itself
+    */
+   private void purge (final String login) throws SQLException {
+      // the messages of every shard, the shards in parallel
+      this._esql.forEachShard (new ShardRouter.Task<Void> () {
+         public Void run (int shard) throws SQLException {
+            for (String chunk : new String[] { Queries.PURGE_USER_MESSAGES, Queries.PURGE_INIT_CHAT_MESSAGES }) {
+               while (_running && _esql.executeUpdate (chunk, login, _chunkRows) > 0)
+                  pause (_pauseMillis);
+            }//end for
+            return null;
+         }
+      });
+      if (!this._running)
+         return;
+      this._esql.begin ();
+      try{
+         this._esql.purgeAccount (login);
+         this._esql.executeUpdate (Queries.DEQUEUE_PURGE, login);
+         this._esql.commit ();
+      }finally{
+         this._esql.rollback ();
+      }//end try
+   }//end purge
+
+}//end AccountPurger
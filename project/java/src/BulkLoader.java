@@ -0,0 +1,491 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parallel bulk loader for the ';' delimited files in project/data.  It
+ * replaces load_data.sql, whose server-side COPY needs the files on the
+ * database host and loads everything in one serial transaction.
+ *
+ * The loader expects the bare tables from create_tables.sql.  Every file
+ * present is read by its own thread and cut into chunks; a pool of insert
+ * workers writes the chunks of all tables concurrently, each chunk in its own
+ * short transaction.  Keys, foreign keys and indexes are created afterwards
+ * from create_constraints.sql and create_indexes.sql, and the serial
+ * sequences are moved past the loaded ids.
+ *
+ * The bundled driver (pg73jdbc3) predates the client-side COPY API, so the
+ * rows are sent as multi-row INSERT statements instead.
+ *
+ */
+public class BulkLoader {
+
+   /**
+    * One table and the file it is loaded from.  A column type of "int"
+    * binds the value as an integer and "user" binds the user_id of a login,
+    * any other type is cast on the server.  A derived column is computed on the server by derivedExpr from the
+    * field of column derivedFrom, since the triggers that maintain it are
+    * only created after the load.
+    */
+   static class TableSpec {
+      final String table;
+      final String file;
+      final String[] columns;
+      final String[] types;
+      final String sequence;
+      final String keyColumn;
+      final String derivedColumn;
+      final String derivedExpr;
+      final int derivedFrom;
+      final String derivedType;
+
+      TableSpec (String table, String file, String[] columns, String[] types, String sequence, String keyColumn) {
+         this (table, file, columns, types, sequence, keyColumn, null, null, -1, null);
+      }
+
+      TableSpec (String table, String file, String[] columns, String[] types, String sequence, String keyColumn,
+                 String derivedColumn, String derivedExpr, int derivedFrom, String derivedType) {
+         this.table = table;
+         this.file = file;
+         this.columns = columns;
+         this.types = types;
+         this.sequence = sequence;
+         this.keyColumn = keyColumn;
+         this.derivedColumn = derivedColumn;
+         this.derivedExpr = derivedExpr;
+         this.derivedFrom = derivedFrom;
+         this.derivedType = derivedType;
+      }
+
+      /**
+       * @return the number of values bound per row
+       */
+      int width () {
+         return this.columns.length + (this.derivedColumn == null ? 0 : 1);
+      }
+   }//end TableSpec
+
+   // the layout of the files in project/data, in the order of the columns
+   static final TableSpec[] TABLES = new TableSpec[] {
+      new TableSpec ("USER_LIST", "usr_list.csv",
+         new String[] { "list_id", "list_type" },
+         new String[] { "int", "text" }, "user_list_list_id_seq", "list_id"),
+      new TableSpec ("USR", "usr.csv",
+         new String[] { "login", "phoneNum", "password", "status", "block_list", "contact_list" },
+         new String[] { "text", "text", "text", "text", "int", "int" }, "usr_user_id_seq", "user_id",
+         "user_id", "?", 0, "user"),
+      new TableSpec ("USER_LIST_CONTAINS", "usr_list_contains.csv",
+         new String[] { "list_id", "member_id" },
+         new String[] { "int", "user" }, null, null),
+      new TableSpec ("CHAT", "chat.csv",
+         new String[] { "chat_id", "chat_type", "init_sender_id" },
+         new String[] { "int", "text", "user" }, "chat_chat_id_seq", "chat_id"),
+      new TableSpec ("CHAT_LIST", "chat_list.csv",
+         new String[] { "chat_id", "member_id" },
+         new String[] { "int", "user" }, null, null),
+      new TableSpec ("MESSAGE", "message.csv",
+         new String[] { "msg_id", "msg_text", "msg_timestamp", "sender_id", "chat_id" },
+         new String[] { "int", "text", "timestamp", "user", "int" }, "message_msg_id_seq", "msg_id",
+         "msg_tsv", "to_tsvector('english', ?)", 1, "text"),
+   };
+
+   /**
+    * A run of rows of one table, inserted and committed as a unit
+    */
+   static class Chunk {
+      final TableSpec spec;
+      final List<String[]> rows;
+
+      Chunk (TableSpec spec, List<String[]> rows) {
+         this.spec = spec;
+         this.rows = rows;
+      }
+   }//end Chunk
+
+   // marks the end of the input for an insert worker
+   private static final Chunk END = new Chunk (null, null);
+
+   private final String _url;
+   private final String _user;
+   private final File _dataDir;
+   private final File _sqlDir;
+
+   // settings, all overridable with -Dload.<name>
+   private final int _workers = Integer.getInteger ("load.threads", 6);
+   private final int _rowsPerStatement = Integer.getInteger ("load.rowsPerStatement", 500);
+   private final int _rowsPerChunk = Integer.getInteger ("load.rowsPerChunk", 10000);
+
+   // the first error of any reader or writer, the others stop on it
+   private volatile Exception _failure = null;
+
+   // the user_id given to every login of usr.csv
+   private final HashMap<String, Integer> _userIds = new HashMap<String, Integer>();
+
+   // rows loaded per table
+   private final ConcurrentHashMap<String, AtomicLong> _loaded = new ConcurrentHashMap<String, AtomicLong>();
+
+   public BulkLoader (String dbname, String dbport, String user, File dataDir, File sqlDir) {
+      this._url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+      this._user = user;
+      this._dataDir = dataDir;
+      this._sqlDir = sqlDir;
+   }//end BulkLoader
+
+   /**
+    * Builds "INSERT INTO t(cols) VALUES (...), (...)" for the given number of rows
+    */
+   private static String insertSql (TableSpec spec, int rows) {
+      StringBuilder sql = new StringBuilder ("INSERT INTO ").append (spec.table).append ('(');
+      StringBuilder row = new StringBuilder ("(");
+      for (int c = 0; c < spec.columns.length; ++c) {
+         if (c > 0) {
+            sql.append (", ");
+            row.append (", ");
+         }//end if
+         sql.append (spec.columns[c]);
+         String type = spec.types[c];
+         row.append (type.equals ("int") || type.equals ("text") || type.equals ("user") ? "?" : "?::" + type);
+      }//end for
+      if (spec.derivedColumn != null) {
+         sql.append (", ").append (spec.derivedColumn);
+         row.append (", ").append (spec.derivedExpr);
+      }//end if
+      row.append (')');
+      sql.append (") VALUES ");
+      for (int r = 0; r < rows; ++r)
+         sql.append (r > 0 ? ", " : "").append (row);
+      return sql.toString ();
+   }//end insertSql
+
+   /**
+    * Converts one field the way COPY text format would: \N is NULL, an
+    * empty integer is NULL as well.  A "user" field is a login in the file
+    * and its user_id in the table.
+    */
+   private Object value (String field, String type) {
+      if (field == null || field.equals ("\\N"))
+         return null;
+      if (type.equals ("int")) {
+         String f = field.trim ();
+         return f.length () == 0 ? null : Integer.valueOf (f);
+      }//end if
+      if (type.equals ("user")) {
+         String f = field.trim ();
+         if (f.length () == 0)
+            return null;
+         Integer id = this._userIds.get (f);
+         if (id == null)
+            throw new IllegalArgumentException ("No such user: " + f);
+         return id;
+      }//end if
+      return field;
+   }//end value
+
+   /**
+    * Numbers the users in the order of usr.csv, before any table is read,
+    * so every file can refer to them by user_id however the loads interleave.
+    */
+   private void readUserIds () throws IOException {
+      this._userIds.clear ();
+      File file = new File (this._dataDir, "usr.csv");
+      if (!file.exists ())
+         return;
+      BufferedReader reader = new BufferedReader (new FileReader (file), 1 << 16);
+      try{
+         String line;
+         while ((line = reader.readLine ()) != null) {
+            if (line.length () == 0)
+               continue;
+            String login = line.split (";", -1)[0].trim ();
+            if (!this._userIds.containsKey (login))
+               this._userIds.put (login, Integer.valueOf (this._userIds.size () + 1));
+         }//end while
+      }finally{
+         reader.close ();
+      }//end try
+   }//end readUserIds
+
+   /**
+    * Reads one file and hands its rows to the insert workers chunk by chunk.
+    */
+   private void read (TableSpec spec, File file, BlockingQueue<Chunk> queue) throws Exception {
+      BufferedReader reader = new BufferedReader (new FileReader (file), 1 << 16);
+      try{
+         List<String[]> rows = new ArrayList<String[]>(this._rowsPerChunk);
+         String line;
+         while ((line = reader.readLine ()) != null) {
+            if (line.length () == 0)
+               continue;
+            String[] fields = line.split (";", -1);
+            if (fields.length < spec.columns.length)
+               throw new IllegalArgumentException (file.getName () + ": expected " + spec.columns.length +
+                  " fields but got " + fields.length + ": " + line);
+            rows.add (fields);
+            if (rows.size () == this._rowsPerChunk) {
+               enqueue (queue, new Chunk (spec, rows));
+               rows = new ArrayList<String[]>(this._rowsPerChunk);
+            }//end if
+         }//end while
+         if (!rows.isEmpty ())
+            enqueue (queue, new Chunk (spec, rows));
+      }finally{
+         reader.close ();
+      }//end try
+   }//end read
+
+   /**
+    * Hands a chunk to the writers, giving up if any reader or writer failed
+    * so a dead writer cannot leave the others blocked on a full queue.
+    */
+   private void enqueue (BlockingQueue<Chunk> queue, Chunk chunk) throws Exception {
+      while (!queue.offer (chunk, 1, TimeUnit.SECONDS)) {
+         if (this._failure != null)
+            throw new SQLException ("Load aborted: " + this._failure.getMessage ());
+      }//end while
+   }//end enqueue
+
+   /**
+    * Inserts chunks until the end marker arrives, one transaction per chunk.
+    */
+   private void insert (BlockingQueue<Chunk> queue) throws Exception {
+      Connection conn = DriverManager.getConnection (this._url, this._user, "");
+      try{
+         conn.setAutoCommit (false);
+         // the full-size statement of every table is reused for all its chunks
+         HashMap<String, PreparedStatement> full = new HashMap<String, PreparedStatement>();
+         while (true) {
+            Chunk chunk = queue.take ();
+            if (chunk == END)
+               break;
+            TableSpec spec = chunk.spec;
+            int n = chunk.rows.size ();
+            int r = 0;
+            while (r < n) {
+               int rows = Math.min (this._rowsPerStatement, n - r);
+               PreparedStatement stmt;
+               if (rows == this._rowsPerStatement) {
+                  stmt = full.get (spec.table);
+                  if (stmt == null) {
+                     stmt = conn.prepareStatement (insertSql (spec, rows));
+                     full.put (spec.table, stmt);
+                  }//end if
+               }else{
+                  stmt = conn.prepareStatement (insertSql (spec, rows));
+               }//end if
+               Object[] params = new Object[rows * spec.width ()];
+               int p = 0;
+               for (int i = 0; i < rows; ++i) {
+                  String[] fields = chunk.rows.get (r + i);
+                  for (int c = 0; c < spec.columns.length; ++c)
+                     params[p++] = value (fields[c], spec.types[c]);
+                  if (spec.derivedColumn != null)
+                     params[p++] = value (fields[spec.derivedFrom], spec.derivedType);
+               }//end for
+               Messenger.bind (stmt, params);
+               stmt.executeUpdate ();
+               if (rows != this._rowsPerStatement)
+                  stmt.close ();
+               r += rows;
+            }//end while
+            conn.commit ();
+            this._loaded.get (spec.table).addAndGet (n);
+         }//end while
+         for (PreparedStatement stmt : full.values ())
+            stmt.close ();
+      }catch (Exception e){
+         this._failure = e;
+         try{
+            conn.rollback ();
+         }catch (SQLException ignored){
+            // ignored.
+         }//end try
+         throw e;
+      }finally{
+         conn.close ();
+      }//end try
+   }//end insert
+
+   /**
+    * Runs the statements of a script concurrently, e.g. independent index builds
+    */
+   private void runParallel (final File script) throws Exception {
+      ExecutorService pool = Executors.newFixedThreadPool (this._workers);
+      try{
+         List<Future<?>> done = new ArrayList<Future<?>>();
+         for (final String sql : SqlScript.parse (script)) {
+            done.add (pool.submit (new Callable<Void> () {
+               public Void call () throws Exception {
+                  Connection conn = DriverManager.getConnection (_url, _user, "");
+                  try{
+                     Statement stmt = conn.createStatement ();
+                     stmt.execute (sql);
+                     stmt.close ();
+                  }catch (SQLException e){
+                     // fails the load through f.get () below
+                     System.err.println (script.getName () + ": " + e.getMessage ());
+                     throw e;
+                  }finally{
+                     conn.close ();
+                  }//end try
+                  return null;
+               }
+            }));
+         }//end for
+         for (Future<?> f : done)
+            f.get ();
+      }finally{
+         pool.shutdown ();
+      }//end try
+   }//end runParallel
+
+   /**
+    * Loads every file present, then builds constraints and indexes and
+    * resets the sequences.
+    */
+   public void load () throws Exception {
+      long start = System.nanoTime ();
+      readUserIds ();
+      final BlockingQueue<Chunk> queue = new ArrayBlockingQueue<Chunk>(this._workers * 2);
+      ExecutorService pool = Executors.newFixedThreadPool (TABLES.length + this._workers);
+      List<Future<?>> readers = new ArrayList<Future<?>>();
+      List<Future<?>> writers = new ArrayList<Future<?>>();
+      try{
+         for (int w = 0; w < this._workers; ++w) {
+            writers.add (pool.submit (new Callable<Void> () {
+               public Void call () throws Exception {
+                  insert (queue);
+                  return null;
+               }
+            }));
+         }//end for
+         for (final TableSpec spec : TABLES) {
+            final File file = new File (this._dataDir, spec.file);
+            this._loaded.put (spec.table, new AtomicLong ());
+            if (!file.exists ()) {
+               System.out.println ("Skipping " + spec.table + ": " + file + " not found");
+               continue;
+            }//end if
+            readers.add (pool.submit (new Callable<Void> () {
+               public Void call () throws Exception {
+                  try{
+                     read (spec, file, queue);
+                  }catch (Exception e){
+                     if (_failure == null)
+                        _failure = e;
+                     throw e;
+                  }//end try
+                  return null;
+               }
+            }));
+         }//end for
+         try{
+            for (Future<?> f : readers)
+               f.get ();
+         }finally{
+            // stop the writers even if a reader failed
+            for (int w = 0; w < this._workers && this._failure == null; ++w)
+               enqueue (queue, END);
+         }//end try
+         for (Future<?> f : writers)
+            f.get ();
+      }finally{
+         pool.shutdownNow ();
+         pool.awaitTermination (10, TimeUnit.SECONDS);
+      }//end try
+      long loaded = System.nanoTime ();
+
+      long total = 0;
+      double seconds = (loaded - start) / 1e9;
+      for (TableSpec spec : TABLES) {
+         long rows = this._loaded.get (spec.table).get ();
+         total += rows;
+         System.out.println (String.format ("  %-20s %10d rows", spec.table, rows));
+      }//end for
+      System.out.println (String.format ("Loaded %d rows in %.1fs (%.0f rows/sec)", total, seconds, total / seconds));
+
+      // keys and foreign keys depend on each other, indexes do not
+      Connection conn = DriverManager.getConnection (this._url, this._user, "");
+      try{
+         // the messages were loaded into the default partition, before the
+         // keys exist they are cheap to move into their month partitions
+         int months = MessageArchiver.createPartitions (conn, "MESSAGE", null);
+         long partitioned = System.nanoTime ();
+         System.out.println (String.format ("%d MESSAGE partitions created in %.1fs", months, (partitioned - loaded) / 1e9));
+         SqlScript.run (conn, new File (this._sqlDir, "create_constraints.sql"));
+         long constrained = System.nanoTime ();
+         System.out.println (String.format ("Constraints created in %.1fs", (constrained - partitioned) / 1e9));
+         runParallel (new File (this._sqlDir, "create_indexes.sql"));
+         System.out.println (String.format ("Indexes created in %.1fs", (System.nanoTime () - constrained) / 1e9));
+         // after the load, so the loaded rows do not notify anybody
+         SqlScript.run (conn, new File (this._sqlDir, "create_triggers.sql"));
+
+         Statement stmt = conn.createStatement ();
+         for (TableSpec spec : TABLES) {
+            if (spec.sequence != null)
+               stmt.execute (String.format ("SELECT setval('%s', (SELECT COALESCE(MAX(%s), 0) + 1 FROM %s), false)",
+                  spec.sequence, spec.keyColumn, spec.table));
+         }//end for
+         stmt.execute ("ANALYZE");
+         stmt.close ();
+      }finally{
+         conn.close ();
+      }//end try
+      System.out.println (String.format ("Done in %.1fs", (System.nanoTime () - start) / 1e9));
+   }//end load
+
+   /**
+    * The main execution method
+    *
+    * @param args the command line arguments <dbname> <port> <user> <data dir>
+    */
+   public static void main (String[] args) {
+      if (args.length != 4) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] [-Dload.sqlDir=<sql dir>] " +
+            BulkLoader.class.getName () +
+            " <dbname> <port> <user> <data dir>");
+         System.exit (2);
+      }//end if
+      try{
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         File sqlDir = new File (System.getProperty ("load.sqlDir", "../../sql/src"));
+         new BulkLoader (args[0], args[1], args[2], new File (args[3]), sqlDir).load ();
+      }catch (Exception e){
+         System.err.println ("Error - bulk load failed: " + e.getMessage ());
+         System.exit (1);
+      }//end try
+   }//end main
+
+}//end BulkLoader
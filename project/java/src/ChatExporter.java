@@ -0,0 +1,243 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports chat histories to gzip files for compliance requests: the chats
+ * given by id, every chat of a user, or every chat's messages in a time
+ * range.  Each chat goes to its own chat_<chat_id>.tsv.gz in the output
+ * directory, export.threads (4) chats at a time.
+ *
+ * The rows are written in COPY text format (sender, msg_id, msg_timestamp,
+ * msg_text), archived months included.  The bundled driver (pg73jdbc3)
+ * predates the client-side COPY API, so they are streamed through a cursor
+ * instead (see Messenger.stream): a chat of any size takes the memory of one
+ * fetch plus the export.bufferBytes (65536) of the file buffers.
+ *
+ */
+public class ChatExporter {
+
+   /**
+    * Counts the bytes written through it
+    */
+   static class CountingOutputStream extends FilterOutputStream {
+      private final AtomicLong _count;
+
+      CountingOutputStream (OutputStream out, AtomicLong count) {
+         super (out);
+         this._count = count;
+      }
+
+      public void write (int b) throws IOException {
+         this.out.write (b);
+         this._count.incrementAndGet ();
+      }
+
+      public void write (byte[] b, int off, int len) throws IOException {
+         this.out.write (b, off, len);
+         this._count.addAndGet (len);
+      }
+   }//end CountingOutputStream
+
+   private final int _threads = Integer.getInteger ("export.threads", 4);
+   private final int _bufferBytes = Integer.getInteger ("export.bufferBytes", 65536);
+
+   private final Messenger _esql;
+   private final File _dir;
+
+   // the bytes written before and after compression, and the rows
+   private final AtomicLong _raw = new AtomicLong ();
+   private final AtomicLong _compressed = new AtomicLong ();
+   private final AtomicLong _rows = new AtomicLong ();
+
+   public ChatExporter (Messenger esql, File dir) {
+      this._esql = esql;
+      this._dir = dir;
+   }//end ChatExporter
+
+   /**
+    * Appends a value the way COPY text format does: \N for NULL and the
+    * delimiters and backslash escaped
+    */
+   static void appendField (StringBuilder line, String value) {
+      if (value == null) {
+         line.append ("\\N");
+         return;
+      }//end if
+      for (int i = 0; i < value.length (); ++i) {
+         char c = value.charAt (i);
+         switch (c) {
+            case '\\': line.append ("\\\\"); break;
+            case '\t': line.append ("\\t"); break;
+            case '\n': line.append ("\\n"); break;
+            case '\r': line.append ("\\r"); break;
+            default: line.append (c);
+         }//end switch
+      }//end for
+   }//end appendField
+
+   /**
+    * Exports one chat, messages from from (inclusive) to to (exclusive)
+    *
+    * @return the number of messages written; a chat without any leaves no file
+    */
+   public int exportChat (int chat_id, Timestamp from, Timestamp to) throws SQLException, IOException {
+      final File file = new File (this._dir, "chat_" + chat_id + ".tsv.gz");
+      FileOutputStream fos = new FileOutputStream (file);
+      int rows;
+      boolean done = false;
+      try{
+         final Writer out = new BufferedWriter (new OutputStreamWriter (new CountingOutputStream (
+            new GZIPOutputStream (new CountingOutputStream (fos, this._compressed), this._bufferBytes), this._raw), "UTF-8"),
+            this._bufferBytes);
+         final StringBuilder line = new StringBuilder ();
+         RowHandler<ChatMessage> writer = new RowHandler<ChatMessage> () {
+            public void handle (ChatMessage m) throws SQLException {
+               line.setLength (0);
+               appendField (line, m.getSender ());
+               line.append ('\t').append (m.getMsgId ()).append ('\t');
+               appendField (line, m.getTimestamp ().toString ());
+               line.append ('\t');
+               appendField (line, m.getText ());
+               line.append ('\n');
+               try{
+                  out.write (line.toString ());
+               }catch (IOException e){
+                  throw new SQLException ("Export to " + file + ": " + e.getMessage ());
+               }//end try
+            }
+         };
+         rows = from == null && to == null
+            ? this._esql.streamChatHistory (chat_id, writer)
+            : this._esql.streamChatHistory (chat_id, from, to, writer);
+         out.close ();
+         done = true;
+      }finally{
+         if (!done)
+            fos.close ();
+      }//end try
+      if (rows == 0)
+         file.delete ();
+      this._rows.addAndGet (rows);
+      return rows;
+   }//end exportChat
+
+   /**
+    * Exports the chats in parallel and prints the throughput
+    *
+    * @return the number of chats that had messages to export
+    */
+   public int export (List<Integer> chats, final Timestamp from, final Timestamp to) throws Exception {
+      this._dir.mkdirs ();
+      long start = System.nanoTime ();
+      ExecutorService pool = Executors.newFixedThreadPool (this._threads);
+      int exported = 0;
+      try{
+         List<Future<Integer>> done = new ArrayList<Future<Integer>>();
+         for (final Integer chat : chats) {
+            done.add (pool.submit (new Callable<Integer> () {
+               public Integer call () throws Exception {
+                  return exportChat (chat.intValue (), from, to);
+               }
+            }));
+         }//end for
+         for (Future<Integer> f : done) {
+            if (f.get ().intValue () > 0)
+               ++exported;
+         }//end for
+      }finally{
+         pool.shutdownNow ();
+      }//end try
+
+      double seconds = (System.nanoTime () - start) / 1e9;
+      double mb = this._raw.get () / 1048576.0;
+      System.out.println (String.format (
+         "Exported %d messages of %d chats to %s: %.1f MB (%.1f MB gzip) in %.1fs, %.1f MB/sec",
+         this._rows.get (), exported, this._dir, mb, this._compressed.get () / 1048576.0, seconds, mb / seconds));
+      return exported;
+   }//end export
+
+   /**
+    * Parses "yyyy-mm-dd [hh:mm:ss]"
+    */
+   private static Timestamp parseTime (String s) {
+      return Timestamp.valueOf (s.length () == 10 ? s + " 00:00:00" : s);
+   }//end parseTime
+
+   /**
+    * The main execution method
+    *
+    * @param args the command line arguments <dbname> <port> <user> <out dir>
+    *             chat <chat_id>... | user <login> | range <from> <to>
+    */
+   public static void main (String[] args) {
+      if (args.length < 6 || !(args[4].equals ("chat") || args[4].equals ("user") || (args[4].equals ("range") && args.length == 7))) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] [-Dexport.threads=4] " +
+            ChatExporter.class.getName () +
+            " <dbname> <port> <user> <out dir> chat <chat_id>... | user <login> | range <from> <to>");
+         System.exit (2);
+      }//end if
+      // every export thread streams through its own pooled connection
+      if (System.getProperty ("messenger.poolSize") == null)
+         System.setProperty ("messenger.poolSize", Integer.toString (Integer.getInteger ("export.threads", 4) + 1));
+      Messenger esql = null;
+      int status = 0;
+      try{
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         esql = new Messenger (args[0], args[1], args[2], "");
+         List<Integer> chats = new ArrayList<Integer>();
+         Timestamp from = null;
+         Timestamp to = null;
+         if (args[4].equals ("chat")) {
+            for (int i = 5; i < args.length; ++i)
+               chats.add (Integer.valueOf (args[i]));
+         }else if (args[4].equals ("user")) {
+            for (List<String> row : esql.listChats (args[5]))
+               chats.add (Integer.valueOf (row.get (0).trim ()));
+         }else{
+            from = parseTime (args[5]);
+            to = parseTime (args[6]);
+            chats = esql.allChats ();
+         }//end if
+         new ChatExporter (esql, new File (args[3])).export (chats, from, to);
+      }catch (Exception e){
+         System.err.println ("Error - export failed: " + e.getMessage ());
+         status = 1;
+      }finally{
+         if (esql != null)
+            esql.cleanup ();
+      }//end try
+      System.exit (status);
+   }//end main
+
+}//end ChatExporter
@@ -0,0 +1,385 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * Delivers new chat messages as they are written instead of having clients
+ * reload whole chats.  The triggers in create_triggers.sql NOTIFY channel
+ * chat_&lt;chat_id&gt; for every new message and chat_&lt;chat_id&gt;_changed
+ * for every edited or deleted one.  This listener keeps one dedicated
+ * connection that LISTENs to the channels of the chats someone subscribed
+ * to; when a chat is notified it fetches only the messages with a msg_id
+ * above the last one its subscribers have seen, once for all of them.
+ *
+ * A msg_id is taken from the sequence when the row is inserted, not when
+ * it commits, so two writers to one chat (two processes, the writes
+ * outside group commit, a window retried message by message) can commit a
+ * lower msg_id after a higher one was delivered.  The fetch therefore
+ * reaches listen.overlapIds (100) ids below the last one seen, and each
+ * subscription remembers which ids of that window it was handed, so the
+ * late message is delivered once.  A message that commits more than
+ * listen.overlapIds ids late, or below the msg_id a subscription started
+ * from, is only seen when the chat is reloaded.
+ *
+ * The driver picks notifications up whenever the connection talks to the
+ * server, so the listener sends a trivial query every listen.pollMillis
+ * (250).  That is one round trip per process however many chats are open.
+ *
+ * With messenger.shards a chat's triggers fire on its shard, so there is one
+ * listener per shard (see Messenger.chatListener), each listening on a
+ * connection to its own shard.
+ *
+ */
+public class ChatListener implements Runnable {
+
+   private final long _pollMillis = Long.getLong ("listen.pollMillis", 250L);
+   private final int _fetchLimit = Integer.getInteger ("listen.fetchLimit", 500);
+   private final int _overlapIds = Integer.getInteger ("listen.overlapIds", 100);
+
+   private static final String CHANGED = "_changed";
+
+   /**
+    * Receives the events of a subscribed chat, on the listener thread
+    */
+   public interface Listener {
+      /**
+       * New messages, oldest first
+       */
+      void messagesArrived (int chat_id, List<ChatMessage> messages);
+
+      /**
+       * A message of the chat was edited or deleted
+       */
+      void messagesChanged (int chat_id);
+   }//end Listener
+
+   /**
+    * One subscriber of a chat
+    */
+   public class Subscription {
+      final int chatId;
+      final Listener listener;
+      // the subscriber has every message up to here from its own load
+      final int since;
+      volatile int lastSeen;
+      // the ids above lastSeen - listen.overlapIds the subscriber has
+      private final Set<Integer> _seen = new HashSet<Integer>();
+
+      Subscription (int chatId, int lastSeen, Listener listener) {
+         this.chatId = chatId;
+         this.since = lastSeen;
+         this.lastSeen = lastSeen;
+         this.listener = listener;
+      }
+
+      /**
+       * Tells the listener the subscriber already has the message msgId,
+       * e.g. one it sent itself
+       */
+      public synchronized void seen (int msgId) {
+         this._seen.add (msgId);
+         if (msgId > this.lastSeen)
+            this.lastSeen = msgId;
+      }//end seen
+
+      /**
+       * @return the lowest msg_id that may still be new to the subscriber
+       */
+      int lowest () {
+         return Math.max (this.since, this.lastSeen - _overlapIds);
+      }//end lowest
+
+      /**
+       * Picks the rows the subscriber does not have yet and marks them seen
+       */
+      synchronized List<ChatMessage> unseen (List<ChatMessage> rows) {
+         List<ChatMessage> unseen = new ArrayList<ChatMessage>(rows.size ());
+         int lowest = lowest ();
+         for (ChatMessage m : rows) {
+            if (m.getMsgId () > lowest && this._seen.add (m.getMsgId ()))
+               unseen.add (m);
+         }//end for
+         for (ChatMessage m : unseen) {
+            if (m.getMsgId () > this.lastSeen)
+               this.lastSeen = m.getMsgId ();
+         }//end for
+         // forget the ids that dropped out of the window
+         lowest = lowest ();
+         for (Iterator<Integer> it = this._seen.iterator (); it.hasNext (); ) {
+            if (it.next ().intValue () <= lowest)
+               it.remove ();
+         }//end for
+         return unseen;
+      }//end unseen
+
+      /**
+       * Stops the events of this subscription
+       */
+      public void close () {
+         unsubscribe (this);
+      }//end close
+   }//end Subscription
+
+   private final Messenger _esql;
+   private final int _shard;
+   private final Map<Integer, List<Subscription>> _chats = new HashMap<Integer, List<Subscription>>();
+   // chats whose LISTEN state the listener thread still has to bring up to date
+   private final Set<Integer> _pending = new HashSet<Integer>();
+   private final Thread _thread;
+   private volatile boolean _running = true;
+
+   private Connection _conn;
+   private final Set<Integer> _listening = new HashSet<Integer>();
+
+   public ChatListener (Messenger esql) {
+      this (esql, 0);
+   }//end ChatListener
+
+   /**
+    * @param shard the shard whose chats this listener delivers
+    */
+   public ChatListener (Messenger esql, int shard) {
+      this._esql = esql;
+      this._shard = shard;
+      this._thread = new Thread (this, shard == 0 ? "chat-listener" : "chat-listener-" + shard);
+      this._thread.setDaemon (true);
+      this._thread.start ();
+   }//end ChatListener
+
+   /**
+    * Subscribes to a chat.  Messages above lastSeen that were written
+    * before the subscription took effect are delivered first.
+    *
+    * @param lastSeen the highest msg_id the subscriber already has
+    */
+   public Subscription subscribe (int chat_id, int lastSeen, Listener listener) {
+      Subscription s = new Subscription (chat_id, lastSeen, listener);
+      synchronized (this._chats) {
+         List<Subscription> subs = this._chats.get (chat_id);
+         if (subs == null) {
+            subs = new CopyOnWriteArrayList<Subscription>();
+            this._chats.put (chat_id, subs);
+         }//end if
+         subs.add (s);
+         this._pending.add (chat_id);
+      }//end synchronized
+      return s;
+   }//end subscribe
+
+   void unsubscribe (Subscription s) {
+      synchronized (this._chats) {
+         List<Subscription> subs = this._chats.get (s.chatId);
+         if (subs != null && subs.remove (s) && subs.isEmpty ()) {
+            this._chats.remove (s.chatId);
+            this._pending.add (s.chatId);
+         }//end if
+      }//end synchronized
+   }//end unsubscribe
+
+   /**
+    * Stops the listener thread and closes its connection
+    */
+   public void close () {
+      this._running = false;
+      this._thread.interrupt ();
+      try{
+         this._thread.join (5000);
+      }catch (InterruptedException e){
+         Thread.currentThread ().interrupt ();
+      }//end try
+   }//end close
+
+   public void run () {
+      while (this._running) {
+         try{
+            if (this._conn == null)
+               connect ();
+            Set<Integer> notified = update ();
+            notified.addAll (poll ());
+            for (Integer chat_id : notified)
+               deliver (chat_id.intValue ());
+         }catch (SQLException e){
+            System.err.println ("Chat listener: " + e.getMessage ());
+            disconnect ();
+         }catch (RuntimeException e){
+            // a subscriber failed, keep serving the others
+            System.err.println ("Chat listener: " + e);
+         }//end try
+         try{
+            Thread.sleep (this._pollMillis);
+         }catch (InterruptedException e){
+            // woken up by close()
+         }//end try
+      }//end while
+      disconnect ();
+   }//end run
+
+   private void connect () throws SQLException {
+      this._conn = this._esql.openConnection (this._shard);
+      this._conn.setAutoCommit (true);
+      // the new connection listens to nothing yet, and whatever was
+      // written meanwhile has to be caught up with
+      this._listening.clear ();
+      synchronized (this._chats) {
+         this._pending.addAll (this._chats.keySet ());
+      }//end synchronized
+   }//end connect
+
+   private void disconnect () {
+      if (this._conn == null)
+         return;
+      try{
+         this._conn.close ();
+      }catch (SQLException e){
+         // already broken
+      }//end try
+      this._conn = null;
+   }//end disconnect
+
+   /**
+    * Issues the LISTEN and UNLISTEN commands for the subscriptions made
+    * since the last round
+    *
+    * @return the newly listened chats, which are fetched once to catch up
+    */
+   private Set<Integer> update () throws SQLException {
+      Set<Integer> wanted = new HashSet<Integer>();
+      Set<Integer> pending;
+      synchronized (this._chats) {
+         pending = new HashSet<Integer>(this._pending);
+         this._pending.clear ();
+         for (Integer chat_id : pending) {
+            if (this._chats.containsKey (chat_id))
+               wanted.add (chat_id);
+         }//end for
+      }//end synchronized
+      Statement stmt = this._conn.createStatement ();
+      try{
+         for (Integer chat_id : pending) {
+            boolean want = wanted.contains (chat_id);
+            if (want && this._listening.add (chat_id)) {
+               stmt.execute ("LISTEN chat_" + chat_id);
+               stmt.execute ("LISTEN chat_" + chat_id + CHANGED);
+            }else if (!want && this._listening.remove (chat_id)) {
+               stmt.execute ("UNLISTEN chat_" + chat_id);
+               stmt.execute ("UNLISTEN chat_" + chat_id + CHANGED);
+            }//end if
+         }//end for
+      }catch (SQLException e){
+         // retried on the next connection
+         synchronized (this._chats) {
+            this._pending.addAll (pending);
+         }//end synchronized
+         throw e;
+      }finally{
+         stmt.close ();
+      }//end try
+      return wanted;
+   }//end update
+
+   /**
+    * Collects the notifications that arrived since the last round
+    *
+    * @return the chats with new messages
+    */
+   private Set<Integer> poll () throws SQLException {
+      Statement stmt = this._conn.createStatement ();
+      try{
+         ResultSet rs = stmt.executeQuery ("SELECT 1");
+         rs.close ();
+      }finally{
+         stmt.close ();
+      }//end try
+      Set<Integer> arrived = new HashSet<Integer>();
+      PGNotification[] notifications = ((PGConnection) this._conn).getNotifications ();
+      if (notifications == null)
+         return arrived;
+      Set<Integer> changed = new HashSet<Integer>();
+      for (PGNotification n : notifications) {
+         String name = n.getName ();
+         if (!name.startsWith ("chat_"))
+            continue;
+         try{
+            if (name.endsWith (CHANGED))
+               changed.add (Integer.valueOf (name.substring (5, name.length () - CHANGED.length ())));
+            else
+               arrived.add (Integer.valueOf (name.substring (5)));
+         }catch (NumberFormatException e){
+            // not one of ours
+         }//end try
+      }//end for
+      for (Integer chat_id : changed) {
+         for (Subscription s : subscribers (chat_id))
+            s.listener.messagesChanged (chat_id.intValue ());
+      }//end for
+      return arrived;
+   }//end poll
+
+   private List<Subscription> subscribers (Integer chat_id) {
+      synchronized (this._chats) {
+         List<Subscription> subs = this._chats.get (chat_id);
+         return subs == null ? new ArrayList<Subscription>() : subs;
+      }//end synchronized
+   }//end subscribers
+
+   /**
+    * Fetches the messages no subscriber of the chat has seen yet and hands
+    * each subscriber the ones above its own last seen msg_id
+    */
+   private void deliver (int chat_id) throws SQLException {
+      List<Subscription> subs = subscribers (chat_id);
+      if (subs.isEmpty ())
+         return;
+      int from = Integer.MAX_VALUE;
+      for (Subscription s : subs)
+         from = Math.min (from, s.lowest ());
+      OperationStats.Scope op = this._esql.stats ().begin ("ChatListener");
+      try{
+         deliverFrom (chat_id, subs, from);
+      }finally{
+         op.end ();
+      }//end try
+   }//end deliver
+
+   private void deliverFrom (int chat_id, List<Subscription> subs, int from) throws SQLException {
+      while (true) {
+         List<ChatMessage> rows = this._esql.query (Queries.MESSAGES_AFTER, ChatMessage.MAPPER, chat_id, from, this._fetchLimit);
+         if (rows.isEmpty ())
+            return;
+         for (Subscription s : subs) {
+            List<ChatMessage> unseen = s.unseen (rows);
+            if (!unseen.isEmpty ())
+               s.listener.messagesArrived (chat_id, unseen);
+         }//end for
+         if (rows.size () < this._fetchLimit)
+            return;
+         from = rows.get (rows.size () - 1).getMsgId ();
+      }//end while
+   }//end deliverFrom
+
+}//end ChatListener
@@ -0,0 +1,63 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+/**
+ * One MESSAGE row with typed columns, as read by the chat history queries
+ * (sender_login, msg_id, msg_timestamp, msg_text).
+ *
+ */
+public class ChatMessage {
+
+   /**
+    * Reads a row of the chat history queries
+    */
+   public static final RowMapper<ChatMessage> MAPPER = new RowMapper<ChatMessage> () {
+      public ChatMessage map (ResultSet rs) throws SQLException {
+         String sender = rs.getString (1);
+         return new ChatMessage (sender == null ? null : sender.trim (), rs.getInt (2), rs.getTimestamp (3), rs.getString (4));
+      }
+   };
+
+   private final String _sender;
+   private final int _msgId;
+   private final Timestamp _timestamp;
+   private final String _text;
+
+   public ChatMessage (String sender, int msgId, Timestamp timestamp, String text) {
+      this._sender = sender;
+      this._msgId = msgId;
+      this._timestamp = timestamp;
+      this._text = text;
+   }//end ChatMessage
+
+   public String getSender () {
+      return this._sender;
+   }//end getSender
+
+   public int getMsgId () {
+      return this._msgId;
+   }//end getMsgId
+
+   public Timestamp getTimestamp () {
+      return this._timestamp;
+   }//end getTimestamp
+
+   public String getText () {
+      return this._text;
+   }//end getText
+
+}//end ChatMessage
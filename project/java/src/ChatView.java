@@ -0,0 +1,145 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * The part of a chat a client has loaded, kept in (msg_timestamp, msg_id)
+ * order.  Pages are loaded once; after that every send, edit or delete is
+ * applied to the view from the row the statement returned, and messages
+ * pushed by the ChatListener are merged in, so the chat is never re-read
+ * from the database.
+ *
+ * The view is shared between the menu thread and the listener thread, all
+ * methods are synchronized.
+ *
+ */
+public class ChatView {
+
+   private static final Comparator<ChatMessage> CHRONOLOGICAL = new Comparator<ChatMessage> () {
+      public int compare (ChatMessage a, ChatMessage b) {
+         int c = a.getTimestamp ().compareTo (b.getTimestamp ());
+         return c != 0 ? c : (a.getMsgId () < b.getMsgId () ? -1 : (a.getMsgId () == b.getMsgId () ? 0 : 1));
+      }
+   };
+
+   private final Messenger _esql;
+   private final int _chatId;
+   private final TreeSet<ChatMessage> _messages = new TreeSet<ChatMessage>(CHRONOLOGICAL);
+   private final Map<Integer, ChatMessage> _byId = new HashMap<Integer, ChatMessage>();
+   private boolean _complete = false;
+
+   public ChatView (Messenger esql, int chat_id) {
+      this._esql = esql;
+      this._chatId = chat_id;
+   }//end ChatView
+
+   public int getChatId () {
+      return this._chatId;
+   }//end getChatId
+
+   /**
+    * Loads the page before the oldest loaded message, the newest page the
+    * first time
+    *
+    * @return the messages of the page in chronological order, empty when
+    *         the beginning of the chat was reached
+    */
+   public List<ChatMessage> loadEarlier (int limit) throws SQLException {
+      ChatMessage oldest;
+      synchronized (this) {
+         if (this._complete)
+            return new ArrayList<ChatMessage>();
+         oldest = this._messages.isEmpty () ? null : this._messages.first ();
+      }//end synchronized
+      List<ChatMessage> page = this._esql.messagePage (this._chatId, oldest, limit);
+      synchronized (this) {
+         if (page.size () < limit)
+            this._complete = true;
+         List<ChatMessage> added = new ArrayList<ChatMessage>(page.size ());
+         for (ChatMessage m : page) {
+            if (put (m))
+               added.add (m);
+         }//end for
+         return added;
+      }//end synchronized
+   }//end loadEarlier
+
+   private boolean put (ChatMessage m) {
+      ChatMessage old = this._byId.put (m.getMsgId (), m);
+      if (old != null)
+         this._messages.remove (old);
+      this._messages.add (m);
+      return old == null;
+   }//end put
+
+   /**
+    * Adds new messages, e.g. the row of a sent message or messages pushed
+    * by the listener
+    *
+    * @return the messages that were not in the view yet
+    */
+   public synchronized List<ChatMessage> append (List<ChatMessage> messages) {
+      List<ChatMessage> added = new ArrayList<ChatMessage>(messages.size ());
+      for (ChatMessage m : messages) {
+         if (put (m))
+            added.add (m);
+      }//end for
+      return added;
+   }//end append
+
+   /**
+    * Replaces a message with its edited row
+    */
+   public synchronized void update (ChatMessage edited) {
+      if (this._byId.containsKey (edited.getMsgId ()))
+         put (edited);
+   }//end update
+
+   /**
+    * Removes a deleted message
+    */
+   public synchronized void remove (int msg_id) {
+      ChatMessage old = this._byId.remove (msg_id);
+      if (old != null)
+         this._messages.remove (old);
+   }//end remove
+
+   /**
+    * @return the highest msg_id in the view, 0 when it is empty
+    */
+   public synchronized int newestId () {
+      int newest = 0;
+      for (Integer id : this._byId.keySet ())
+         newest = Math.max (newest, id.intValue ());
+      return newest;
+   }//end newestId
+
+   /**
+    * @return the loaded messages in chronological order
+    */
+   public synchronized List<ChatMessage> messages () {
+      return new ArrayList<ChatMessage>(this._messages);
+   }//end messages
+
+   public synchronized int size () {
+      return this._messages.size ();
+   }//end size
+
+}//end ChatView
@@ -0,0 +1,204 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of physical connections to one Postgres database.  Idle
+ * connections are handed out first; new ones are opened lazily until the
+ * pool reaches its maximum size, after which callers wait for a release.
+ *
+ */
+public class ConnectionPool {
+
+   // how long a caller waits for a free connection before giving up
+   private static final long BORROW_TIMEOUT_SECONDS = 30;
+
+   // connection parameters
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+
+   // pool bounds
+   private final int _maxSize;
+   private final int _stmtCacheSize;
+
+   // connections currently not lent out
+   private final LinkedBlockingQueue<PooledConnection> _idle =
+      new LinkedBlockingQueue<PooledConnection>();
+
+   // set once the pool is shut down, released connections are then closed
+   private volatile boolean _closed = false;
+
+   // number of physical connections currently open
+   private final AtomicInteger _open = new AtomicInteger();
+
+   // statistics about the work the pool and statement caches save
+   private final AtomicLong _borrows = new AtomicLong();
+   private final AtomicLong _connectsOpened = new AtomicLong();
+   private final AtomicLong _statementHits = new AtomicLong();
+   private final AtomicLong _statementMisses = new AtomicLong();
+
+   /**
+    * Creates a new pool, no connection is opened until the first borrow
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param maxSize the maximum number of physical connections
+    * @param stmtCacheSize the number of prepared statements cached per connection
+    */
+   public ConnectionPool (String url, String user, String passwd, int maxSize, int stmtCacheSize) {
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      this._maxSize = maxSize;
+      this._stmtCacheSize = stmtCacheSize;
+   }//end ConnectionPool
+
+   /**
+    * Lends a connection to the caller, who must hand it back with release().
+    *
+    * @return a usable pooled connection
+    * @throws java.sql.SQLException when no connection could be obtained
+    */
+   public PooledConnection borrow () throws SQLException {
+      if (this._closed)
+         throw new SQLException ("Connection pool is closed");
+      this._borrows.incrementAndGet ();
+      long deadline = 0;
+      while (true) {
+         PooledConnection conn = this._idle.poll ();
+         if (conn != null) {
+            if (conn.isUsable ())
+               return conn;
+            discard (conn);
+            continue;
+         }//end if
+
+         // open a new physical connection if the pool is not full yet
+         int open = this._open.get ();
+         if (open < this._maxSize) {
+            if (this._open.compareAndSet (open, open + 1)) {
+               try{
+                  Connection physical = DriverManager.getConnection (this._url, this._user, this._passwd);
+                  this._connectsOpened.incrementAndGet ();
+                  return new PooledConnection (physical, this, this._stmtCacheSize);
+               }catch (SQLException e){
+                  this._open.decrementAndGet ();
+                  throw e;
+               }//end try
+            }//end if
+            continue;
+         }//end if
+
+         // otherwise wait for another caller to release one, checking back
+         // now and then in case a broken connection freed up a slot
+         if (deadline == 0)
+            deadline = System.currentTimeMillis () + BORROW_TIMEOUT_SECONDS * 1000;
+         else if (System.currentTimeMillis () > deadline)
+            throw new SQLException ("Timed out waiting for a database connection");
+         try{
+            conn = this._idle.poll (100, TimeUnit.MILLISECONDS);
+         }catch (InterruptedException e){
+            Thread.currentThread ().interrupt ();
+            throw new SQLException ("Interrupted while waiting for a database connection");
+         }//end try
+         if (conn == null)
+            continue;
+         if (conn.isUsable ())
+            return conn;
+         discard (conn);
+      }//end while
+   }//end borrow
+
+   /**
+    * Opens a physical connection that is not part of the pool, for callers
+    * that keep session state on it (e.g. LISTEN) for a long time.  The
+    * caller closes it.
+    *
+    * @return a new connection
+    * @throws java.sql.SQLException when no connection could be obtained
+    */
+   public Connection connect () throws SQLException {
+      if (this._closed)
+         throw new SQLException ("Connection pool is closed");
+      return DriverManager.getConnection (this._url, this._user, this._passwd);
+   }//end connect
+
+   /**
+    * Returns a borrowed connection to the pool.
+    *
+    * @param conn the connection obtained from borrow()
+    */
+   public void release (PooledConnection conn) {
+      if (conn == null)
+         return;
+      if (!this._closed && conn.isUsable ())
+         this._idle.offer (conn);
+      else
+         discard (conn);
+   }//end release
+
+   private void discard (PooledConnection conn) {
+      this._open.decrementAndGet ();
+      conn.close ();
+   }//end discard
+
+   void recordStatementHit () {
+      this._statementHits.incrementAndGet ();
+   }//end recordStatementHit
+
+   void recordStatementMiss () {
+      this._statementMisses.incrementAndGet ();
+   }//end recordStatementMiss
+
+   /**
+    * Prints how much work the pool and the statement caches saved so far.
+    * Every statement cache hit is one parse/plan cycle Postgres did not
+    * repeat, every borrow served by an already open connection is one
+    * connection start-up and authentication exchange that was not needed.
+    */
+   public void printStats () {
+      long borrows = this._borrows.get ();
+      long opened = this._connectsOpened.get ();
+      long hits = this._statementHits.get ();
+      long misses = this._statementMisses.get ();
+      System.out.println ("Connection pool statistics");
+      System.out.println ("--------------------------");
+      System.out.println ("Connections borrowed:           " + borrows);
+      System.out.println ("Physical connections opened:    " + opened);
+      System.out.println ("Connection set-ups saved:       " + (borrows - opened));
+      System.out.println ("Statements prepared (parsed):   " + misses);
+      System.out.println ("Statement cache hits:           " + hits);
+      System.out.println ("Parse/plan cycles saved:        " + hits);
+   }//end printStats
+
+   /**
+    * Closes every idle connection.  Connections still lent out are closed
+    * when they are released.
+    */
+   public void close () {
+      this._closed = true;
+      PooledConnection conn;
+      while ((conn = this._idle.poll ()) != null)
+         discard (conn);
+   }//end close
+
+}//end ConnectionPool
@@ -0,0 +1,273 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * Deterministic generator of a synthetic data set in the ';' delimited format
+ * of project/data.  It writes usr_list.csv, usr.csv, usr_list_contains.csv,
+ * chat.csv, chat_list.csv and message.csv, which BulkLoader loads as is.
+ *
+ * The same seed and settings always produce the same files.  The size is
+ * given as a multiple of the bundled data set (about 28k users and 5k
+ * chats), the shape with these properties:
+ *
+ *   gen.seed             random seed (42)
+ *   gen.chatSizeSkew     Zipf exponent of the members per chat (2.0)
+ *   gen.maxChatSize      largest chat (500)
+ *   gen.messagesPerChat  mean messages per chat (100)
+ *   gen.messageSkew      log-normal sigma of the messages per chat (1.5)
+ *   gen.contactDegree    mean contacts per user (10)
+ *   gen.contactSkew      Zipf exponent of how popular a user is as a contact (0.8)
+ *   gen.blockDegree      mean blocked users per user (1)
+ *
+ */
+public class DataGenerator {
+
+   // size of the bundled data set, scaled by the command line argument
+   private static final int BASE_USERS = 28000;
+   private static final int BASE_CHATS = 5000;
+
+   private static final String[] WORDS = (
+      "lorem ipsum dolor sit amet consectetur adipiscing elit sed do eiusmod tempor " +
+      "incididunt ut labore et dolore magna aliqua enim ad minim veniam quis nostrud " +
+      "exercitation ullamco laboris nisi aliquip ex ea commodo consequat duis aute irure " +
+      "in reprehenderit voluptate velit esse cillum fugiat nulla pariatur excepteur sint " +
+      "occaecat cupidatat non proident sunt culpa qui officia deserunt mollit anim id est " +
+      "laborum quia praesentium maxime iste saepe libero quod").split (" ");
+
+   private final long _seed = Long.getLong ("gen.seed", 42L);
+   private final double _chatSizeSkew = Double.parseDouble (System.getProperty ("gen.chatSizeSkew", "2.0"));
+   private final int _maxChatSize = Integer.getInteger ("gen.maxChatSize", 500);
+   private final double _messagesPerChat = Double.parseDouble (System.getProperty ("gen.messagesPerChat", "100"));
+   private final double _messageSkew = Double.parseDouble (System.getProperty ("gen.messageSkew", "1.5"));
+   private final double _contactDegree = Double.parseDouble (System.getProperty ("gen.contactDegree", "10"));
+   private final double _contactSkew = Double.parseDouble (System.getProperty ("gen.contactSkew", "0.8"));
+   private final double _blockDegree = Double.parseDouble (System.getProperty ("gen.blockDegree", "1"));
+
+   private final File _outDir;
+   private final int _users;
+   private final int _chats;
+
+   /**
+    * Samples ranks 1..n with probability proportional to rank^-exponent
+    * from a precomputed cumulative distribution.
+    */
+   static class Zipf {
+      private final double[] _cdf;
+
+      Zipf (int n, double exponent) {
+         this._cdf = new double[n];
+         double sum = 0;
+         for (int i = 0; i < n; ++i) {
+            sum += 1.0 / Math.pow (i + 1, exponent);
+            this._cdf[i] = sum;
+         }//end for
+         for (int i = 0; i < n; ++i)
+            this._cdf[i] /= sum;
+      }
+
+      /**
+       * @return a rank between 1 and n
+       */
+      int next (Random rnd) {
+         int idx = Arrays.binarySearch (this._cdf, rnd.nextDouble ());
+         if (idx < 0)
+            idx = -idx - 1;
+         return Math.min (idx, this._cdf.length - 1) + 1;
+      }
+   }//end Zipf
+
+   public DataGenerator (File outDir, double scale) {
+      this._outDir = outDir;
+      this._users = Math.max (2, (int) Math.round (BASE_USERS * scale));
+      this._chats = Math.max (1, (int) Math.round (BASE_CHATS * scale));
+   }//end DataGenerator
+
+   private static String login (int user) {
+      return "user" + user;
+   }//end login
+
+   private static String words (Random rnd, int count) {
+      StringBuilder sb = new StringBuilder ();
+      for (int i = 0; i < count; ++i) {
+         if (i > 0)
+            sb.append (' ');
+         sb.append (WORDS[rnd.nextInt (WORDS.length)]);
+      }//end for
+      return sb.toString ();
+   }//end words
+
+   /**
+    * Poisson sample by inversion, fine for the small means used here
+    */
+   private static int poisson (Random rnd, double mean) {
+      double l = Math.exp (-mean);
+      double p = 1.0;
+      int k = 0;
+      do {
+         ++k;
+         p *= rnd.nextDouble ();
+      } while (p > l);
+      return k - 1;
+   }//end poisson
+
+   private static Writer open (File dir, String name) throws IOException {
+      return new BufferedWriter (new FileWriter (new File (dir, name)), 1 << 20);
+   }//end open
+
+   /**
+    * Picks up to count distinct users other than owner
+    */
+   private int[] pickUsers (Random rnd, Zipf popularity, int owner, int count) {
+      count = Math.min (count, this._users - 1);
+      Set<Integer> picked = new HashSet<Integer>();
+      int[] result = new int[count];
+      int n = 0;
+      while (n < count) {
+         // popular users are the low ranks, scatter them over the id space
+         int user = popularity == null ? rnd.nextInt (this._users)
+            : (int) (((long) (popularity.next (rnd) - 1) * 7919) % this._users);
+         if (user == owner || !picked.add (Integer.valueOf (user)))
+            continue;
+         result[n++] = user;
+      }//end while
+      return result;
+   }//end pickUsers
+
+   /**
+    * Writes all six files
+    */
+   public void generate () throws IOException {
+      this._outDir.mkdirs ();
+      long rowsUsers = 0, rowsContains = 0, rowsMembers = 0, rowsMessages = 0;
+
+      // one generator per file so tuning one distribution leaves the others unchanged
+      Random userRnd = new Random (this._seed);
+      Random contactRnd = new Random (this._seed * 31 + 1);
+      Random chatRnd = new Random (this._seed * 31 + 2);
+      Random messageRnd = new Random (this._seed * 31 + 3);
+
+      // users and their block (2i) and contact (2i+1) lists
+      Writer lists = open (this._outDir, "usr_list.csv");
+      Writer usr = open (this._outDir, "usr.csv");
+      try{
+         for (int u = 0; u < this._users; ++u) {
+            lists.write ((2 * u) + ";block\n");
+            lists.write ((2 * u + 1) + ";contact\n");
+            String phone = String.format ("+1(%03d)%03d-%04d", u / 10000000 % 1000, u / 10000 % 1000, u % 10000);
+            String password = Long.toHexString (userRnd.nextLong ()) + Long.toHexString (userRnd.nextLong ());
+            usr.write (login (u) + ";" + phone + ";" + password + ";" + words (userRnd, 3) + ";" + (2 * u) + ";" + (2 * u + 1) + "\n");
+            ++rowsUsers;
+         }//end for
+      }finally{
+         lists.close ();
+         usr.close ();
+      }//end try
+
+      // contact and block lists, contacts lean towards popular users
+      Zipf popularity = new Zipf (this._users, this._contactSkew);
+      Writer contains = open (this._outDir, "usr_list_contains.csv");
+      try{
+         for (int u = 0; u < this._users; ++u) {
+            for (int c : pickUsers (contactRnd, popularity, u, poisson (contactRnd, this._contactDegree))) {
+               contains.write ((2 * u + 1) + ";" + login (c) + "\n");
+               ++rowsContains;
+            }//end for
+            for (int b : pickUsers (contactRnd, null, u, poisson (contactRnd, this._blockDegree))) {
+               contains.write ((2 * u) + ";" + login (b) + "\n");
+               ++rowsContains;
+            }//end for
+         }//end for
+      }finally{
+         contains.close ();
+      }//end try
+
+      // chats with a skewed size, each followed by its history
+      Zipf chatSize = new Zipf (Math.max (1, Math.min (this._maxChatSize, this._users) - 1), this._chatSizeSkew);
+      double mu = Math.log (this._messagesPerChat) - this._messageSkew * this._messageSkew / 2;
+      long now = 1700000000000L;
+      long year = 365L * 24 * 3600 * 1000;
+      int msgId = 0;
+      // timestamps are written in UTC so the output does not depend on the machine
+      SimpleDateFormat timestamp = new SimpleDateFormat ("yyyy-MM-dd HH:mm:ss");
+      timestamp.setTimeZone (TimeZone.getTimeZone ("UTC"));
+      Writer chat = open (this._outDir, "chat.csv");
+      Writer members = open (this._outDir, "chat_list.csv");
+      Writer message = open (this._outDir, "message.csv");
+      try{
+         for (int c = 0; c < this._chats; ++c) {
+            int init = chatRnd.nextInt (this._users);
+            int size = chatSize.next (chatRnd) + 1;
+            int[] others = pickUsers (chatRnd, null, init, size - 1);
+            chat.write (c + ";" + (size > 2 ? "group" : "private") + ";" + login (init) + "\n");
+            members.write (c + ";" + login (init) + "\n");
+            for (int m : others)
+               members.write (c + ";" + login (m) + "\n");
+            rowsMembers += others.length + 1;
+
+            int count = (int) Math.round (Math.exp (mu + this._messageSkew * messageRnd.nextGaussian ()));
+            long ts = now - (long) (messageRnd.nextDouble () * year);
+            for (int i = 0; i < count; ++i) {
+               ts += 1000 + (long) (messageRnd.nextDouble () * 600000);
+               int sender = others.length == 0 || messageRnd.nextInt (others.length + 1) == 0
+                  ? init : others[messageRnd.nextInt (others.length)];
+               message.write (++msgId + ";" + words (messageRnd, 3 + messageRnd.nextInt (30)) + ";" +
+                  timestamp.format (ts) + ";" + login (sender) + ";" + c + "\n");
+               ++rowsMessages;
+            }//end for
+         }//end for
+      }finally{
+         chat.close ();
+         members.close ();
+         message.close ();
+      }//end try
+
+      System.out.println (String.format ("Generated %d users, %d list members, %d chats, %d chat members, %d messages in %s",
+         rowsUsers, rowsContains, this._chats, rowsMembers, rowsMessages, this._outDir));
+   }//end generate
+
+   /**
+    * The main execution method
+    *
+    * @param args the command line arguments <output dir> [scale]
+    */
+   public static void main (String[] args) {
+      if (args.length < 1) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] [-Dgen.<setting>=<value>] " +
+            DataGenerator.class.getName () +
+            " <output dir> [scale, e.g. 10 for ten times the bundled data]");
+         System.exit (2);
+      }//end if
+      try{
+         double scale = args.length > 1 ? Double.parseDouble (args[1]) : 1.0;
+         new DataGenerator (new File (args[0]), scale).generate ();
+      }catch (Exception e){
+         System.err.println ("Error - generation failed: " + e.getMessage ());
+         System.exit (1);
+      }//end try
+   }//end main
+
+}//end DataGenerator
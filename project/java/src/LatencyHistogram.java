@@ -0,0 +1,134 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, lock-free latency histogram.  Values are kept in
+ * microseconds in log-linear buckets: every power of two is split into 16
+ * linear sub-buckets, so a reported percentile is within about 6% of the
+ * true value while recording stays a couple of atomic increments.
+ *
+ */
+public class LatencyHistogram {
+
+   // linear sub-buckets per power of two
+   private static final int SUB_BUCKETS = 16;
+   private static final int SUB_BITS = 4;
+
+   // enough buckets for latencies up to 2^44 microseconds
+   private static final int BUCKETS = SUB_BUCKETS + 40 * SUB_BUCKETS;
+
+   private final AtomicLongArray _counts = new AtomicLongArray (BUCKETS);
+   private final AtomicLong _total = new AtomicLong ();
+   private final AtomicLong _sumMicros = new AtomicLong ();
+   private final AtomicLong _maxMicros = new AtomicLong ();
+
+   private static int bucketOf (long micros) {
+      if (micros < SUB_BUCKETS)
+         return (int) micros;
+      int exp = 63 - Long.numberOfLeadingZeros (micros);
+      int sub = (int) (micros >> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+      int idx = SUB_BUCKETS + (exp - SUB_BITS) * SUB_BUCKETS + sub;
+      return Math.min (idx, BUCKETS - 1);
+   }//end bucketOf
+
+   private static long upperBoundOf (int idx) {
+      if (idx < SUB_BUCKETS)
+         return idx;
+      int exp = (idx - SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS;
+      int sub = (idx - SUB_BUCKETS) % SUB_BUCKETS;
+      return ((long) (SUB_BUCKETS + sub + 1) << (exp - SUB_BITS)) - 1;
+   }//end upperBoundOf
+
+   /**
+    * Records one latency
+    *
+    * @param nanos the latency in nanoseconds
+    */
+   public void record (long nanos) {
+      long micros = Math.max (0, nanos / 1000);
+      this._counts.incrementAndGet (bucketOf (micros));
+      this._total.incrementAndGet ();
+      this._sumMicros.addAndGet (micros);
+      long max;
+      while (micros > (max = this._maxMicros.get ())) {
+         if (this._maxMicros.compareAndSet (max, micros))
+            break;
+      }//end while
+   }//end record
+
+   /**
+    * Returns the number of recorded values
+    */
+   public long count () {
+      return this._total.get ();
+   }//end count
+
+   /**
+    * Returns the mean latency in microseconds
+    */
+   public double meanMicros () {
+      long n = this._total.get ();
+      return n == 0 ? 0 : (double) this._sumMicros.get () / n;
+   }//end meanMicros
+
+   /**
+    * Returns the largest recorded latency in microseconds
+    */
+   public long maxMicros () {
+      return this._maxMicros.get ();
+   }//end maxMicros
+
+   /**
+    * Returns the latency in microseconds below which the given fraction of
+    * the recorded values fall
+    *
+    * @param fraction e.g. 0.99 for the 99th percentile
+    */
+   public long percentileMicros (double fraction) {
+      long n = this._total.get ();
+      if (n == 0)
+         return 0;
+      long rank = (long) Math.ceil (fraction * n);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; ++i) {
+         seen += this._counts.get (i);
+         if (seen >= rank)
+            return Math.min (upperBoundOf (i), this._maxMicros.get ());
+      }//end for
+      return this._maxMicros.get ();
+   }//end percentileMicros
+
+   /**
+    * Forgets every recorded value
+    */
+   public void reset () {
+      for (int i = 0; i < BUCKETS; ++i)
+         this._counts.set (i, 0);
+      this._total.set (0);
+      this._sumMicros.set (0);
+      this._maxMicros.set (0);
+   }//end reset
+
+   /**
+    * Formats count, mean and the p50/p90/p99/p999/max latencies on one line
+    */
+   public String summary () {
+      return String.format ("n=%d mean=%.0fus p50=%dus p90=%dus p99=%dus p999=%dus max=%dus",
+         count (), meanMicros (), percentileMicros (0.50), percentileMicros (0.90),
+         percentileMicros (0.99), percentileMicros (0.999), maxMicros ());
+   }//end summary
+
+}//end LatencyHistogram
@@ -0,0 +1,214 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-user cache of contact and block lists.  For every user it keeps the
+ * two list ids and, once they were asked for, the members of each list.
+ * Listing a user's contacts or checking whether someone is already on a
+ * list is then answered from memory.
+ *
+ * Only the owner of a list changes it, and every change made through
+ * Messenger invalidates the cached copy after the database write, so the
+ * cache is exact for the process it lives in.  Entries are evicted least
+ * recently used once messenger.listCacheSize (10000) users are cached.
+ *
+ */
+public class MembershipCache {
+
+   private final int _maxUsers = Integer.getInteger ("messenger.listCacheSize", 10000);
+
+   private final Messenger _esql;
+   private final LinkedHashMap<String, Lists> _users = new LinkedHashMap<String, Lists>(16, 0.75f, true);
+
+   /**
+    * The cached lists of one user.  A null member list is not loaded yet;
+    * version changes on every invalidation so that a load racing with a
+    * write does not store what it read before the write.
+    */
+   static class Lists {
+      final int contactList;
+      final int blockList;
+      List<List<String>> contacts;
+      List<List<String>> blocked;
+      int version;
+
+      Lists (int contactList, int blockList) {
+         this.contactList = contactList;
+         this.blockList = blockList;
+      }
+   }//end Lists
+
+   // (contact_list, block_list) of a USER_LISTS row
+   static final RowMapper<int[]> LIST_IDS = new RowMapper<int[]> () {
+      public int[] map (ResultSet rs) throws SQLException {
+         return new int[] { rs.getInt (1), rs.getInt (2) };
+      }
+   };
+
+   // list rows with the char(n) padding removed, so lookups can use equals
+   private static final RowMapper<List<String>> TRIMMED = new RowMapper<List<String>> () {
+      public List<String> map (ResultSet rs) throws SQLException {
+         List<String> row = RowMapper.STRINGS.map (rs);
+         for (int i = 0; i < row.size (); ++i) {
+            if (row.get (i) != null)
+               row.set (i, row.get (i).trim ());
+         }//end for
+         return row;
+      }
+   };
+
+   public MembershipCache (Messenger esql) {
+      this._esql = esql;
+   }//end MembershipCache
+
+   /**
+    * @return the key a user is cached under, logins may come char(n) padded
+    */
+   private static String key (String login) {
+      return login.trim ();
+   }//end key
+
+   private Lists lists (String login) throws SQLException {
+      String key = key (login);
+      synchronized (this._users) {
+         Lists l = this._users.get (key);
+         if (l != null)
+            return l;
+      }//end synchronized
+      int[] ids = this._esql.queryOne (Queries.USER_LISTS, LIST_IDS, login);
+      if (ids == null)
+         throw new SQLException ("No such user: " + login);
+      synchronized (this._users) {
+         Lists l = this._users.get (key);
+         if (l != null)
+            return l;
+         l = new Lists (ids[0], ids[1]);
+         this._users.put (key, l);
+         if (this._users.size () > this._maxUsers) {
+            Iterator<Map.Entry<String, Lists>> it = this._users.entrySet ().iterator ();
+            it.next ();
+            it.remove ();
+         }//end if
+         return l;
+      }//end synchronized
+   }//end lists
+
+   /**
+    * @return the id of the user's contact list
+    */
+   public int contactList (String login) throws SQLException {
+      return lists (login).contactList;
+   }//end contactList
+
+   /**
+    * @return the id of the user's block list
+    */
+   public int blockList (String login) throws SQLException {
+      return lists (login).blockList;
+   }//end blockList
+
+   private List<List<String>> members (String login, boolean contacts) throws SQLException {
+      Lists l = lists (login);
+      int version;
+      synchronized (this._users) {
+         List<List<String>> cached = contacts ? l.contacts : l.blocked;
+         if (cached != null)
+            return cached;
+         version = l.version;
+      }//end synchronized
+      List<List<String>> loaded = Collections.unmodifiableList (
+         this._esql.query (contacts ? Queries.LIST_CONTACTS : Queries.LIST_BLOCKED, TRIMMED, login));
+      synchronized (this._users) {
+         if (l.version == version) {
+            if (contacts)
+               l.contacts = loaded;
+            else
+               l.blocked = loaded;
+         }//end if
+      }//end synchronized
+      return loaded;
+   }//end members
+
+   /**
+    * @return the user's contacts as (login, status) rows
+    */
+   public List<List<String>> contacts (String login) throws SQLException {
+      return members (login, true);
+   }//end contacts
+
+   /**
+    * @return the logins on the user's block list
+    */
+   public List<List<String>> blocked (String login) throws SQLException {
+      return members (login, false);
+   }//end blocked
+
+   private static boolean contains (List<List<String>> rows, String member) {
+      String m = key (member);
+      for (List<String> row : rows) {
+         if (m.equals (row.get (0)))
+            return true;
+      }//end for
+      return false;
+   }//end contains
+
+   public boolean isContact (String login, String member) throws SQLException {
+      return contains (contacts (login), member);
+   }//end isContact
+
+   public boolean isBlocked (String login, String member) throws SQLException {
+      return contains (blocked (login), member);
+   }//end isBlocked
+
+   /**
+    * Drops the cached members of a user's lists, called after every write
+    * to them
+    */
+   public void invalidate (String login) {
+      synchronized (this._users) {
+         Lists l = this._users.get (key (login));
+         if (l != null) {
+            l.contacts = null;
+            l.blocked = null;
+            ++l.version;
+         }//end if
+      }//end synchronized
+   }//end invalidate
+
+   /**
+    * Forgets a deleted user, both as an owner and as a member of other
+    * users' lists (the database removes it from those by cascade)
+    */
+   public void remove (String login) {
+      String m = key (login);
+      synchronized (this._users) {
+         this._users.remove (m);
+         for (Lists l : this._users.values ()) {
+            if ((l.contacts != null && contains (l.contacts, m)) || (l.blocked != null && contains (l.blocked, m))) {
+               l.contacts = null;
+               l.blocked = null;
+               ++l.version;
+            }//end if
+         }//end for
+      }//end synchronized
+   }//end remove
+
+}//end MembershipCache
@@ -0,0 +1,359 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The messages of the MESSAGE partitions MessageArchiver moved out of the
+ * database, one segment per month in archive.dir ("archive").
+ *
+ * A segment is two files.  <yyyymm>.seg holds one gzip member per chat with
+ * the chat's messages in (msg_timestamp, msg_id) order; <yyyymm>.idx maps
+ * every chat_id to the offset and length of its member, so a chat is read
+ * without touching the rest of the month.  The .idx file is written last,
+ * a segment without one is incomplete and ignored.
+ *
+ * Archived messages are read only.  Senders are stored by user_id and
+ * looked up when read; messages of accounts deleted since are left out.
+ *
+ */
+public class MessageArchive {
+
+   /**
+    * An archived MESSAGE row
+    */
+   static class Row {
+      final int msgId;
+      final Timestamp timestamp;
+      final int senderId;
+      final String text;
+
+      Row (int msgId, Timestamp timestamp, int senderId, String text) {
+         this.msgId = msgId;
+         this.timestamp = timestamp;
+         this.senderId = senderId;
+         this.text = text;
+      }
+
+      boolean before (ChatMessage m) {
+         int c = this.timestamp.compareTo (m.getTimestamp ());
+         return c < 0 || (c == 0 && this.msgId < m.getMsgId ());
+      }
+   }//end Row
+
+   /**
+    * One month: its data file and the (offset, length) of every chat in it
+    */
+   static class Segment {
+      final String month;
+      final File data;
+      final Map<Integer, long[]> chats;
+
+      Segment (String month, File data, Map<Integer, long[]> chats) {
+         this.month = month;
+         this.data = data;
+         this.chats = chats;
+      }
+   }//end Segment
+
+   /**
+    * Writes a segment from rows ordered by (chat_id, msg_timestamp, msg_id)
+    */
+   static class SegmentWriter {
+      private final File _dir;
+      private final String _month;
+      private final File _tmp;
+      private final File _indexTmp;
+      private final FileOutputStream _file;
+      private final Map<Integer, long[]> _chats = new HashMap<Integer, long[]>();
+      private final ByteArrayOutputStream _buffer = new ByteArrayOutputStream ();
+      private DataOutputStream _out = null;
+      private int _chatId = -1;
+      private long _offset = 0;
+      private long _rows = 0;
+
+      SegmentWriter (File dir, String month) throws IOException {
+         this._dir = dir;
+         this._month = month;
+         dir.mkdirs ();
+         this._tmp = new File (dir, month + ".seg.tmp");
+         this._indexTmp = new File (dir, month + ".idx.tmp");
+         this._file = new FileOutputStream (this._tmp);
+      }
+
+      void add (int chatId, int msgId, Timestamp timestamp, int senderId, String text) throws IOException {
+         if (chatId != this._chatId) {
+            endChat ();
+            this._chatId = chatId;
+            this._out = new DataOutputStream (new GZIPOutputStream (this._buffer));
+         }//end if
+         this._out.writeInt (msgId);
+         this._out.writeLong (timestamp.getTime ());
+         this._out.writeInt (timestamp.getNanos ());
+         this._out.writeInt (senderId);
+         this._out.writeUTF (text);
+         ++this._rows;
+      }
+
+      private void endChat () throws IOException {
+         if (this._out == null)
+            return;
+         this._out.close ();
+         this._buffer.writeTo (this._file);
+         this._chats.put (this._chatId, new long[] { this._offset, this._buffer.size () });
+         this._offset += this._buffer.size ();
+         this._buffer.reset ();
+         this._out = null;
+      }
+
+      /**
+       * Syncs the data file and writes the index next to it, neither is
+       * visible to readers until publish()
+       *
+       * @return the number of rows written
+       */
+      long finish () throws IOException {
+         endChat ();
+         this._file.getFD ().sync ();
+         this._file.close ();
+
+         FileOutputStream file = new FileOutputStream (this._indexTmp);
+         DataOutputStream out = new DataOutputStream (new BufferedOutputStream (file));
+         out.writeInt (this._chats.size ());
+         for (Map.Entry<Integer, long[]> e : this._chats.entrySet ()) {
+            out.writeInt (e.getKey ().intValue ());
+            out.writeLong (e.getValue ()[0]);
+            out.writeInt ((int) e.getValue ()[1]);
+         }//end for
+         out.flush ();
+         file.getFD ().sync ();
+         out.close ();
+         return this._rows;
+      }
+
+      /**
+       * Moves both finished files into place, the index last
+       */
+      void publish () throws IOException {
+         File data = new File (this._dir, this._month + ".seg");
+         File index = new File (this._dir, this._month + ".idx");
+         index.delete ();
+         if (!this._tmp.renameTo (data) && !(data.delete () && this._tmp.renameTo (data)))
+            throw new IOException ("Cannot move " + this._tmp + " to " + data);
+         if (!this._indexTmp.renameTo (index))
+            throw new IOException ("Cannot move " + this._indexTmp + " to " + index);
+      }
+
+      /**
+       * Removes the partial files of a failed segment
+       */
+      void abort () {
+         try{
+            this._file.close ();
+         }catch (IOException e){
+            // ignored.
+         }//end try
+         this._tmp.delete ();
+         this._indexTmp.delete ();
+      }
+   }//end SegmentWriter
+
+   /**
+    * @return the directory set by archive.dir
+    */
+   static File directory () {
+      return new File (System.getProperty ("archive.dir", "archive"));
+   }//end directory
+
+   private final File _dir;
+
+   // the complete segments, newest month first, reloaded when the directory changes
+   private List<Segment> _segments = Collections.emptyList ();
+   private long _loaded = -1;
+
+   public MessageArchive (File dir) {
+      this._dir = dir;
+   }//end MessageArchive
+
+   private synchronized List<Segment> segments () throws IOException {
+      long modified = this._dir.lastModified ();
+      if (modified == this._loaded)
+         return this._segments;
+      List<Segment> segments = new ArrayList<Segment>();
+      String[] names = this._dir.list ();
+      if (names != null) {
+         Arrays.sort (names, Collections.reverseOrder ());
+         for (String name : names) {
+            if (!name.endsWith (".idx"))
+               continue;
+            String month = name.substring (0, name.length () - 4);
+            segments.add (new Segment (month, new File (this._dir, month + ".seg"), readIndex (new File (this._dir, name))));
+         }//end for
+      }//end if
+      this._segments = segments;
+      this._loaded = modified;
+      return segments;
+   }//end segments
+
+   private static Map<Integer, long[]> readIndex (File file) throws IOException {
+      DataInputStream in = new DataInputStream (new BufferedInputStream (new FileInputStream (file)));
+      try{
+         int n = in.readInt ();
+         Map<Integer, long[]> chats = new HashMap<Integer, long[]>(n * 2);
+         for (int i = 0; i < n; ++i) {
+            int chat = in.readInt ();
+            long offset = in.readLong ();
+            chats.put (chat, new long[] { offset, in.readInt () });
+         }//end for
+         return chats;
+      }finally{
+         in.close ();
+      }//end try
+   }//end readIndex
+
+   /**
+    * @return the chat's messages of one segment in chronological order
+    */
+   private static List<Row> read (Segment segment, int chat_id) throws IOException {
+      long[] entry = segment.chats.get (chat_id);
+      if (entry == null)
+         return Collections.emptyList ();
+      byte[] block = new byte[(int) entry[1]];
+      RandomAccessFile file = new RandomAccessFile (segment.data, "r");
+      try{
+         file.seek (entry[0]);
+         file.readFully (block);
+      }finally{
+         file.close ();
+      }//end try
+      DataInputStream in = new DataInputStream (new GZIPInputStream (new ByteArrayInputStream (block)));
+      List<Row> rows = new ArrayList<Row>();
+      try{
+         while (true) {
+            int msgId;
+            try{
+               msgId = in.readInt ();
+            }catch (EOFException e){
+               break;
+            }//end try
+            Timestamp ts = new Timestamp (in.readLong ());
+            ts.setNanos (in.readInt ());
+            rows.add (new Row (msgId, ts, in.readInt (), in.readUTF ()));
+         }//end while
+      }finally{
+         in.close ();
+      }//end try
+      return rows;
+   }//end read
+
+   /**
+    * Turns rows into messages, leaving out those of deleted accounts
+    */
+   private static List<ChatMessage> resolve (Messenger esql, List<Row> rows) throws SQLException {
+      Set<Integer> ids = new HashSet<Integer>();
+      for (Row r : rows)
+         ids.add (r.senderId);
+      Map<Integer, String> logins = new HashMap<Integer, String>();
+      if (!ids.isEmpty ()) {
+         StringBuilder array = new StringBuilder ("{");
+         for (Integer id : ids)
+            array.append (array.length () > 1 ? "," : "").append (id);
+         for (List<String> row : esql.executeQueryAndReturnResult (Queries.USER_LOGINS, array.append ('}').toString ()))
+            logins.put (Integer.valueOf (row.get (0).trim ()), row.get (1).trim ());
+      }//end if
+      List<ChatMessage> messages = new ArrayList<ChatMessage>(rows.size ());
+      for (Row r : rows) {
+         String login = logins.get (r.senderId);
+         if (login != null)
+            messages.add (new ChatMessage (login, r.msgId, r.timestamp, r.text));
+      }//end for
+      return messages;
+   }//end resolve
+
+   /**
+    * Reads the archived page of a chat before the given message, the newest
+    * archived page when it is null
+    *
+    * @return up to limit messages, oldest first
+    */
+   public List<ChatMessage> page (Messenger esql, int chat_id, ChatMessage before, int limit) throws SQLException {
+      List<Row> page = new ArrayList<Row>();
+      try{
+         for (Segment segment : segments ()) {
+            if (page.size () >= limit)
+               break;
+            List<Row> rows = read (segment, chat_id);
+            int end = rows.size ();
+            while (before != null && end > 0 && !rows.get (end - 1).before (before))
+               --end;
+            int start = Math.max (0, end - (limit - page.size ()));
+            page.addAll (0, rows.subList (start, end));
+         }//end for
+      }catch (IOException e){
+         throw new SQLException ("Archive: " + e.getMessage ());
+      }//end try
+      return resolve (esql, page);
+   }//end page
+
+   /**
+    * Streams a chat's archived messages from from (inclusive) to to
+    * (exclusive) oldest first, one month at a time; a null bound is open
+    *
+    * @return the number of messages streamed
+    */
+   public int stream (Messenger esql, int chat_id, Timestamp from, Timestamp to, RowHandler<ChatMessage> handler) throws SQLException {
+      int count = 0;
+      try{
+         List<Segment> segments = new ArrayList<Segment>(segments ());
+         Collections.reverse (segments);
+         for (Segment segment : segments) {
+            List<Row> rows = new ArrayList<Row>();
+            for (Row r : read (segment, chat_id)) {
+               if ((from == null || !r.timestamp.before (from)) && (to == null || r.timestamp.before (to)))
+                  rows.add (r);
+            }//end for
+            for (ChatMessage m : resolve (esql, rows)) {
+               handler.handle (m);
+               ++count;
+            }//end for
+         }//end for
+      }catch (IOException e){
+         throw new SQLException ("Archive: " + e.getMessage ());
+      }//end try
+      return count;
+   }//end stream
+
+}//end MessageArchive
@@ -0,0 +1,349 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Background worker that keeps MESSAGE partitioned by month.  Every
+ * archive.intervalMillis (one hour) it
+ *
+ *  - creates the partitions of the next archive.aheadMonths (2) months, and
+ *    of any month whose rows ended up in the default partition, moving
+ *    those rows out of it;
+ *  - archives the partitions older than archive.retentionMonths (12): the
+ *    partition is written to a segment in archive.dir (see MessageArchive)
+ *    and then detached and dropped.
+ *
+ * A partition is locked against writes while it is archived and dropped in
+ * the same transaction, so a message edited or deleted meanwhile waits
+ * rather than being lost.  Partitions are named <table>_p<yyyymm>.
+ *
+ * With messenger.shards every shard has its own archiver, archiving to the
+ * subdirectory of archive.dir named after the shard's database.
+ *
+ */
+public class MessageArchiver implements Runnable {
+
+   private static final Pattern MONTH = Pattern.compile ("_p(\\d{6})$");
+
+   private static final int AHEAD_MONTHS = Integer.getInteger ("archive.aheadMonths", 2);
+
+   private final int _retentionMonths = Integer.getInteger ("archive.retentionMonths", 12);
+   private final long _intervalMillis = Long.getLong ("archive.intervalMillis", 3600000L);
+   private final int _fetchSize = Integer.getInteger ("messenger.fetchSize", 500);
+
+   private final Messenger _esql;
+   private final File _dir;
+   private final int _shard;
+   private final Object _signal = new Object ();
+   private volatile boolean _running = true;
+   private Thread _thread;
+
+   public MessageArchiver (Messenger esql, File dir) {
+      this (esql, dir, 0);
+   }//end MessageArchiver
+
+   /**
+    * @param shard the shard whose partitions are maintained
+    */
+   public MessageArchiver (Messenger esql, File dir, int shard) {
+      this._esql = esql;
+      this._dir = dir;
+      this._shard = shard;
+   }//end MessageArchiver
+
+   /**
+    * Starts the worker thread
+    */
+   public synchronized void start () {
+      if (this._thread != null)
+         return;
+      this._thread = new Thread (this, this._shard == 0 ? "message-archiver" : "message-archiver-" + this._shard);
+      this._thread.setDaemon (true);
+      this._thread.start ();
+   }//end start
+
+   /**
+    * Stops the worker after the partition it is archiving
+    */
+   public void stop () {
+      this._running = false;
+      synchronized (this._signal) {
+         this._signal.notifyAll ();
+      }//end synchronized
+      Thread t;
+      synchronized (this) {
+         t = this._thread;
+      }//end synchronized
+      if (t == null)
+         return;
+      try{
+         t.join (5000);
+      }catch (InterruptedException e){
+         Thread.currentThread ().interrupt ();
+      }//end try
+   }//end stop
+
+   public void run () {
+      while (this._running) {
+         try{
+            Connection conn = this._esql.openConnection (this._shard);
+            try{
+               maintain (conn);
+            }finally{
+               conn.close ();
+            }//end try
+         }catch (Exception e){
+            System.err.println ("Message archive: " + e.getMessage ());
+         }//end try
+         synchronized (this._signal) {
+            try{
+               if (this._running)
+                  this._signal.wait (this._intervalMillis);
+            }catch (InterruptedException e){
+               this._running = false;
+            }//end try
+         }//end synchronized
+      }//end while
+   }//end run
+
+   /**
+    * Creates the coming partitions and archives the expired ones
+    */
+   public void maintain (Connection conn) throws SQLException, IOException {
+      createPartitions (conn, "MESSAGE", null);
+      archive (conn);
+   }//end maintain
+
+   /**
+    * @return the month partitions of a table by yyyymm, and the default
+    *         partition under the key "default"
+    */
+   static TreeMap<String, String> partitions (Connection conn, String table) throws SQLException {
+      TreeMap<String, String> partitions = new TreeMap<String, String>();
+      PreparedStatement stmt = conn.prepareStatement (
+         "SELECT C.relname, pg_get_expr(C.relpartbound, C.oid) FROM pg_inherits I JOIN pg_class C ON C.oid = I.inhrelid " +
+         "WHERE I.inhparent = ?::regclass");
+      try{
+         stmt.setString (1, table.toLowerCase (Locale.ROOT));
+         ResultSet rs = stmt.executeQuery ();
+         while (rs.next ()) {
+            String name = rs.getString (1);
+            Matcher m = MONTH.matcher (name);
+            if ("DEFAULT".equals (rs.getString (2)))
+               partitions.put ("default", name);
+            else if (m.find ())
+               partitions.put (m.group (1), name);
+         }//end while
+         rs.close ();
+      }finally{
+         stmt.close ();
+      }//end try
+      return partitions;
+   }//end partitions
+
+   private static void execute (Connection conn, String sql) throws SQLException {
+      Statement stmt = conn.createStatement ();
+      try{
+         stmt.execute (sql);
+      }finally{
+         stmt.close ();
+      }//end try
+   }//end execute
+
+   /**
+    * Creates the month partitions of a table from the month of from (this
+    * month when null) through archive.aheadMonths months from now, and for every
+    * month that has rows in the default partition.  Those rows are moved
+    * into the new partition before it is attached, each month in its own
+    * transaction.
+    *
+    * @return the number of partitions created
+    */
+   static int createPartitions (Connection conn, String table, Timestamp from) throws SQLException {
+      TreeMap<String, String> existing = partitions (conn, table);
+      String def = existing.get ("default");
+      String lower = table.toLowerCase (Locale.ROOT);
+
+      // the months to cover, computed by the server in its own time zone
+      List<String[]> months = new ArrayList<String[]>();
+      PreparedStatement stmt = conn.prepareStatement (
+         "SELECT to_char(m, 'YYYYMM'), m, m + interval '1 month' FROM generate_series(" +
+         "date_trunc('month', LEAST(COALESCE(?::timestamp, LOCALTIMESTAMP), LOCALTIMESTAMP" +
+            (def == null ? "" : ", (SELECT min(msg_timestamp) FROM " + def + ")") + ")), " +
+         "date_trunc('month', GREATEST(LOCALTIMESTAMP + ? * interval '1 month'" +
+            (def == null ? "" : ", (SELECT max(msg_timestamp) FROM " + def + ")") + ")), " +
+         "interval '1 month') m");
+      try{
+         Messenger.bind (stmt, new Object[] { from, AHEAD_MONTHS });
+         ResultSet rs = stmt.executeQuery ();
+         while (rs.next ()) {
+            if (!existing.containsKey (rs.getString (1)))
+               months.add (new String[] { rs.getString (1), rs.getString (2), rs.getString (3) });
+         }//end while
+         rs.close ();
+      }finally{
+         stmt.close ();
+      }//end try
+
+      boolean autoCommit = conn.getAutoCommit ();
+      conn.setAutoCommit (false);
+      try{
+         for (String[] month : months) {
+            String name = lower + "_p" + month[0];
+            String range = "msg_timestamp >= '" + month[1] + "' AND msg_timestamp < '" + month[2] + "'";
+            execute (conn, "CREATE TABLE " + name + " (LIKE " + table + " INCLUDING DEFAULTS)");
+            if (def != null) {
+               execute (conn, "INSERT INTO " + name + " SELECT * FROM " + def + " WHERE " + range);
+               // the rows only move, the delete must not fire the INBOX and
+               // search triggers as if the messages were deleted
+               execute (conn, "SET LOCAL session_replication_role = replica");
+               execute (conn, "DELETE FROM " + def + " WHERE " + range);
+               execute (conn, "SET LOCAL session_replication_role = origin");
+            }//end if
+            execute (conn, "ALTER TABLE " + table + " ATTACH PARTITION " + name +
+               " FOR VALUES FROM ('" + month[1] + "') TO ('" + month[2] + "')");
+            conn.commit ();
+         }//end for
+      }finally{
+         conn.rollback ();
+         conn.setAutoCommit (autoCommit);
+      }//end try
+      return months.size ();
+   }//end createPartitions
+
+   /**
+    * Archives every MESSAGE partition older than the retention, oldest first
+    *
+    * @return the number of partitions archived
+    */
+   public int archive (Connection conn) throws SQLException, IOException {
+      String cutoff;
+      Statement stmt = conn.createStatement ();
+      try{
+         ResultSet rs = stmt.executeQuery ("SELECT to_char(date_trunc('month', LOCALTIMESTAMP) - interval '" +
+            this._retentionMonths + " months', 'YYYYMM')");
+         rs.next ();
+         cutoff = rs.getString (1);
+         rs.close ();
+      }finally{
+         stmt.close ();
+      }//end try
+
+      int archived = 0;
+      for (Map.Entry<String, String> p : partitions (conn, "MESSAGE").headMap (cutoff).entrySet ()) {
+         if (!this._running)
+            break;
+         archivePartition (conn, p.getKey (), p.getValue ());
+         ++archived;
+      }//end for
+      return archived;
+   }//end archive
+
+   private void archivePartition (Connection conn, String month, String partition) throws SQLException, IOException {
+      long start = System.nanoTime ();
+      conn.setAutoCommit (false);
+      MessageArchive.SegmentWriter segment = null;
+      try{
+         // readers carry on, edits and deletes wait until it is dropped
+         execute (conn, "LOCK TABLE " + partition + " IN EXCLUSIVE MODE");
+         execute (conn, "DECLARE archive_cursor NO SCROLL CURSOR FOR " +
+            "SELECT chat_id, msg_id, msg_timestamp, sender_id, msg_text FROM " + partition +
+            " ORDER BY chat_id, msg_timestamp, msg_id");
+         segment = new MessageArchive.SegmentWriter (this._dir, month);
+         Statement fetch = conn.createStatement ();
+         try{
+            int fetched;
+            do {
+               fetched = 0;
+               ResultSet rs = fetch.executeQuery ("FETCH FORWARD " + this._fetchSize + " FROM archive_cursor");
+               while (rs.next ()) {
+                  segment.add (rs.getInt (1), rs.getInt (2), rs.getTimestamp (3), rs.getInt (4), rs.getString (5));
+                  ++fetched;
+               }//end while
+               rs.close ();
+            } while (fetched == this._fetchSize);
+            fetch.execute ("CLOSE archive_cursor");
+         }finally{
+            fetch.close ();
+         }//end try
+         long rows = segment.finish ();
+
+         execute (conn, "ALTER TABLE MESSAGE DETACH PARTITION " + partition);
+         execute (conn, "DROP TABLE " + partition);
+         conn.commit ();
+         // only now are the rows gone from the database; should the move fail
+         // the finished .tmp files stay in the archive directory to move by hand
+         MessageArchive.SegmentWriter done = segment;
+         segment = null;
+         done.publish ();
+         System.out.println (String.format ("Archived %s: %d messages in %.1fs", partition, rows,
+            (System.nanoTime () - start) / 1e9));
+      }finally{
+         if (segment != null)
+            segment.abort ();
+         conn.rollback ();
+         conn.setAutoCommit (true);
+      }//end try
+   }//end archivePartition
+
+   /**
+    * The main execution method, runs one round of maintenance e.g. from cron
+    *
+    * @param args the command line arguments <dbname> <port> <user>
+    */
+   public static void main (String[] args) {
+      if (args.length != 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] [-Darchive.dir=archive] [-Darchive.retentionMonths=12] " +
+            MessageArchiver.class.getName () +
+            " <dbname> <port> <user>");
+         System.exit (2);
+      }//end if
+
+      Connection conn = null;
+      try{
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+         conn = DriverManager.getConnection (url, args[2], "");
+         new MessageArchiver (null, MessageArchive.directory ()).maintain (conn);
+      }catch (Exception e){
+         System.err.println ("Error - archiving failed: " + e.getMessage ());
+         System.exit (1);
+      }finally{
+         try{
+            if (conn != null)
+               conn.close ();
+         }catch (SQLException e){
+            // ignored.
+         }//end try
+      }//end try
+   }//end main
+
+}//end MessageArchiver
@@ -0,0 +1,278 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Group-commit writer for new messages.  Sessions hand their messages to
+ * submit() and wait on the returned acknowledgement; a single writer
+ * thread collects them for up to writer.windowMillis (5) or until
+ * writer.batchSize (256) are waiting, and then writes the whole window as
+ * one JDBC batch in one transaction, so many messages share one commit
+ * (and one fsync) instead of paying for one each.
+ *
+ * Messages are written in the order they were submitted.  Their msg_ids
+ * are allocated in that order and every message of a window gets the
+ * window's transaction timestamp, so the (msg_timestamp, msg_id) order a
+ * chat is paged in matches the order its messages were sent.
+ *
+ * If a window fails as a whole, its messages are retried one by one so
+ * that only the offending message is reported as failed.  A sender waits
+ * at most writer.ackMillis (30000) for its acknowledgement.
+ *
+ * With messenger.shards every shard has a writer of its own (see
+ * Messenger.writer), so the shards commit their windows in parallel; a
+ * msg_id is then taken from its shard's sequence, which create_shards.sh
+ * interleaves with the others.
+ *
+ */
+public class MessageWriter implements Runnable {
+
+   private final long _windowMillis = Long.getLong ("writer.windowMillis", 5L);
+   private final int _batchSize = Integer.getInteger ("writer.batchSize", 256);
+   static final long ACK_MILLIS = Long.getLong ("writer.ackMillis", 30000L);
+
+   private final Messenger _esql;
+   private final int _shard;
+   private final LinkedBlockingQueue<Pending> _queue = new LinkedBlockingQueue<Pending>();
+   private final Thread _thread;
+   private volatile boolean _running = true;
+
+   private final AtomicLong _windows = new AtomicLong ();
+   private final AtomicLong _messages = new AtomicLong ();
+
+   // (msg_id, msg_timestamp) of a NEXT_MESSAGE_IDS row
+   private static final RowMapper<Object[]> ID_AND_TIME = new RowMapper<Object[]> () {
+      public Object[] map (ResultSet rs) throws SQLException {
+         return new Object[] { Integer.valueOf (rs.getInt (1)), rs.getTimestamp (2) };
+      }
+   };
+
+   /**
+    * The acknowledgement of one submitted message
+    */
+   public static class Pending {
+      final int chatId;
+      final String sender;
+      final String text;
+      private final CountDownLatch _done = new CountDownLatch (1);
+      private volatile int _msgId;
+      private volatile Timestamp _timestamp;
+      private volatile long _lsn;
+      private volatile SQLException _error;
+
+      Pending (int chatId, String sender, String text) {
+         this.chatId = chatId;
+         this.sender = sender;
+         this.text = text;
+      }
+
+      void succeed (int msgId, Timestamp timestamp, long lsn) {
+         this._msgId = msgId;
+         this._timestamp = timestamp;
+         this._lsn = lsn;
+         this._done.countDown ();
+      }//end succeed
+
+      void fail (SQLException error) {
+         this._error = error;
+         this._done.countDown ();
+      }//end fail
+
+      /**
+       * Waits until the message is committed, at most writer.ackMillis
+       *
+       * @return the msg_id of the message
+       * @throws java.sql.SQLException when the message could not be written
+       *         or was not acknowledged in time, it may still be written then
+       */
+      public int await () throws SQLException {
+         try{
+            if (!this._done.await (ACK_MILLIS, TimeUnit.MILLISECONDS))
+               throw new SQLException ("timed out waiting for the message to be written");
+         }catch (InterruptedException e){
+            Thread.currentThread ().interrupt ();
+            throw new SQLException ("interrupted while waiting for the message to be written");
+         }//end try
+         if (this._error != null)
+            throw this._error;
+         return this._msgId;
+      }//end await
+
+      /**
+       * Waits until the message is committed
+       *
+       * @return the row of the message as it was written
+       * @throws java.sql.SQLException when the message could not be written
+       */
+      public ChatMessage awaitMessage () throws SQLException {
+         int msgId = await ();
+         return new ChatMessage (this.sender, msgId, this._timestamp, this.text);
+      }//end awaitMessage
+
+      /**
+       * @return the primary's WAL position after the message's commit, 0
+       *         when not tracked (see Messenger.wrote)
+       */
+      long lsn () {
+         return this._lsn;
+      }//end lsn
+   }//end Pending
+
+   public MessageWriter (Messenger esql) {
+      this (esql, 0);
+   }//end MessageWriter
+
+   /**
+    * @param shard the shard whose messages this writer writes
+    */
+   public MessageWriter (Messenger esql, int shard) {
+      this._esql = esql;
+      this._shard = shard;
+      this._thread = new Thread (this, shard == 0 ? "message-writer" : "message-writer-" + shard);
+      this._thread.setDaemon (true);
+      this._thread.start ();
+   }//end MessageWriter
+
+   /**
+    * Queues a message for the next window
+    *
+    * @return the acknowledgement to wait on
+    * @throws java.sql.SQLException when the writer is closed
+    */
+   public Pending submit (int chat_id, String sender, String text) throws SQLException {
+      if (!this._running)
+         throw new SQLException ("the message writer is closed");
+      Pending p = new Pending (chat_id, sender, text);
+      this._queue.add (p);
+      // closed meanwhile: unless the writer thread took it, nobody will
+      if (!this._running && this._queue.remove (p))
+         p.fail (new SQLException ("the message writer is closed"));
+      return p;
+   }//end submit
+
+   /**
+    * Writes what is queued and stops the writer thread
+    */
+   public void close () {
+      this._running = false;
+      try{
+         this._thread.join (10000);
+      }catch (InterruptedException e){
+         Thread.currentThread ().interrupt ();
+      }//end try
+   }//end close
+
+   public void run () {
+      // the windows' transactions are on this writer's shard
+      if (this._esql.shards ().isSharded ())
+         this._esql.shards ().pin (this._shard);
+      List<Pending> window = new ArrayList<Pending>(this._batchSize);
+      while (this._running || !this._queue.isEmpty ()) {
+         try{
+            Pending first = this._queue.poll (100, TimeUnit.MILLISECONDS);
+            if (first == null)
+               continue;
+            window.add (first);
+            // the window opens with its first message
+            long deadline = System.nanoTime () + this._windowMillis * 1000000L;
+            while (window.size () < this._batchSize) {
+               long left = deadline - System.nanoTime ();
+               Pending next = left > 0 ? this._queue.poll (left, TimeUnit.NANOSECONDS) : this._queue.poll ();
+               if (next == null)
+                  break;
+               window.add (next);
+            }//end while
+         }catch (InterruptedException e){
+            this._running = false;
+         }//end try
+         if (!window.isEmpty ()) {
+            flush (window);
+            window.clear ();
+         }//end if
+      }//end while
+   }//end run
+
+   private void flush (List<Pending> window) {
+      OperationStats.Scope op = this._esql.stats ().begin ("MessageWriter");
+      try{
+         List<Object[]> ids = write (window);
+         long lsn = this._esql.lastWriteLsn ();
+         for (int i = 0; i < window.size (); ++i)
+            window.get (i).succeed ((Integer) ids.get (i)[0], (Timestamp) ids.get (i)[1], lsn);
+         this._windows.incrementAndGet ();
+         this._messages.addAndGet (window.size ());
+      }catch (SQLException e){
+         // find the message that broke the window, write the others alone
+         for (Pending p : window) {
+            try{
+               Object[] id = write (Collections.singletonList (p)).get (0);
+               p.succeed ((Integer) id[0], (Timestamp) id[1], this._esql.lastWriteLsn ());
+               this._windows.incrementAndGet ();
+               this._messages.incrementAndGet ();
+            }catch (SQLException single){
+               p.fail (single);
+            }//end try
+         }//end for
+      }finally{
+         op.end ();
+      }//end try
+   }//end flush
+
+   /**
+    * Writes the messages in one transaction
+    *
+    * @return the (msg_id, msg_timestamp) given to them, in order
+    */
+   private List<Object[]> write (List<Pending> messages) throws SQLException {
+      this._esql.begin ();
+      try{
+         // the timestamp is the transaction's, the same the inserts store
+         List<Object[]> ids = this._esql.query (Queries.NEXT_MESSAGE_IDS, ID_AND_TIME, messages.size ());
+         List<Object[]> rows = new ArrayList<Object[]>(messages.size ());
+         for (int i = 0; i < messages.size (); ++i) {
+            Pending p = messages.get (i);
+            rows.add (new Object[] { ids.get (i)[0], p.text, p.sender, Integer.valueOf (p.chatId) });
+         }//end for
+         int[] counts = this._esql.executeBatch (Queries.CREATE_MESSAGE_WITH_ID, rows);
+         for (int i = 0; i < counts.length; ++i) {
+            // an unknown sender inserts nothing, fail the window so it is retried one by one
+            if (counts[i] == 0)
+               throw new SQLException ("No such user: " + messages.get (i).sender.trim ());
+         }//end for
+         this._esql.commit ();
+         return ids;
+      }finally{
+         this._esql.rollback ();
+      }//end try
+   }//end write
+
+   /**
+    * Prints how many messages shared a commit on average
+    */
+   public void printStats () {
+      long windows = this._windows.get ();
+      System.out.println (String.format ("Message writer: %d messages in %d commits (%.1f per commit)",
+         this._messages.get (), windows, windows == 0 ? 0.0 : (double) this._messages.get () / windows));
+   }//end printStats
+
+}//end MessageWriter
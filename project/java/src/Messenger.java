@@ -11,18 +11,25 @@
  */
 
 
-import java.sql.DriverManager;
 import java.sql.Connection;
-import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -31,8 +38,66 @@ import java.util.ArrayList;
  */
 public class Messenger {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // number of messages fetched per page of chat history
+   public static final int MESSAGE_PAGE_SIZE = 10;
+
+   // number of hits shown per page of search results
+   public static final int SEARCH_PAGE_SIZE = 10;
+
+   // pool of physical database connections shared by all query methods.
+   private ConnectionPool _pool = null;
+
+   // the shards of the chats in messenger.shards, see ShardRouter
+   private ShardRouter _shards = null;
+
+   // pools of the read-only replicas in messenger.replicas, see acquire
+   private final List<ConnectionPool> _replicas = new ArrayList<ConnectionPool>();
+   private final AtomicInteger _nextReplica = new AtomicInteger();
+
+   // the WAL position each replica was last seen to have replayed
+   private final List<AtomicLong> _replayed = new ArrayList<AtomicLong>();
+
+   // the primary's WAL position after each thread's last write
+   private final ThreadLocal<Long> _lastWriteLsn = new ThreadLocal<Long>();
+
+   // the connection of each thread's open transaction, see begin()
+   private final ThreadLocal<PooledConnection> _transaction = new ThreadLocal<PooledConnection>();
+
+   // authenticated sessions and the credentials cache behind log in
+   private final SessionManager _sessions = new SessionManager(this);
+
+   // contact and block list members, kept per user
+   private final MembershipCache _lists = new MembershipCache(this);
+
+   // accounts with more messages than this are deleted in the background
+   private final int _purgeThreshold = Integer.getInteger("messenger.purgeThreshold", 5000);
+
+   // send messages through the group-commit writer
+   private final boolean _groupCommit = Boolean.getBoolean("messenger.groupCommit");
+
+   // write new messages in group-committed batches, one per shard, started when first needed
+   private MessageWriter[] _writers = null;
+
+   // push new chat messages to subscribers, one per shard, started when first needed
+   private ChatListener[] _listeners = null;
+
+   // deletes queued accounts in chunks, started when first needed
+   private AccountPurger _purger = null;
+
+   // create and archive MESSAGE partitions, one per shard, started by startArchiver
+   private final List<MessageArchiver> _archivers = new ArrayList<MessageArchiver>();
+
+   // the archived MESSAGE partitions of each shard, read when paging reaches them
+   private final List<MessageArchive> _archives = new ArrayList<MessageArchive>();
+
+   // rows fetched per round trip when a query is streamed through a cursor
+   private final int _fetchSize = Integer.getInteger("messenger.fetchSize", 500);
+
+   // round trips, rows and database time per logical operation
+   private final OperationStats _stats = new OperationStats();
+
+   // statements slower than slowlog.thresholdMillis, see SlowQueryLog
+   private final SlowQueryLog _slowLog = new SlowQueryLog();
 
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
@@ -56,8 +121,27 @@ public class Messenger {
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // set up the pool and obtain a first physical connection
+         this._pool = new ConnectionPool(url, user, passwd,
+            Integer.getInteger("messenger.poolSize", 4),
+            Integer.getInteger("messenger.stmtCacheSize", 64));
+         this._pool.release(this._pool.borrow());
+
+         // replicas are given as host:port, or a port on localhost
+         String replicas = System.getProperty("messenger.replicas", "").trim();
+         for (String r : replicas.length() == 0 ? new String[0] : replicas.split(",")) {
+            String host = r.trim().indexOf(':') < 0 ? "localhost:" + r.trim() : r.trim();
+            this._replicas.add(new ConnectionPool("jdbc:postgresql://" + host + "/" + dbname, user, passwd,
+               Integer.getInteger("messenger.replicaPoolSize", Integer.getInteger("messenger.poolSize", 4)),
+               Integer.getInteger("messenger.stmtCacheSize", 64)));
+            this._replayed.add(new AtomicLong());
+         }//end for
+
+         // the chats live on the databases in messenger.shards, if any
+         this._shards = new ShardRouter(this._pool, dbname, dbport, user, passwd,
+            System.getProperty("messenger.shards", ""));
+         for (int shard = 0; shard < this._shards.count(); ++shard)
+            this._archives.add(new MessageArchive(archiveDirectory(shard)));
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -66,65 +150,442 @@ public class Messenger {
       }//end catch
    }//end Messenger
 
+   /**
+    * Binds the given values to the placeholders of a prepared statement
+    *
+    * @param stmt the prepared statement
+    * @param params the values, in placeholder order
+    * @throws java.sql.SQLException when a value cannot be bound
+    */
+   static void bind (PreparedStatement stmt, Object[] params) throws SQLException {
+      for (int i = 0; i < params.length; ++i) {
+         Object p = params[i];
+         if (p == null)
+            stmt.setNull (i + 1, Types.VARCHAR);
+         else if (p instanceof Integer)
+            stmt.setInt (i + 1, ((Integer) p).intValue ());
+         else if (p instanceof Long)
+            stmt.setLong (i + 1, ((Long) p).longValue ());
+         else
+            stmt.setString (i + 1, p.toString ());
+      }//end for
+   }//end bind
+
+   /**
+    * Returns the connection of the caller's open transaction, or borrows
+    * one for a single statement from the database the statement belongs
+    * on (see route).  The statements in Queries.REPLICA_READS on the
+    * primary are read from a replica in turn, but only from one that has
+    * replayed the WAL up to the thread's last write (see wrote), so a
+    * session always reads its own writes; while no replica has, the read
+    * goes to the primary.  A replica that cannot be reached is skipped.
+    *
+    * @param sql the statement the connection is for
+    * @param params its bind values, for the chat_id it is routed by
+    * @throws java.sql.SQLException when the open transaction is on another database
+    */
+   private PooledConnection acquire (String sql, Object[] params) throws SQLException {
+      ConnectionPool target = route (sql, params);
+      PooledConnection conn = this._transaction.get ();
+      if (conn != null) {
+         if (conn.getPool () != target)
+            throw new SQLException ("the open transaction is on another database than the statement: " + sql);
+         return conn;
+      }//end if
+      if (target == this._pool && !this._replicas.isEmpty () && Queries.REPLICA_READS.contains (sql)) {
+         Long lsn = this._lastWriteLsn.get ();
+         int n = this._replicas.size ();
+         int first = this._nextReplica.getAndIncrement () & Integer.MAX_VALUE;
+         for (int i = 0; i < n; ++i) {
+            int r = (first + i) % n;
+            PooledConnection replica = null;
+            try{
+               replica = this._replicas.get (r).borrow ();
+               if (lsn == null || caughtUp (r, replica, lsn.longValue ()))
+                  return replica;
+            }catch (SQLException e){
+               System.err.println ("Replica unavailable: " + e.getMessage ());
+            }//end try
+            if (replica != null)
+               replica.getPool ().release (replica);
+         }//end for
+      }//end if
+      return target.borrow ();
+   }//end acquire
+
+   /**
+    * Picks the database of a statement: the ones of Queries.CHAT_KEY run
+    * on the shard of their chat_id, the ones of Queries.ALL_SHARDS on the
+    * shard the thread is pinned to by forEachShard, the rest on the
+    * directory.  Without messenger.shards everything runs on the one
+    * database.
+    */
+   private ConnectionPool route (String sql, Object[] params) throws SQLException {
+      if (!this._shards.isSharded ())
+         return this._pool;
+      Integer key = Queries.CHAT_KEY.get (sql);
+      if (key != null && key.intValue () < params.length) {
+         Object chat_id = params[key.intValue ()];
+         try{
+            return this._shards.pool (this._shards.shardOf (chat_id instanceof Integer
+               ? ((Integer) chat_id).intValue () : Integer.parseInt (String.valueOf (chat_id).trim ())));
+         }catch (NumberFormatException e){
+            throw new SQLException ("not a chat id: " + chat_id);
+         }//end try
+      }//end if
+      if (Queries.ALL_SHARDS.contains (sql)) {
+         int shard = this._shards.pinned ();
+         if (shard < 0)
+            throw new SQLException ("the statement runs on every shard, use forEachShard: " + sql);
+         return this._shards.pool (shard);
+      }//end if
+      return this._pool;
+   }//end route
+
+   /**
+    * Returns a connection taken by acquire to its pool, unless it belongs
+    * to the caller's open transaction
+    */
+   private void releaseIfIdle (PooledConnection conn) {
+      if (this._transaction.get () != conn)
+         conn.getPool ().release (conn);
+   }//end releaseIfIdle
+
+   /**
+    * @return true if replica r has replayed the WAL up to lsn, asking it
+    *         only when the position it was last seen at is not far enough
+    */
+   private boolean caughtUp (int r, PooledConnection replica, long lsn) throws SQLException {
+      AtomicLong replayed = this._replayed.get (r);
+      if (replayed.get () >= lsn)
+         return true;
+      long now = walPosition (replica, Queries.REPLAYED_WAL_LSN);
+      long seen = replayed.get ();
+      while (now > seen && !replayed.compareAndSet (seen, now))
+         seen = replayed.get ();
+      return now >= lsn;
+   }//end caughtUp
+
+   /**
+    * Notes that the calling thread wrote on conn.  Outside a transaction
+    * this records the primary's WAL position, one more round trip per
+    * write when there are replicas; in a transaction commit records it.
+    */
+   private void wrote (PooledConnection conn) throws SQLException {
+      if (this._transaction.get () != conn)
+         committed (conn);
+   }//end wrote
+
+   private void committed (PooledConnection conn) throws SQLException {
+      if (!this._replicas.isEmpty () && conn.getPool () == this._pool)
+         wrote (walPosition (conn, Queries.CURRENT_WAL_LSN));
+   }//end committed
+
+   /**
+    * Notes a write at the given WAL position for the calling thread, e.g.
+    * one the message writer committed on its behalf
+    */
+   void wrote (long lsn) {
+      Long last = this._lastWriteLsn.get ();
+      if (lsn > 0 && (last == null || last.longValue () < lsn))
+         this._lastWriteLsn.set (lsn);
+   }//end wrote
+
+   /**
+    * @return the WAL position of the calling thread's last write on the
+    *         primary, 0 if it has none
+    */
+   long lastWriteLsn () {
+      Long last = this._lastWriteLsn.get ();
+      return last == null ? 0 : last.longValue ();
+   }//end lastWriteLsn
+
+   /**
+    * Runs one of the WAL position queries on conn
+    *
+    * @return the position as a number, 0 when the server has none
+    */
+   private static long walPosition (PooledConnection conn, String sql) throws SQLException {
+      ResultSet rs = conn.prepare (sql).executeQuery ();
+      try{
+         // a position reads hi/lo in hex
+         String lsn = rs.next () ? rs.getString (1) : null;
+         if (lsn == null)
+            return 0;
+         int slash = lsn.indexOf ('/');
+         return (Long.parseLong (lsn.substring (0, slash), 16) << 32) | Long.parseLong (lsn.substring (slash + 1), 16);
+      }finally{
+         rs.close ();
+      }//end try
+   }//end walPosition
+
+   /**
+    * Starts a transaction for the calling thread.  Every statement the
+    * thread issues through this object runs in it until commit or rollback.
+    * The transaction is on the directory, or on the shard the thread is
+    * pinned to: statements for another database fail rather than escape it.
+    *
+    * @throws java.sql.SQLException when the thread already has an open transaction
+    */
+   public void begin () throws SQLException {
+      if (this._transaction.get () != null)
+         throw new SQLException ("a transaction is already open on this thread");
+      int shard = this._shards.pinned ();
+      ConnectionPool pool = shard < 0 ? this._pool : this._shards.pool (shard);
+      PooledConnection conn = pool.borrow ();
+      try{
+         conn.getConnection ().setAutoCommit (false);
+      }catch (SQLException e){
+         pool.release (conn);
+         throw e;
+      }//end try
+      this._transaction.set (conn);
+   }//end begin
+
+   /**
+    * Starts a transaction unless the calling thread already has one
+    *
+    * @return true if a transaction was started, the caller then ends it
+    */
+   boolean beginIfNone () throws SQLException {
+      if (this._transaction.get () != null)
+         return false;
+      begin ();
+      return true;
+   }//end beginIfNone
+
+   /**
+    * Commits the calling thread's transaction
+    */
+   public void commit () throws SQLException {
+      PooledConnection conn = this._transaction.get ();
+      if (conn == null)
+         throw new SQLException ("no transaction is open on this thread");
+      long start = System.nanoTime ();
+      boolean ok = false;
+      try{
+         conn.getConnection ().commit ();
+         committed (conn);
+         ok = true;
+      }finally{
+         done ("COMMIT", null, start, 0, ok);
+         endTransaction (conn);
+      }//end try
+   }//end commit
+
+   /**
+    * Rolls back the calling thread's transaction, if it has one
+    */
+   public void rollback () {
+      PooledConnection conn = this._transaction.get ();
+      if (conn == null)
+         return;
+      long start = System.nanoTime ();
+      try{
+         conn.getConnection ().rollback ();
+      }catch (SQLException e){
+         System.err.println (e.getMessage ());
+      }finally{
+         done ("ROLLBACK", null, start, 0, true);
+         endTransaction (conn);
+      }//end try
+   }//end rollback
+
+   private void endTransaction (PooledConnection conn) {
+      this._transaction.remove ();
+      try{
+         conn.getConnection ().setAutoCommit (true);
+      }catch (SQLException e){
+         // the pool drops connections that are no longer usable
+      }finally{
+         conn.getPool ().release (conn);
+      }//end try
+   }//end endTransaction
+
+   /**
+    * Accounts for one round trip a helper made: charges it to the calling
+    * thread's operation and logs it if it was slow
+    *
+    * @param sql the statement
+    * @param params its bind values, may be null
+    * @param start System.nanoTime () when it was sent
+    * @param rows the rows it returned or changed
+    * @param ok false if it failed
+    */
+   private void done (String sql, Object[] params, long start, long rows, boolean ok) {
+      done (sql, params, start, System.nanoTime (), rows, ok);
+   }//end done
+
+   private void done (String sql, Object[] params, long start, long end, long rows, boolean ok) {
+      long nanos = end - start;
+      this._stats.record (nanos, rows, !ok);
+      if (this._slowLog.enabled ())
+         this._slowLog.check (sql, params, nanos, rows, this._stats.current (), this._transaction.get () != null,
+            explainPool (sql, params));
+   }//end done
+
+   // where a slow statement is explained, null for COMMIT and the like
+   private ConnectionPool explainPool (String sql, Object[] params) {
+      try{
+         return route (sql, params == null ? new Object[0] : params);
+      }catch (SQLException e){
+         return null;
+      }//end try
+   }//end explainPool
+
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
     * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
     *
-    * @param sql the input SQL string
+    * @param sql the input SQL string with '?' placeholders
+    * @param params the values bound to the placeholders
+    * @return the number of rows affected
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      int rows = 0;
+      boolean ok = false;
+      PooledConnection conn = acquire (sql, params);
+      try{
+         // fetches the cached statement object and binds the values
+         PreparedStatement stmt = conn.prepare (sql);
+         bind (stmt, params);
 
-      // close the instruction
-      stmt.close ();
+         // issues the update instruction
+         rows = stmt.executeUpdate ();
+         wrote (conn);
+         ok = true;
+         return rows;
+      }finally{
+         releaseIfIdle (conn);
+         done (sql, params, start, rows, ok);
+      }//end try
    }//end executeUpdate
 
+   /**
+    * Executes an INSERT ... SELECT that maps a login to its user_id; an
+    * unknown login inserts nothing, which is reported as an error the way a
+    * foreign key violation would be.
+    *
+    * @param login the login the statement looks up, for the message
+    * @throws java.sql.SQLException when there is no such user
+    */
+   private void insertForUser (String login, String sql, Object... params) throws SQLException {
+      if (executeUpdate (sql, params) == 0)
+         throw new SQLException ("No such user: " + login.trim ());
+   }//end insertForUser
+
+   /**
+    * Opens a connection outside the pool for long lived session state such
+    * as LISTEN, the caller closes it
+    *
+    * @return a new connection
+    * @throws java.sql.SQLException when failed to make a connection
+    */
+   Connection openConnection () throws SQLException {
+      return this._pool.connect ();
+   }//end openConnection
+
+   /**
+    * Opens a connection outside the pool to a shard, the caller closes it
+    */
+   Connection openConnection (int shard) throws SQLException {
+      return this._shards.pool (shard).connect ();
+   }//end openConnection
+
+   /**
+    * @return the shards of the chats, a single one without messenger.shards
+    */
+   public ShardRouter shards () {
+      return this._shards;
+   }//end shards
+
+   /**
+    * @return where a shard's archive is, archive.dir itself without messenger.shards
+    */
+   private File archiveDirectory (int shard) {
+      File dir = MessageArchive.directory ();
+      return this._shards.isSharded () ? new File (dir, this._shards.name (shard)) : dir;
+   }//end archiveDirectory
+
+   /**
+    * Returns the round trips, rows and database time of every logical
+    * operation.  Callers tag their work with stats().begin(name).
+    *
+    * @return the statistics of this object's query helpers
+    */
+   public OperationStats stats () {
+      return this._stats;
+   }//end stats
+
+   /**
+    * Method to execute the same update SQL statement for many rows as one
+    * JDBC batch.
+    *
+    * @param sql the input SQL string with '?' placeholders
+    * @param rows the values bound for each execution
+    * @return the number of rows affected by each execution
+    * @throws java.sql.SQLException when update failed
+    */
+   public int[] executeBatch (String sql, List<Object[]> rows) throws SQLException {
+      long start = System.nanoTime ();
+      long affected = 0;
+      boolean ok = false;
+      PooledConnection conn = acquire (sql, rows.isEmpty () ? new Object[0] : rows.get (0));
+      try{
+         PreparedStatement stmt = conn.prepare (sql);
+         for (Object[] params : rows) {
+            bind (stmt, params);
+            stmt.addBatch ();
+         }//end for
+         int[] counts = stmt.executeBatch ();
+         wrote (conn);
+         for (int n : counts)
+            affected += Math.max (n, 0);
+         ok = true;
+         return counts;
+      }finally{
+         releaseIfIdle (conn);
+         done (sql, rows.isEmpty () ? null : rows.get (0), start, affected, ok);
+      }//end try
+   }//end executeBatch
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and outputs the results to
-    * standard out.
+    * standard out.  The rows are streamed, so the result is never held in
+    * memory as a whole.
     *
-    * @param query the input query string
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
+   public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
       // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-	 if(outputHeader){
-	    for(int i = 1; i <= numCol; i++){
-		System.out.print(rsmd.getColumnName(i) + "\t");
-	    }
-	    System.out.println();
-	    outputHeader = false;
-	 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
-      return rowCount;
+      return stream (query, new RowMapper<Void> () {
+         private boolean outputHeader = true;
+         public Void map (ResultSet rs) throws SQLException {
+            /*
+             ** obtains the metadata object for the returned result set.  The metadata
+             ** contains row and column info.
+             */
+            ResultSetMetaData rsmd = rs.getMetaData ();
+            int numCol = rsmd.getColumnCount ();
+            if(outputHeader){
+               for(int i = 1; i <= numCol; i++){
+                  System.out.print(rsmd.getColumnName(i) + "\t");
+               }
+               System.out.println();
+               outputHeader = false;
+            }
+            for (int i=1; i<=numCol; ++i)
+               System.out.print (rs.getString (i) + "\t");
+            System.out.println ();
+            return null;
+         }
+      }, null, params);
    }//end executeQuery
 
    /**
@@ -132,93 +593,925 @@ public class Messenger {
     * method issues the query to the DBMS and returns the results as
     * a list of records. Each record in turn is a list of attribute values
     *
-    * @param query the input query string
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders
     * @return the query result as a list of records
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-      // creates a statement object 
-      Statement stmt = this._connection.createStatement (); 
- 
-      // issues the query instruction 
-      ResultSet rs = stmt.executeQuery (query); 
- 
-      /* 
-       ** obtains the metadata object for the returned result set.  The metadata 
-       ** contains row and column info. 
-       */ 
-      ResultSetMetaData rsmd = rs.getMetaData (); 
-      int numCol = rsmd.getColumnCount (); 
-      int rowCount = 0; 
- 
-      // iterates through the result set and saves the data returned by the query. 
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>(); 
-      while (rs.next()){
-          List<String> record = new ArrayList<String>(); 
-         for (int i=1; i<=numCol; ++i) 
-            record.add(rs.getString (i)); 
-         result.add(record); 
-      }//end while 
-      stmt.close (); 
-      return result; 
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      return query (query, RowMapper.STRINGS, params);
    }//end executeQueryAndReturnResult
 
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT).  This
+    * method issues the query to the DBMS and returns the rows as typed
+    * values.  The whole result is kept in memory, use stream for results
+    * that may be large.
+    *
+    * @param query the input query string with '?' placeholders
+    * @param mapper turns each row into a value
+    * @param params the values bound to the placeholders
+    * @return the mapped rows in result order
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> List<T> query (String query, RowMapper<T> mapper, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      List<T> result = new ArrayList<T>();
+      boolean ok = false;
+      PooledConnection conn = acquire (query, params);
+      try{
+         PreparedStatement stmt = conn.prepare (query);
+         bind (stmt, params);
+
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery ();
+         while (rs.next ())
+            result.add (mapper.map (rs));
+         rs.close ();
+         // INSERT ... RETURNING and the like
+         if (!query.startsWith ("SELECT"))
+            wrote (conn);
+         ok = true;
+         return result;
+      }finally{
+         releaseIfIdle (conn);
+         done (query, params, start, result.size (), ok);
+      }//end try
+   }//end query
+
+   /**
+    * Method to execute a query that returns at most one interesting row.
+    *
+    * @param query the input query string with '?' placeholders
+    * @param mapper turns the row into a value
+    * @param params the values bound to the placeholders
+    * @return the first row mapped, or null if the query returned no row
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> T queryOne (String query, RowMapper<T> mapper, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      T value = null;
+      boolean ok = false;
+      PooledConnection conn = acquire (query, params);
+      try{
+         PreparedStatement stmt = conn.prepare (query);
+         bind (stmt, params);
+         ResultSet rs = stmt.executeQuery ();
+         if (rs.next ())
+            value = mapper.map (rs);
+         rs.close ();
+         if (!query.startsWith ("SELECT"))
+            wrote (conn);
+         ok = true;
+         return value;
+      }finally{
+         releaseIfIdle (conn);
+         done (query, params, start, value == null ? 0 : 1, ok);
+      }//end try
+   }//end queryOne
+
+   /**
+    * Method to execute a query whose result may be too large to hold in
+    * memory.  The query runs through a server-side cursor in its own
+    * transaction and its rows are fetched messenger.fetchSize at a time
+    * (the driver ignores Statement.setFetchSize), mapped and handed to the
+    * handler one by one.
+    *
+    * @param query the input query string with '?' placeholders
+    * @param mapper turns each row into a value
+    * @param handler receives every mapped row, may be null
+    * @param params the values bound to the placeholders
+    * @return the number of rows streamed
+    * @throws java.sql.SQLException when failed to execute the query or the handler failed
+    */
+   public <T> int stream (String query, RowMapper<T> mapper, RowHandler<? super T> handler, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      PooledConnection conn = acquire (query, params);
+      Connection c = conn.getConnection ();
+      // a cursor only lives inside a transaction, open one unless the caller has
+      boolean own = this._transaction.get () == null;
+      boolean done = false;
+      try{
+         if (own)
+            c.setAutoCommit (false);
+         // DECLARE cannot be server-prepared, so it is not taken from the cache
+         PreparedStatement declare = c.prepareStatement ("DECLARE messenger_stream CURSOR FOR " + query);
+         try{
+            bind (declare, params);
+            declare.execute ();
+         }finally{
+            declare.close ();
+         }//end try
+         done (query, params, start, 0, true);
+
+         int rowCount = 0;
+         Statement fetch = c.createStatement ();
+         try{
+            String sql = "FETCH FORWARD " + this._fetchSize + " FROM messenger_stream";
+            int fetched;
+            do {
+               start = System.nanoTime ();
+               ResultSet rs = fetch.executeQuery (sql);
+               // the handler's time is not the database's
+               long fetchedAt = System.nanoTime ();
+               fetched = 0;
+               while (rs.next ()) {
+                  T row = mapper.map (rs);
+                  if (handler != null)
+                     handler.handle (row);
+                  ++fetched;
+               }//end while
+               rs.close ();
+               done (query, params, start, fetchedAt, fetched, true);
+               rowCount += fetched;
+            } while (fetched == this._fetchSize);
+            start = System.nanoTime ();
+            fetch.execute ("CLOSE messenger_stream");
+            if (own)
+               c.commit ();
+            done ("CLOSE messenger_stream", null, start, 0, true);
+         }finally{
+            fetch.close ();
+         }//end try
+         done = true;
+         return rowCount;
+      }finally{
+         if (!done)
+            done (query, params, start, 0, false);
+         if (own) {
+            try{
+               if (!done)
+                  c.rollback ();
+               c.setAutoCommit (true);
+            }finally{
+               releaseIfIdle (conn);
+            }//end try
+         }//end if
+      }//end try
+   }//end stream
+
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
     *
-    * @param query the input query string
+    * @param query the input query string with '?' placeholders
+    * @param params the values bound to the placeholders
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
-
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+   public int executeQuery (String query, Object... params) throws SQLException {
+      long start = System.nanoTime ();
+      int rowCount = 0;
+      boolean ok = false;
+      PooledConnection conn = acquire (query, params);
+      try{
+         PreparedStatement stmt = conn.prepare (query);
+         bind (stmt, params);
 
-       int rowCount = 0;
+         // issues the query instruction
+         ResultSet rs = stmt.executeQuery ();
 
-       // iterates through the result set and count nuber of results.
-       if(rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
+         // iterates through the result set and count nuber of results.
+         if(rs.next()){
+            rowCount++;
+         }//end while
+         rs.close ();
+         ok = true;
+         return rowCount;
+      }finally{
+         releaseIfIdle (conn);
+         done (query, params, start, rowCount, ok);
+      }//end try
    }
 
    /**
-    * Method to fetch the last value from sequence. This
-    * method issues the query to the DBMS and returns the current 
-    * value of sequence used for autogenerated keys
+    * Method to allocate the next value from a sequence. This
+    * method issues the query to the DBMS and returns the new
+    * value of sequence used for autogenerated keys.  Unlike currval the
+    * value does not depend on which pooled connection ran the insert.
     *
     * @param sequence name of the DB sequence
-    * @return current value of a sequence
+    * @return next value of a sequence
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
-	
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
+   public int getNextSeqVal(String sequence) throws SQLException {
+      long start = System.nanoTime ();
+      boolean ok = false;
+      PooledConnection conn = acquire (Queries.NEXT_SEQ_VAL, new Object[] { sequence });
+      try{
+         PreparedStatement stmt = conn.prepare (Queries.NEXT_SEQ_VAL);
+         bind (stmt, new Object[] { sequence });
+         ResultSet rs = stmt.executeQuery ();
+         int value = -1;
+         if (rs.next())
+            value = rs.getInt(1);
+         rs.close ();
+         ok = true;
+         return value;
+      }finally{
+         releaseIfIdle (conn);
+         done (Queries.NEXT_SEQ_VAL, new Object[] { sequence }, start, ok ? 1 : 0, ok);
+      }//end try
    }
 
    /**
-    * Method to close the physical connection if it is open.
+    * Method to close the physical connections if they are open.
     */
    public void cleanup(){
+      synchronized (this) {
+         if (this._purger != null)
+            this._purger.stop();
+         for (MessageArchiver archiver : this._archivers)
+            archiver.stop();
+         // the writer commits what is still queued before the pool closes
+         if (this._writers != null) {
+            for (MessageWriter writer : this._writers)
+               if (writer != null)
+                  writer.close();
+         }
+         if (this._listeners != null) {
+            for (ChatListener listener : this._listeners)
+               if (listener != null)
+                  listener.close();
+         }
+      }
+      this._slowLog.close();
+      if (this._pool != null){
+         // the switch to show how much work the statement cache saved
+         if (Boolean.getBoolean("messenger.poolStats")) {
+            this._pool.printStats ();
+            for (ConnectionPool replica : this._replicas) {
+               System.out.println ("Replica:");
+               replica.printStats ();
+            }
+            if (this._shards != null && this._shards.isSharded ()) {
+               for (int shard = 0; shard < this._shards.count (); ++shard) {
+                  System.out.println ("Shard " + this._shards.name (shard) + ":");
+                  this._shards.pool (shard).printStats ();
+               }
+            }
+            this._stats.printStats ();
+            if (this._writers != null) {
+               for (MessageWriter writer : this._writers)
+                  if (writer != null)
+                     writer.printStats ();
+            }
+         }
+         this._pool.close ();
+      }//end if
+      for (ConnectionPool replica : this._replicas)
+         replica.close ();
+      if (this._shards != null)
+         this._shards.close ();
+   }//end cleanup
+
+//-----------------Operations (no console I/O)-------------
+// The menu functions below read their input from the keyboard and call these.
+// They report failures by throwing, so other callers (load drivers, servers)
+// can tell a failed operation from a successful one.
+
+   /**
+    * Creates a new user together with an empty block and contact list.  A
+    * single statement inserts all three rows, so it takes one round trip
+    * and either all of them are created or none.
+    */
+   public void createUser(String login, String password, String phone) throws SQLException {
+      executeUpdate(Queries.CREATE_USER_ACCOUNT, phone, login, SessionManager.hashPassword(password));
+   }//end createUser
+
+   /**
+    * Creates many accounts in one transaction: the list ids for all of
+    * them are allocated in one query, then the lists and users are inserted
+    * with the multi-row INSERTs of Queries (see insertRows).  Either every account of the call is created
+    * or none is.
+    * @param accounts (login, password, phone) triples
+    * @return the number of accounts created
+    */
+   public int provisionUsers(List<String[]> accounts) throws SQLException {
+      if (accounts.isEmpty())
+         return 0;
+      begin();
+      try{
+         List<Integer> ids = query(Queries.NEXT_SEQ_VALS, RowMapper.INTEGER, "user_list_list_id_seq", 2 * accounts.size());
+         List<Object[]> lists = new ArrayList<Object[]>(2 * accounts.size());
+         List<Object[]> users = new ArrayList<Object[]>(accounts.size());
+         for (int i = 0; i < accounts.size(); ++i) {
+            String[] a = accounts.get(i);
+            Integer block_id = ids.get(2 * i);
+            Integer contact_id = ids.get(2 * i + 1);
+            lists.add(new Object[] { block_id, "block" });
+            lists.add(new Object[] { contact_id, "contact" });
+            users.add(new Object[] { a[2], a[0], SessionManager.hashPassword(a[1]), block_id, contact_id });
+         }//end for
+         insertRows(Queries.PROVISION_LISTS, Queries.PROVISION_LIST, lists);
+         insertRows(Queries.PROVISION_USERS, Queries.PROVISION_USER, users);
+         commit();
+         return accounts.size();
+      }finally{
+         rollback();
+      }//end try
+   }//end provisionUsers
+
+   /**
+    * Inserts the rows Queries.PROVISION_ROWS at a time with the multi-row
+    * statement, and the rows left over with the single-row one in a batch
+    */
+   private void insertRows(String full, String single, List<Object[]> rows) throws SQLException {
+      int from = 0;
+      for (; from + Queries.PROVISION_ROWS <= rows.size(); from += Queries.PROVISION_ROWS) {
+         int width = rows.get(from).length;
+         Object[] params = new Object[Queries.PROVISION_ROWS * width];
+         for (int r = 0; r < Queries.PROVISION_ROWS; ++r)
+            System.arraycopy(rows.get(from + r), 0, params, r * width, width);
+         executeUpdate(full, params);
+      }//end for
+      if (from < rows.size())
+         executeBatch(single, rows.subList(from, rows.size()));
+   }//end insertRows
+
+   /**
+    * Checks log in credentials for an existing user
+    */
+   public boolean logIn(String login, String password) throws SQLException {
+      return this._sessions.logIn(login, password) != null;
+   }//end logIn
+
+   /**
+    * Checks log in credentials and opens a session that remembers the
+    * user's list ids
+    * @return the session, or null if the login or password is wrong
+    */
+   public UserSession openSession(String login, String password) throws SQLException {
+      return this._sessions.logIn(login, password);
+   }//end openSession
+
+   /**
+    * @return the session opened with the given token, or null if it is unknown or has lapsed
+    */
+   public UserSession resumeSession(String token) {
+      return this._sessions.resume(token);
+   }//end resumeSession
+
+   public void closeSession(UserSession session) {
+      this._sessions.logOut(session.getToken());
+   }//end closeSession
+
+   /**
+    * Adds a member to one of the owner's lists.  The cached list answers
+    * whether the member is already on it, the write then invalidates it.
+    */
+   private void addListMember(String owner, int list_id, boolean contacts, String member) throws SQLException {
+      if (contacts ? this._lists.isContact(owner, member) : this._lists.isBlocked(owner, member))
+         throw new SQLException(member.trim() + " is already on the " + (contacts ? "contact" : "block") + " list");
+      try{
+         insertForUser(member, Queries.ADD_LIST_MEMBER, list_id, member);
+      }finally{
+         this._lists.invalidate(owner);
+      }//end try
+   }//end addListMember
+
+   private void deleteListMember(String owner, int list_id, String member) throws SQLException {
       try{
-         if (this._connection != null){
-            this._connection.close ();
+         executeUpdate(Queries.DELETE_LIST_MEMBER, list_id, member);
+      }finally{
+         this._lists.invalidate(owner);
+      }//end try
+   }//end deleteListMember
+
+   public void addToContact(String authorisedUser, String userToAdd) throws SQLException {
+      addListMember(authorisedUser, this._lists.contactList(authorisedUser), true, userToAdd);
+   }//end addToContact
+
+   public void addToBlocked(String authorisedUser, String userToAdd) throws SQLException {
+      addListMember(authorisedUser, this._lists.blockList(authorisedUser), false, userToAdd);
+   }//end addToBlocked
+
+   public void deleteContact(String authorisedUser, String user_to_del) throws SQLException {
+      deleteListMember(authorisedUser, this._lists.contactList(authorisedUser), user_to_del);
+   }//end deleteContact
+
+   public void deleteBlocked(String authorisedUser, String user_to_del) throws SQLException {
+      deleteListMember(authorisedUser, this._lists.blockList(authorisedUser), user_to_del);
+   }//end deleteBlocked
+
+   //the same for a logged in session, which already knows its list ids
+   public void addToContact(UserSession session, String userToAdd) throws SQLException {
+      addListMember(session.getLogin(), session.getContactList(), true, userToAdd);
+   }//end addToContact
+
+   public void addToBlocked(UserSession session, String userToAdd) throws SQLException {
+      addListMember(session.getLogin(), session.getBlockList(), false, userToAdd);
+   }//end addToBlocked
+
+   public void deleteContact(UserSession session, String user_to_del) throws SQLException {
+      deleteListMember(session.getLogin(), session.getContactList(), user_to_del);
+   }//end deleteContact
+
+   public void deleteBlocked(UserSession session, String user_to_del) throws SQLException {
+      deleteListMember(session.getLogin(), session.getBlockList(), user_to_del);
+   }//end deleteBlocked
+
+   /**
+    * @return the user's contacts as (login, status) rows, served from the list cache
+    */
+   public List<List<String>> listContacts(String authorisedUser) throws SQLException {
+      return this._lists.contacts(authorisedUser);
+   }//end listContacts
+
+   /**
+    * @return the logins on the user's block list, served from the list cache
+    */
+   public List<List<String>> listBlocked(String authorisedUser) throws SQLException {
+      return this._lists.blocked(authorisedUser);
+   }//end listBlocked
+
+   public boolean isContact(String authorisedUser, String member) throws SQLException {
+      return this._lists.isContact(authorisedUser, member);
+   }//end isContact
+
+   public boolean isBlocked(String authorisedUser, String member) throws SQLException {
+      return this._lists.isBlocked(authorisedUser, member);
+   }//end isBlocked
+
+   /**
+    * @return the user's chats, most recent first, as (chat_id, last sender,
+    *         last timestamp, preview, unread) rows
+    */
+   public List<List<String>> inbox(String authorisedUser) throws SQLException {
+      if (!this._shards.isSharded())
+         return executeQueryAndReturnResult(Queries.USER_INBOX, authorisedUser);
+      List<List<String>> inbox = gather(Queries.USER_INBOX, authorisedUser);
+      Collections.sort(inbox, INBOX_ORDER);
+      return inbox;
+   }//end inbox
+
+   // the order of USER_INBOX, to merge the inboxes of the shards
+   private static final Comparator<List<String>> INBOX_ORDER = new Comparator<List<String>>() {
+      public int compare(List<String> a, List<String> b) {
+         String ta = a.get(2), tb = b.get(2);
+         if (ta == null || tb == null) {
+            if (ta != tb)
+               return ta == null ? 1 : -1;
+         }else{
+            //the timestamps share one format, so their text sorts like them
+            int c = tb.trim().compareTo(ta.trim());
+            if (c != 0)
+               return c;
          }//end if
-      }catch (SQLException e){
-         // ignored.
+         return Integer.parseInt(a.get(0).trim()) - Integer.parseInt(b.get(0).trim());
+      }
+   };
+
+   /**
+    * Runs a query on every shard, see forEachShard
+    * @return the rows of all shards, shard by shard
+    */
+   private List<List<String>> gather(final String query, final Object... params) throws SQLException {
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (List<List<String>> part : forEachShard(new ShardRouter.Task<List<List<String>>>() {
+         public List<List<String>> run(int shard) throws SQLException {
+            return executeQueryAndReturnResult(query, params);
+         }
+      }))
+         rows.addAll(part);
+      return rows;
+   }//end gather
+
+   /**
+    * Runs a task on every shard in parallel, see ShardRouter.forEachShard.
+    * The round trips the shards make for the calling thread's operation are
+    * counted as "&lt;operation&gt; per shard", one invocation per shard.
+    */
+   <T> List<T> forEachShard(final ShardRouter.Task<T> task) throws SQLException {
+      if (!this._shards.isSharded())
+         return this._shards.forEachShard(task);
+      final String operation = this._stats.current() + " per shard";
+      return this._shards.forEachShard(new ShardRouter.Task<T>() {
+         public T run(int shard) throws SQLException {
+            OperationStats.Scope op = _stats.begin(operation);
+            try{
+               return task.run(shard);
+            }finally{
+               op.end();
+            }//end try
+         }
+      });
+   }//end forEachShard
+
+   /**
+    * Moves the user's read cursor of a chat to its last message
+    */
+   public void markChatRead(int chat_id, String authorisedUser) throws SQLException {
+      executeUpdate(Queries.MARK_CHAT_READ, chat_id, authorisedUser);
+   }//end markChatRead
+
+   /**
+    * @return the ids of the chats the user is a member of
+    */
+   public List<List<String>> listChats(String authorisedUser) throws SQLException {
+      return gather(Queries.USER_CHATS, authorisedUser);
+   }//end listChats
+
+   /**
+    * @return true if the user is in the chat's member list
+    */
+   public boolean isChatMember(int chat_id, String login) throws SQLException {
+      return queryOne(Queries.IS_CHAT_MEMBER, RowMapper.INTEGER, chat_id, login) != null;
+   }//end isChatMember
+
+   /**
+    * @return the login that started the chat, or null if there is no such chat
+    */
+   public String chatInitSender(int chat_id) throws SQLException {
+      return queryOne(Queries.CHAT_INIT_SENDER, RowMapper.STRING, chat_id);
+   }//end chatInitSender
+
+   /**
+    * Creates a private chat started by the user with the given other
+    * members; a chat with more than one other member becomes a group chat.
+    * @return the new chat_id
+    */
+   public int newChat(String authorisedUser, String... members) throws SQLException {
+      //allocate the chat_id up front so any pooled connection can insert it,
+      //and with shards before the chat's shard is known
+      int new_chat_id = this._shards.isSharded() ? this._shards.nextChatId(this) : getNextSeqVal("chat_chat_id_seq");
+      ensureMember(new_chat_id, authorisedUser);
+      for (String member : members)
+         ensureMember(new_chat_id, member);
+      insertForUser(authorisedUser, Queries.CREATE_CHAT, new_chat_id, authorisedUser);
+      //add init sender to chat in chat_list
+      insertForUser(authorisedUser, Queries.ADD_CHAT_MEMBER, new_chat_id, authorisedUser);
+      for (String member : members)
+         insertForUser(member, Queries.ADD_CHAT_MEMBER, new_chat_id, member);
+      if (members.length > 1)
+         switchToGroup(new_chat_id);
+      return new_chat_id;
+   }//end newChat
+
+   public void switchToGroup(int chat_id) throws SQLException {
+      executeUpdate(Queries.SWITCH_TO_GROUP, chat_id);
+   }//end switchToGroup
+
+   public void addMemberToChat(int chat_id, String user_to_add) throws SQLException {
+      ensureMember(chat_id, user_to_add);
+      insertForUser(user_to_add, Queries.ADD_CHAT_MEMBER, chat_id, user_to_add);
+   }//end addMemberToChat
+
+   /**
+    * Gives a user a USR stub on the chat's shard before the chat refers to
+    * them, see ShardRouter.ensureUser
+    */
+   private void ensureMember(int chat_id, String login) throws SQLException {
+      this._shards.ensureUser(this, this._shards.shardOf(chat_id), login);
+   }//end ensureMember
+
+   public void deleteMemberFromChat(int chat_id, String user_to_del) throws SQLException {
+      executeUpdate(Queries.DELETE_CHAT_MEMBER, chat_id, user_to_del);
+   }//end deleteMemberFromChat
+
+   /**
+    * Deletes a chat with its members and messages in one transaction
+    */
+   public void deleteChat(int chat_id) throws SQLException {
+      //the transaction is on the chat's shard
+      Integer previous = this._shards.pin(this._shards.shardOf(chat_id));
+      try{
+         boolean own = beginIfNone();
+         try{
+            executeUpdate(Queries.DELETE_CHAT_MEMBERS, chat_id);
+            executeUpdate(Queries.DELETE_CHAT_MESSAGES, chat_id);
+            executeUpdate(Queries.DELETE_CHAT, chat_id);
+            if (own)
+               commit();
+         }finally{
+            if (own)
+               rollback();
+         }//end try
+      }finally{
+         this._shards.restore(previous);
       }//end try
-   }//end cleanup
+   }//end deleteChat
+
+   /**
+    * Fetches one page of a chat's history keyed by (msg_timestamp, msg_id).
+    * Only rows strictly older than the given key are returned, so paging back
+    * walks the MESSAGE(chat_id, msg_timestamp, msg_id) index instead of
+    * reading the whole chat.  Past the oldest row in the database the page
+    * is filled up from the archive, see messagePage.
+    * @param before_ts timestamp of the oldest row already shown, or null for the newest page
+    * @param before_id msg_id of the oldest row already shown
+    * @return up to limit rows in chronological order (sender, msg_id, timestamp, text)
+    */
+   public List<List<String>> showMessages(int chat_id, String before_ts, int before_id, int limit) throws SQLException {
+      ChatMessage before = null;
+      if (before_ts != null) {
+         try{
+            before = new ChatMessage(null, before_id, Timestamp.valueOf(before_ts.trim()), null);
+         }catch (IllegalArgumentException e){
+            throw new SQLException("not a timestamp: " + before_ts);
+         }//end try
+      }//end if
+      List<List<String>> message_list = new ArrayList<List<String>>();
+      for (ChatMessage m : messagePage(chat_id, before, limit))
+         message_list.add(Arrays.asList(m.getSender(), String.valueOf(m.getMsgId()), String.valueOf(m.getTimestamp()), m.getText()));
+      return message_list;
+   }//end showMessages
+
+   /**
+    * Searches the messages of the chats the user is a member of
+    * @param page the page of results, counted from 0
+    * @return (chat_id, sender, msg_id, timestamp, text, rank) rows, best match first
+    */
+   public List<List<String>> searchMessages(String authorisedUser, String terms, int page) throws SQLException {
+      if (!this._shards.isSharded())
+         return executeQueryAndReturnResult(Queries.SEARCH_MESSAGES, terms, authorisedUser, SEARCH_PAGE_SIZE, page * SEARCH_PAGE_SIZE);
+      //every shard ranks its hits up to the end of the page, the page is cut from their merge
+      int end = (page + 1) * SEARCH_PAGE_SIZE;
+      List<List<String>> hits = gather(Queries.SEARCH_MESSAGES, terms, authorisedUser, end, 0);
+      Collections.sort(hits, SEARCH_ORDER);
+      return new ArrayList<List<String>>(hits.subList(Math.min(page * SEARCH_PAGE_SIZE, hits.size()), Math.min(end, hits.size())));
+   }//end searchMessages
+
+   // the order of SEARCH_MESSAGES, rank and then msg_id descending
+   private static final Comparator<List<String>> SEARCH_ORDER = new Comparator<List<String>>() {
+      public int compare(List<String> a, List<String> b) {
+         int c = Double.compare(Double.parseDouble(b.get(5).trim()), Double.parseDouble(a.get(5).trim()));
+         return c != 0 ? c : Integer.parseInt(b.get(2).trim()) - Integer.parseInt(a.get(2).trim());
+      }
+   };
+
+   /**
+    * Fetches the page of a chat before the given message, the newest page
+    * when it is null.  A page that reaches past the oldest message in the
+    * database is filled up from the archive.
+    * @return the page oldest first
+    */
+   public List<ChatMessage> messagePage(int chat_id, ChatMessage before, int limit) throws SQLException {
+      List<ChatMessage> page;
+      if (before == null)
+         page = query(Queries.NEWEST_MESSAGES, ChatMessage.MAPPER, chat_id, limit);
+      else
+         page = query(Queries.MESSAGES_BEFORE, ChatMessage.MAPPER, chat_id, before.getTimestamp(), before.getMsgId(), limit);
+      Collections.reverse(page);
+      if (page.size() < limit)
+         page.addAll(0, archive(chat_id).page(this, chat_id, page.isEmpty() ? before : page.get(0), limit - page.size()));
+      return page;
+   }//end messagePage
+
+   /**
+    * Streams a chat's whole history in chronological order without holding
+    * it in memory, the archived messages first
+    * @return the number of messages streamed
+    */
+   public int streamChatHistory(int chat_id, RowHandler<ChatMessage> handler) throws SQLException {
+      int archived = archive(chat_id).stream(this, chat_id, null, null, handler);
+      return archived + stream(Queries.CHAT_HISTORY, ChatMessage.MAPPER, handler, chat_id);
+   }//end streamChatHistory
+
+   /**
+    * Streams the messages of a chat sent from from (inclusive) to to
+    * (exclusive) in chronological order; a null bound is open
+    * @return the number of messages streamed
+    */
+   public int streamChatHistory(int chat_id, Timestamp from, Timestamp to, RowHandler<ChatMessage> handler) throws SQLException {
+      int archived = archive(chat_id).stream(this, chat_id, from, to, handler);
+      return archived + stream(Queries.CHAT_HISTORY_RANGE, ChatMessage.MAPPER, handler, chat_id, from, to);
+   }//end streamChatHistory
+
+   /**
+    * @return the ids of all chats
+    */
+   public List<Integer> allChats() throws SQLException {
+      if (!this._shards.isSharded())
+         return query(Queries.ALL_CHATS, RowMapper.INTEGER);
+      List<Integer> chats = new ArrayList<Integer>();
+      for (List<Integer> part : forEachShard(new ShardRouter.Task<List<Integer>>() {
+         public List<Integer> run(int shard) throws SQLException {
+            return query(Queries.ALL_CHATS, RowMapper.INTEGER);
+         }
+      }))
+         chats.addAll(part);
+      Collections.sort(chats);
+      return chats;
+   }//end allChats
+
+   /**
+    * @return the archive of the chat's shard
+    */
+   private MessageArchive archive(int chat_id) {
+      return this._archives.get(this._shards.shardOf(chat_id));
+   }//end archive
+
+   /**
+    * Sends a message.  With messenger.groupCommit set the message goes
+    * through the group-commit writer and this waits until it is committed.
+    * @return the message as it was stored
+    */
+   public ChatMessage createNewMessage(int chat_id, String authorisedUser, String text) throws SQLException {
+      if (this._groupCommit) {
+         MessageWriter.Pending pending = submitMessage(chat_id, authorisedUser, text);
+         ChatMessage sent = pending.awaitMessage();
+         // the writer thread committed it, the sender is the one to read it back
+         wrote(pending.lsn());
+         return sent;
+      }//end if
+      ensureMember(chat_id, authorisedUser);
+      ChatMessage sent = queryOne(Queries.CREATE_MESSAGE, ChatMessage.MAPPER, text, authorisedUser, chat_id);
+      if (sent == null)
+         throw new SQLException("No such user: " + authorisedUser.trim());
+      return sent;
+   }//end createNewMessage
+
+   /**
+    * Hands a message to the group-commit writer without waiting for it
+    * @return the acknowledgement, await() returns the new msg_id
+    */
+   public MessageWriter.Pending submitMessage(int chat_id, String authorisedUser, String text) throws SQLException {
+      ensureMember(chat_id, authorisedUser);
+      return writer(this._shards.shardOf(chat_id)).submit(chat_id, authorisedUser, text);
+   }//end submitMessage
+
+   /**
+    * Returns the group-commit writer of a shard, starting it the first time;
+    * each shard commits its windows on a thread of its own
+    */
+   synchronized MessageWriter writer(int shard) {
+      if (this._writers == null)
+         this._writers = new MessageWriter[this._shards.count()];
+      if (this._writers[shard] == null)
+         this._writers[shard] = new MessageWriter(this, shard);
+      return this._writers[shard];
+   }//end writer
+
+   /**
+    * Returns the chat listener of a shard, starting it the first time
+    */
+   public synchronized ChatListener chatListener(int shard) {
+      if (this._listeners == null)
+         this._listeners = new ChatListener[this._shards.count()];
+      if (this._listeners[shard] == null)
+         this._listeners[shard] = new ChatListener(this, shard);
+      return this._listeners[shard];
+   }//end chatListener
+
+   /**
+    * Subscribes to the messages written to a chat after lastSeen
+    * @return the subscription, close it to stop the events
+    */
+   public ChatListener.Subscription subscribeToChat(int chat_id, int lastSeen, ChatListener.Listener listener) {
+      return chatListener(this._shards.shardOf(chat_id)).subscribe(chat_id, lastSeen, listener);
+   }//end subscribeToChat
+
+   /**
+    * Edits one of the user's own messages
+    * @return the edited message, or null if the chat has no such message by the user
+    */
+   public ChatMessage editMessage(int chat_id, String authorisedUser, int msg_id, String new_text) throws SQLException {
+      return queryOne(Queries.EDIT_MESSAGE, ChatMessage.MAPPER, new_text, chat_id, msg_id, authorisedUser);
+   }//end editMessage
+
+   /**
+    * Deletes one of the user's own messages
+    * @return false if the chat has no such message by the user
+    */
+   public boolean deleteMessage(int chat_id, String authorisedUser, int msg_id) throws SQLException {
+      return executeUpdate(Queries.DELETE_MESSAGE, chat_id, msg_id, authorisedUser) > 0;
+   }//end deleteMessage
+
+   /**
+    * Deletes a user's messages, chat memberships, the chats they started and
+    * the account itself.  An account with at most messenger.purgeThreshold
+    * messages to remove is deleted at once in one transaction.  A larger one
+    * is locked out and queued in PURGE_QUEUE instead, and the background
+    * AccountPurger deletes it in chunks so that live traffic is not blocked
+    * behind one long transaction.
+    *
+    * With messenger.shards there is no transaction across the databases:
+    * the shards are emptied first and the account goes last, so a deletion
+    * that failed half way is finished by deleting the account again.
+    * @return true if the account is gone, false if it was queued
+    */
+   public boolean deleteAccount(final String authorisedUser) throws SQLException {
+      //log the user out everywhere first so no session outlives the account
+      this._sessions.invalidate(authorisedUser);
+      this._lists.remove(authorisedUser);
+
+      final int limit = this._purgeThreshold + 1;
+      int messages = 0;
+      for (Integer count : forEachShard(new ShardRouter.Task<Integer>() {
+         public Integer run(int shard) throws SQLException {
+            return queryOne(Queries.ACCOUNT_MESSAGES_UP_TO, RowMapper.INTEGER, authorisedUser, authorisedUser, limit);
+         }
+      }))
+         messages += count == null ? 0 : count.intValue();
+      if (messages <= this._purgeThreshold) {
+         purgeAccount(authorisedUser);
+         return true;
+      }//end if
+
+      //no password matches the lock out value, the chats drop the user right away
+      begin();
+      try{
+         executeUpdate(Queries.LOCK_OUT_USER, SessionManager.LOCKED_OUT, authorisedUser);
+         if (!this._shards.isSharded())
+            executeUpdate(Queries.DELETE_USER_MEMBERSHIPS, authorisedUser);
+         insertForUser(authorisedUser, Queries.ENQUEUE_PURGE, authorisedUser);
+         commit();
+      }finally{
+         rollback();
+      }//end try
+      //the shards drop the user once the account is locked out and queued
+      if (this._shards.isSharded())
+         forEachShard(new ShardRouter.Task<Void>() {
+            public Void run(int shard) throws SQLException {
+               executeUpdate(Queries.DELETE_USER_MEMBERSHIPS, authorisedUser);
+               return null;
+            }
+         });
+      purger().wake();
+      return false;
+   }//end deleteAccount
+
+   /**
+    * Deletes an account with set-based statements in one transaction, or in
+    * the caller's transaction if one is open.  Rows go child tables first so
+    * no foreign key is violated on the way.
+    */
+   void purgeAccount(final String login) throws SQLException {
+      boolean own = beginIfNone();
+      try{
+         //the list ids have to be read before the USR row goes
+         int[] lists = queryOne(Queries.USER_LISTS, MembershipCache.LIST_IDS, login);
+         //the chat rows, with shards in a transaction per shard that
+         //commits before the account goes
+         forEachShard(new ShardRouter.Task<Void>() {
+            public Void run(int shard) throws SQLException {
+               boolean ownShard = beginIfNone();
+               try{
+                  executeUpdate(Queries.DELETE_USER_MESSAGES, login);
+                  executeUpdate(Queries.DELETE_INIT_CHAT_MESSAGES, login);
+                  executeUpdate(Queries.DELETE_USER_MEMBERSHIPS, login);
+                  executeUpdate(Queries.DELETE_INIT_CHAT_MEMBERS, login);
+                  executeUpdate(Queries.DELETE_USER_INIT_CHATS, login);
+                  if (_shards.isSharded())
+                     executeUpdate(Queries.DELETE_USER_STUB, login);
+                  if (ownShard)
+                     commit();
+               }finally{
+                  if (ownShard)
+                     rollback();
+               }//end try
+               return null;
+            }
+         });
+         executeUpdate(Queries.DELETE_USER, login);
+         if (lists != null) {
+            executeUpdate(Queries.DELETE_LISTS_MEMBERS, lists[0], lists[1]);
+            executeUpdate(Queries.DELETE_USER_LISTS, lists[0], lists[1]);
+         }//end if
+         if (own)
+            commit();
+      }finally{
+         if (own)
+            rollback();
+      }//end try
+      //the cascade took the user off other users' lists
+      this._lists.remove(login);
+      this._shards.forgetUser(login);
+   }//end purgeAccount
+
+   /**
+    * Returns the background purger, starting it the first time
+    */
+   synchronized AccountPurger purger() {
+      if (this._purger == null) {
+         this._purger = new AccountPurger(this);
+         this._purger.start();
+      }//end if
+      return this._purger;
+   }//end purger
+
+   /**
+    * Starts the background purger so that accounts queued by an earlier
+    * run are deleted
+    */
+   public void startPurger() {
+      purger();
+   }//end startPurger
+
+   /**
+    * Starts the background archiver, which creates the coming MESSAGE
+    * partitions and archives the expired ones
+    */
+   public synchronized void startArchiver() {
+      if (this._archivers.isEmpty()) {
+         for (int shard = 0; shard < this._shards.count(); ++shard) {
+            MessageArchiver archiver = new MessageArchiver(this, archiveDirectory(shard), shard);
+            this._archivers.add(archiver);
+            archiver.start();
+         }//end for
+      }//end if
+   }//end startArchiver
 
    /**
     * The main execution method
@@ -254,14 +1547,22 @@ public class Messenger {
             System.out.println("---------");
             System.out.println("1. Create user");
             System.out.println("2. Log in");
+            System.out.println("3. Statistics");
             System.out.println("9. < EXIT");
             String authorisedUser = null;
-            switch (readChoice()){
+            int choice = readChoice();
+            OperationStats.Scope op = esql.stats().begin(operation(MAIN_MENU, choice));
+            try{
+            switch (choice){
                case 1: CreateUser(esql); break;
                case 2: authorisedUser = LogIn(esql);if(authorisedUser== null){System.out.println("Invalid username or password.");} break;
+               case 3: PrintStats(esql); break;
                case 9: keepon = false; break;
                default : System.out.println("Unrecognized choice!"); break;
             }//end switch
+            }finally{
+               op.end();
+            }
             if (authorisedUser != null) {
               boolean usermenu = true;
               while(usermenu) {
@@ -274,22 +1575,29 @@ public class Messenger {
                 System.out.println("4. Browse blocked list");
                 System.out.println("5. Browse current chats");
                 System.out.println("6. Create a new chat");
+                System.out.println("7. Search messages");
                 System.out.println("8. Delete Account");
                 //done adding new ones
                 System.out.println(".........................");
                 System.out.println("9. Log out");
-                switch (readChoice()){
+                int userChoice = readChoice();
+                OperationStats.Scope userOp = esql.stats().begin(operation(USER_MENU, userChoice));
+                try{
+                switch (userChoice){
                    case 1: AddToContact(authorisedUser, esql); break;
                    case 2: ListContacts(authorisedUser, esql); break;
                    case 3: NewMessage(authorisedUser,esql); break;
                    case 4: ListBlocked(authorisedUser, esql); break;
                    case 5: BrowseChats(authorisedUser, esql); break;
                    case 6: NewChat(false,authorisedUser, esql); break;
-                   //case 7: (esql); break;
+                   case 7: SearchMessages(authorisedUser, esql); break;
                    case 8: DeleteAccount(authorisedUser, esql); usermenu=false; break;
                    case 9: usermenu = false; break;
                    default : System.out.println("Unrecognized choice!"); break;
                 }
+                }finally{
+                   userOp.end();
+                }
               }
             }
          }//end while
@@ -309,6 +1617,19 @@ public class Messenger {
       }//end try
    }//end main
   
+   // the operation each menu choice is counted under, see OperationStats
+   private static final String[] MAIN_MENU = { null, "CreateUser", "LogIn", "Statistics" };
+   private static final String[] USER_MENU = { null, "AddToContact", "ListContacts", "NewMessage",
+      "ListBlocked", "BrowseChats", "NewChat", "SearchMessages", "DeleteAccount", "LogOut" };
+   private static final String[] CHAT_ADMIN_MENU = { null, "AddMembersToChat", "DeleteMembersFromChat",
+      "DeleteChat", "ShowMessages" };
+   private static final String[] CHAT_MENU = { null, "ShowMessages", "DeleteMessage", "CreateNewMessage",
+      "EditMessage", "BrowseChats" };
+
+   private static String operation(String[] menu, int choice){
+      return choice > 0 && choice < menu.length ? menu[choice] : "Menu";
+   }//end operation
+
    public static void Greeting(){
       System.out.println(
          "\n\n*******************************************************\n" +
@@ -349,15 +1670,7 @@ public class Messenger {
          System.out.print("\tEnter user phone: ");
          String phone = in.readLine();
 
-	 //Creating empty contact\block lists for a user
-	 esql.executeUpdate("INSERT INTO USER_LIST(list_type) VALUES ('block')");
-	 int block_id = esql.getCurrSeqVal("user_list_list_id_seq");
-         esql.executeUpdate("INSERT INTO USER_LIST(list_type) VALUES ('contact')");
-	 int contact_id = esql.getCurrSeqVal("user_list_list_id_seq");
-         
-	 String query = String.format("INSERT INTO USR (phoneNum, login, password, block_list, contact_list) VALUES ('%s','%s','%s',%s,%s)", phone, login, password, block_id, contact_id);
-
-         esql.executeUpdate(query);
+         esql.createUser(login, password, phone);
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -375,9 +1688,7 @@ public class Messenger {
          System.out.print("\tEnter user password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM Usr WHERE login = '%s' AND password = '%s'", login, password);
-         int userNum = esql.executeQuery(query);
-	 if (userNum > 0)
+	 if (esql.logIn(login, password))
 		return login;
          return null;
       }catch(Exception e){
@@ -391,13 +1702,7 @@ public class Messenger {
 	   try{
 		 System.out.print("\tEnter login of user to add: ");
 		 String userToAdd = in.readLine();
-		 //TODO: validate that userToAdd is a user!
-		 //TODO: make sure user isn't already in user's contact list
-		 String query1 = String.format("SELECT contact_list FROM Usr WHERE login = '%s'", authorisedUser);
-		 List<List<String>> contact_list = esql.executeQueryAndReturnResult(query1); 
-		 int i = Integer.parseInt(contact_list.get(0).get(0));
-		 String query = String.format("INSERT INTO USER_LIST_CONTAINS(list_id, list_member) VALUES ('%s', '%s')", i, userToAdd);
-		 esql.executeUpdate(query);
+		 esql.addToContact(authorisedUser, userToAdd);
 	   }catch(Exception e){
 		   System.err.println (e.getMessage ());
 	   }
@@ -406,13 +1711,7 @@ public class Messenger {
 	   try{
 		 System.out.print("\tEnter login of user to block: ");
 		 String userToAdd = in.readLine();
-		 //TODO: validate that userToAdd is a user!
-		 //TODO: make sure user isn't already in user's contact list
-		 String query1 = String.format("SELECT block_list FROM Usr WHERE login = '%s'", authorisedUser);
-		 List<List<String>> contact_list = esql.executeQueryAndReturnResult(query1); 
-		 int i = Integer.parseInt(contact_list.get(0).get(0));
-		 String query = String.format("INSERT INTO USER_LIST_CONTAINS(list_id, list_member) VALUES ('%s', '%s')", i, userToAdd);
-		 esql.executeUpdate(query);
+		 esql.addToBlocked(authorisedUser, userToAdd);
 	   }catch(Exception e){
 		   System.err.println (e.getMessage ());
 	   }
@@ -423,9 +1722,8 @@ public class Messenger {
 	//DONE
    public static void ListContacts(String authorisedUser, Messenger esql){
 	   try{
-		String query = String.format("SELECT C.list_member, U.status FROM Usr U, USER_LIST_CONTAINS C WHERE U.login = '%s' AND U.contact_list = C.list_id ",authorisedUser);
 		System.out.println("\nContacts: ");
-		int success = esql.executeQueryAndPrintResult (query);
+		PrintRows(esql.listContacts(authorisedUser));
 		boolean usermenu=true;
 		while(usermenu){
 		System.out.println("");
@@ -444,14 +1742,25 @@ public class Messenger {
       }
    }
 
+   //prints list rows the way executeQueryAndPrintResult does, without the header
+   public static void PrintRows(List<List<String>> rows){
+       for (List<String> row : rows){
+	    for (String value : row)
+		System.out.print(value + "\t");
+	    System.out.println();
+       }
+   }
+
+   //shows the database work of every operation so far, most expensive first
+   public static void PrintStats(Messenger esql){
+       esql.stats().printStats();
+   }
+
    public static void DeleteContact(String authorisedUser,Messenger esql){
        try{
-	   String query1 = String.format("SELECT contact_list FROM Usr WHERE login = '%s'",authorisedUser);
-	   List<List<String>> list_id = esql.executeQueryAndReturnResult(query1);
 	   System.out.print("\tEnter user to remove from contacts: ");	//get user to add to chat
 	   String user_to_del = in.readLine();
-	   String query = String.format("DELETE FROM USER_LIST_CONTAINS WHERE list_id='%s' AND list_member='%s'",Integer.parseInt(list_id.get(0).get(0)), user_to_del);
-	   esql.executeUpdate(query);
+	   esql.deleteContact(authorisedUser, user_to_del);
        }catch(Exception e){
 	   System.err.println(e.getMessage());
        }
@@ -459,12 +1768,9 @@ public class Messenger {
 
   public static void DeleteBlocked(String authorisedUser,Messenger esql){
        try{
-	   String query1 = String.format("SELECT block_list FROM Usr WHERE login = '%s'",authorisedUser);
-	   List<List<String>> list_id = esql.executeQueryAndReturnResult(query1);
 	   System.out.print("\tEnter user to unblock: ");	//get user to add to chat
 	   String user_to_del = in.readLine();
-	   String query = String.format("DELETE FROM USER_LIST_CONTAINS WHERE list_id='%s' AND list_member='%s'",Integer.parseInt(list_id.get(0).get(0)), user_to_del);
-	   esql.executeUpdate(query);
+	   esql.deleteBlocked(authorisedUser, user_to_del);
        }catch(Exception e){
 	   System.err.println(e.getMessage());
        }
@@ -485,9 +1791,8 @@ public class Messenger {
    
    public static void ListBlocked(String authorisedUser, Messenger esql){
       try{
-		String query = String.format("SELECT C.list_member FROM Usr U, USER_LIST_CONTAINS C WHERE U.login = '%s' AND U.block_list = C.list_id ",authorisedUser);
 		System.out.println("\nBlocked Users:");
-		int success = esql.executeQueryAndPrintResult (query);
+		PrintRows(esql.listBlocked(authorisedUser));
 		System.out.println("");
 		boolean usermenu=true;
 		while(usermenu){
@@ -513,19 +1818,20 @@ public class Messenger {
    //for this to work the rest of the chat methods need to be implemented
    public static void BrowseChats(String authorisedUser, Messenger esql){
         try{
-	    	//print the list of Chat_ids 
-		String query = String.format("SELECT C.chat_id FROM CHAT_LIST C WHERE C.member = '%s'",authorisedUser);
-		int success = esql.executeQueryAndPrintResult (query);
+	    	//print the inbox: every chat with its last message and unread count
+		PrintInbox(esql.inbox(authorisedUser));
 		//ask which chat they want to enter
 		//TODO: allow them to remove themselves from chats here????
 		System.out.print("\tEnter chat_id of chat to view: ");
 		String chat_to_view = in.readLine();
+		//only members may enter a chat
+		if(!esql.isChatMember(Integer.parseInt(chat_to_view), authorisedUser)){
+		    System.out.println("You are not a member of chat " + chat_to_view + ".");
+		    return;
+		}
 		//find out if they are the init sender of the chat
-		//TODO: MAKE SURE THE USER IS IN THIS CHAT!!!!!!
-		String query1 = String.format("SELECT init_sender FROM CHAT WHERE chat_id = '%s'", chat_to_view);
-		List<List<String>> init_sender = esql.executeQueryAndReturnResult(query1);
-		String init = init_sender.get(0).get(0);
-		if(authorisedUser == init){
+		String init = esql.chatInitSender(Integer.parseInt(chat_to_view));
+		if(authorisedUser.equals(init)){
 		    boolean usermenu = true;
 		    while(usermenu){
 			System.out.print("\tEnter Choice: ");
@@ -533,20 +1839,30 @@ public class Messenger {
 			System.out.print("\t2. Delete Members");
 			System.out.print("\t3. Delete Chat ");
 			System.out.print("\t4. Continue to Messages ");
-			switch(readChoice()){
+			int choice = readChoice();
+			OperationStats.Scope op = esql.stats().begin(operation(CHAT_ADMIN_MENU, choice));
+			try{
+			switch(choice){
 			    case 1: AddMembersToChat(Integer.parseInt(chat_to_view), esql); break;
 			    case 2: DeleteMembersFromChat(Integer.parseInt(chat_to_view),esql); break;
 			    case 3: DeleteChat(Integer.parseInt(chat_to_view), esql); usermenu=false; break;
 			    case 4: usermenu=false; break;
 			    default : System.out.println("Unrecognized choice!"); break;
 			}
+			}finally{
+			    op.end();
+			}
 		    }
 		}
-		    //find all message and order by timestamp
-		    List<List<String>> message_list = ShowMessages(Integer.parseInt(chat_to_view), esql);
-		    //each List<String>> contains the sender, timestamp, and text
-		    int index = message_list.size()-11;
-		    PrintMessagesout(index, message_list);
+		    //fetch the newest page of messages, older pages are fetched on demand
+		    //after that every change is applied to the view, the chat is not re-read
+		    int chat_id = Integer.parseInt(chat_to_view);
+		    ChatView view = new ChatView(esql, chat_id);
+		    PrintMessagesout(view.loadEarlier(MESSAGE_PAGE_SIZE));
+		    //messages others write while the chat is open are pushed to us
+		    ChatListener.Subscription live = esql.subscribeToChat(chat_id, view.newestId(), new LiveChat(view));
+		    esql.markChatRead(chat_id, authorisedUser);
+		    try{
 		    boolean usermenu2 = true;
 		    while(usermenu2){
 			System.out.println("Enter Choice: ");
@@ -555,50 +1871,124 @@ public class Messenger {
 			System.out.println("\t3. Write New Message ");
 			System.out.println("\t4. Edit a Message ");
 			System.out.println("\t5. Exit to Main Menu ");
-			switch(readChoice()){
+			int choice = readChoice();
+			OperationStats.Scope op = esql.stats().begin(operation(CHAT_MENU, choice));
+			try{
+			switch(choice){
 			    case 1: 
-			    	index=index-10;
-				PrintMessagesout(index,message_list);
+				PrintMessagesout(view.loadEarlier(MESSAGE_PAGE_SIZE));
 				break;
 			    case 2:{ 
-				DeleteMessage(Integer.parseInt(chat_to_view),esql);
-				message_list=ShowMessages(Integer.parseInt(chat_to_view),esql);
-				index=message_list.size()-11;
-				PrintMessagesout(index,message_list); 
+				int deleted = DeleteMessage(chat_id,authorisedUser,esql);
+				if(deleted > 0){view.remove(deleted);System.out.println("Message " + deleted + " deleted.");}
 				break;
 			    }case 3:{ 
-				CreateNewMessage(Integer.parseInt(chat_to_view),authorisedUser, esql);
-				message_list=ShowMessages(Integer.parseInt(chat_to_view),esql);
-				index=message_list.size()-11;
-				PrintMessagesout(index,message_list); 
+				ChatMessage sent = CreateNewMessage(chat_id,authorisedUser, esql);
+				if(sent != null){view.append(Collections.singletonList(sent));live.seen(sent.getMsgId());PrintMessagesout(Collections.singletonList(sent));}
 				break;
 			    }case 4:{ 
-				EditMessage(Integer.parseInt(chat_to_view), esql);
-				message_list=ShowMessages(Integer.parseInt(chat_to_view),esql);
-				index=message_list.size()-11;
-				PrintMessagesout(index,message_list); 
+				ChatMessage edited = EditMessage(chat_id, authorisedUser, esql);
+				if(edited != null){view.update(edited);PrintMessagesout(Collections.singletonList(edited));}
 				break;
 			    }case 5:usermenu2=false; break; //back to main menu
 			    default : System.out.println("Unrecognized choice!"); break;
 			}
+			}finally{
+			    op.end();
+			}
 	       }
+		    }finally{
+			live.close();
+			//what was pushed while the chat was open has been read too
+			esql.markChatRead(chat_id, authorisedUser);
+		    }
 	   }catch(Exception e){
          System.err.println (e.getMessage ());
       }
    }
 
-   public static void PrintMessagesout(int index, List<List<String>> message_list){
+   //prints one line per chat: id, unread count, and the last message
+   public static void PrintInbox(List<List<String>> inbox){
+       if(inbox.isEmpty()){
+	   System.out.println("You have no chats.");
+	   return;
+       }
+       for(List<String> chat : inbox){
+	   String unread = "0".equals(chat.get(4)) ? "" : " (" + chat.get(4) + " unread)";
+	   if(chat.get(1) == null)
+	       System.out.println("Chat " + chat.get(0) + unread + ": no messages");
+	   else
+	       System.out.println("Chat " + chat.get(0) + unread + ", " + chat.get(2) + " " + chat.get(1).trim() + ": " + chat.get(3));
+       }
+   }
+
+   //asks for search terms and pages through the matching messages of the user's chats
+   public static void SearchMessages(String authorisedUser, Messenger esql){
+       try{
+	   System.out.print("\tEnter words to search for: ");
+	   String terms = in.readLine();
+	   int page = 0;
+	   boolean usermenu = true;
+	   while(usermenu){
+	       List<List<String>> hits = esql.searchMessages(authorisedUser, terms, page);
+	       System.out.println("");
+	       if(hits.isEmpty())
+		   System.out.println(page == 0 ? "No messages found." : "No more messages found.");
+	       for(List<String> hit : hits){
+		   System.out.println("Chat: " + hit.get(0) + "  Sender: " + hit.get(1).trim());
+		   System.out.println("Message ID:" + hit.get(2));
+		   System.out.println(hit.get(3));
+		   System.out.println(hit.get(4).trim());
+	       }
+	       if(hits.size() < SEARCH_PAGE_SIZE)
+		   break;
+	       System.out.println("\t1. More results");
+	       System.out.println("\t2. Back to Main Menu");
+	       switch(readChoice()){
+		   case 1: ++page; break;
+		   case 2: usermenu=false; break;
+		   default: System.out.println("Unrecognized choice!"); break;
+	       }
+	   }
+       }catch(Exception e){
+	   System.err.println (e.getMessage ());
+       }
+   }
+
+   /*
+    * Merges the messages pushed to an open chat into its view and prints
+    * the ones it did not have yet
+    **/
+   static class LiveChat implements ChatListener.Listener {
+       private final ChatView view;
+       LiveChat(ChatView view){ this.view = view; }
+       public void messagesArrived(int chat_id, List<ChatMessage> messages){
+	   List<ChatMessage> added = view.append(messages);
+	   if(!added.isEmpty())
+	       PrintMessagesout(added);
+       }
+       public void messagesChanged(int chat_id){
+	   System.out.println("\n(a message in this chat was edited or deleted)");
+       }
+   }//end LiveChat
+
+   /*
+    * Prints messages in chronological order
+    **/
+   public static void PrintMessagesout(List<ChatMessage> message_list){
        System.out.println("");
-       if(index<0){index=0;}
-       for (int i = index; i< message_list.size() ; ++i){
-	    System.out.println("Sender: " + message_list.get(i).get(0));
-	    System.out.println("Message ID:" + message_list.get(i).get(1));
-	    System.out.println(message_list.get(i).get(2));
-	    System.out.println(message_list.get(i).get(3));
+       if(message_list.isEmpty()){
+	    System.out.println("No earlier messages.");
+	    return;
+       }
+       for (ChatMessage m : message_list){
+	    System.out.println("Sender: " + m.getSender());
+	    System.out.println("Message ID:" + m.getMsgId());
+	    System.out.println(m.getTimestamp());
+	    System.out.println(m.getText());
 	}
    }
 
-
    
    //let a user make a NewChat
    //generate new chat_id from sequence
@@ -609,13 +1999,7 @@ public class Messenger {
        try{
 	   //create a new chat row in CHAT
 	   //starts as private
-	   String query = String.format("INSERT INTO CHAT(chat_type, init_sender) VALUES ( 'private', '%s')", authorisedUser);
-	   esql.executeUpdate(query);
-	   //get chat_id of previously created chat
-	   int new_chat_id = esql.getCurrSeqVal("chat_chat_id_seq"); //can't get value from seq
-	   //add init sender to chat in chat_list
-	   String query2 = String.format("INSERT INTO CHAT_LIST(chat_id, member) VALUES ('%s', '%s')", new_chat_id, authorisedUser);
-	   esql.executeUpdate(query2);
+	   int new_chat_id = esql.newChat(authorisedUser);
 	   //ask for other user to add to the chat
 	   AddMembersToChat(new_chat_id, esql);
 	   //ask if they want to add more users
@@ -652,38 +2036,10 @@ public class Messenger {
    //DONE
    public static void DeleteAccount(String authorisedUser,Messenger esql){
        try{
-	   //delete messages where they are the sender
-	   String query3 = String.format("DELETE FROM MESSAGE WHERE sender_login='%s'", authorisedUser);
-	   esql.executeUpdate(query3);
-
-	   //delete Rows in chat_list with that user login
-	   String query1 = String.format("DELETE FROM CHAT_LIST WHERE member='%s'", authorisedUser);
-	   esql.executeUpdate(query1);
-	   //delete chats that user is init sender of
-	   String query2 = String.format("SELECT chat_id FROM CHAT WHERE init_sender='%s'", authorisedUser);
-	   List<List<String>> init_sender_chats = esql.executeQueryAndReturnResult(query2);
-	   //iterate through init_sender_chats and call DeleteChat()
-	   for( int i = 0; i < init_sender_chats.get(0).size(); ++i){
-	       DeleteChat(Integer.parseInt(init_sender_chats.get(0).get(i)), esql);
-	   }
-
-	   //delete row in USR table
-	   String query9 = String.format("DELETE FROM USR WHERE login='%s'", authorisedUser);
-	   esql.executeUpdate(query9);
-
-	   //delete user's contact list and block list
-	   String query4 = String.format("SELECT contact_list, block_list FROM USR WHERE login = '%s'", authorisedUser);
-	   List<List<String>> user_lists = esql.executeQueryAndReturnResult(query4);
-	   String query5 = String.format("DELETE FROM USER_LIST_CONTAINS WHERE list_id='%s'",user_lists.get(0).get(0));
-	   esql.executeUpdate(query5);
-	   String query6 = String.format("DELETE FROM USER_LIST_CONTAINS WHERE list_id='%s'",user_lists.get(0).get(1));
-	   esql.executeUpdate(query6);
-
-	   //delete row in usr_list 
-	   String query7 = String.format("DELETE FROM USER_LIST WHERE list_id='%s'",user_lists.get(0).get(1));
-	   esql.executeUpdate(query7);
-	   String query8 = String.format("DELETE FROM USER_LIST WHERE list_id='%s'",user_lists.get(0).get(1));
-	   esql.executeUpdate(query8);
+	   if (esql.deleteAccount(authorisedUser))
+	      System.out.println("Your account has been deleted.");
+	   else
+	      System.out.println("Your account is closed and will be deleted shortly.");
        }catch(Exception e){
 	   System.err.println (e.getMessage ());
        }
@@ -694,8 +2050,7 @@ public class Messenger {
 	//DONE
    public static void SwitchToGroup(int chat_id, Messenger esql){
        try{
-	   String query = String.format("UPDATE CHAT SET chat_type = 'group' WHERE chat_id = '%s'", chat_id);
-	   esql.executeUpdate(query);
+	   esql.switchToGroup(chat_id);
        }catch(Exception e){
 	   System.err.println (e.getMessage ());
        }
@@ -707,8 +2062,7 @@ public class Messenger {
        try{
 	   System.out.print("\tEnter user to add to the chat: ");	//get user to add to chat
 	   String user_to_add = in.readLine();
-	   String query3 = String.format("INSERT INTO CHAT_LIST(chat_id, member) VALUES ('%s', '%s')", chat_id, user_to_add);
-	   esql.executeUpdate(query3);
+	   esql.addMemberToChat(chat_id, user_to_add);
        }catch(Exception e){
 	   System.err.println (e.getMessage ());
        }
@@ -719,8 +2073,7 @@ public class Messenger {
       try{
 	   System.out.print("\tEnter user to remove to the chat: ");	//get user to add to chat
 	   String user_to_del = in.readLine();
-	   String query3 = String.format("DELETE FROM CHAT_LIST WHERE chat_id='%s' AND member='%s'",chat_id, user_to_del);
-	   esql.executeUpdate(query3);
+	   esql.deleteMemberFromChat(chat_id, user_to_del);
        }catch(Exception e){
 	   System.err.println (e.getMessage ());
        }
@@ -733,79 +2086,67 @@ public class Messenger {
    //DONE
    public static void DeleteChat(int chat_id, Messenger esql){
        try{
-	   //delete from CHAT table
-	   	   //delete from CHAT_LIST table
-	   String query4 = String.format("DELETE FROM CHAT_LIST WHERE chat_id='%s'",chat_id );
-	   esql.executeUpdate(query4);
-	   //delete from MESSAGE
-	   String query5 = String.format("DELETE FROM MESSAGE WHERE chat_id='%s'",chat_id );
-	   esql.executeUpdate(query5);
-	   String query3 = String.format("DELETE FROM CHAT WHERE chat_id='%s'",chat_id);
-	   esql.executeUpdate(query3);
+	   esql.deleteChat(chat_id);
        }catch(Exception e){
 	   System.err.println (e.getMessage ());
        }
 
    }
    
-   //takes the chat_id, and returns a list of all messages in the chat indexed by timestamp
-   //DONE
-   public static List<List<String>> ShowMessages(int chat_id, Messenger esql){
-       try{
-	 String query = String.format("SELECT sender_login,msg_id, msg_timestamp, msg_text FROM MESSAGE WHERE chat_id = '%s' ORDER BY msg_timestamp",chat_id );
-	 List<List<String>> message_list = esql.executeQueryAndReturnResult(query);
-	 return message_list;
-       }catch(Exception e){
-	   System.err.println (e.getMessage ());
-	 return null;
-       }
-   }
-   
 //---------------Message Menu Fuctions----------------
 //parameter for chat_id
 //ask user for text
 // timestamp = (SELECT LOCAL TIMESTAMP(2))
 //DONE ! 
-   public static void CreateNewMessage(int chat_id, String authorisedUser, Messenger esql){
+   //returns the stored message, or null if it was not created
+   public static ChatMessage CreateNewMessage(int chat_id, String authorisedUser, Messenger esql){
        try{
 	   System.out.print("\nPlease enter message body of new message: ");
 	   String text = in.readLine();
-	   String query3 = String.format("INSERT INTO MESSAGE(msg_text, msg_timestamp, sender_login, chat_id) VALUES ('%s', (SELECT LOCALTIMESTAMP(2)), '%s', '%s')", text, authorisedUser, chat_id);
-	   esql.executeUpdate(query3);
+	   ChatMessage sent = esql.createNewMessage(chat_id, authorisedUser, text);
 	   System.out.println("\nMessage Created!");
+	   return sent;
        }catch(Exception e){
 	   System.err.println (e.getMessage ());
+	   return null;
        }
    }
    
    //UPDATE ask for mesg id from user
    //DONE
-   public static void EditMessage(int chat_id, Messenger esql){
+   //returns the edited message, or null if nothing was edited
+   public static ChatMessage EditMessage(int chat_id, String authorisedUser, Messenger esql){
        try{
 	   System.out.print("\tEnter message id of message to edit: ");
 	   String msg_to_edit = in.readLine();
 	   System.out.print("\tEnter new message body: ");
 	   String new_text = in.readLine();
-	   //TODO: make sure the user is the creator of the message and that the message exists
-	   String query3 = String.format("UPDATE MESSAGE SET msg_text='%s' WHERE chat_id='%s' AND msg_id='%s'", new_text, chat_id, msg_to_edit);
-	   esql.executeUpdate(query3);
+	   ChatMessage edited = esql.editMessage(chat_id, authorisedUser, Integer.parseInt(msg_to_edit), new_text);
+	   if(edited == null)
+	       System.out.println("No message " + msg_to_edit + " of yours in this chat.");
+	   return edited;
        }catch(Exception e){
 	   System.err.println (e.getMessage ());
+	   return null;
        }
    }
    
    //DELETE asking for message id from user
    //delete message from MESSAGE table
    //DONE
-   public static void DeleteMessage(int chat_id, Messenger esql){
+   //returns the msg_id of the deleted message, or -1 if nothing was deleted
+   public static int DeleteMessage(int chat_id, String authorisedUser, Messenger esql){
       try{
 	   System.out.print("\tEnter message id of message to remove: ");
 	   String msg_to_del = in.readLine();
-	   //TODO: make sure the user is the creator of the message
-	   String query3 = String.format("DELETE FROM MESSAGE WHERE chat_id='%s' AND msg_id='%s'",chat_id, msg_to_del);
-	   esql.executeUpdate(query3);
+	   int msg_id = Integer.parseInt(msg_to_del);
+	   if(esql.deleteMessage(chat_id, authorisedUser, msg_id))
+	       return msg_id;
+	   System.out.println("No message " + msg_id + " of yours in this chat.");
+	   return -1;
        }catch(Exception e){
 	   System.err.println (e.getMessage ());
+	   return -1;
        }
 
    }
@@ -0,0 +1,507 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmark for Messenger's data-access operations.  For every data size it
+ * rebuilds the schema in a dedicated database, seeds it from the first N
+ * users of project/data/*.csv plus generated contacts and messages, and then
+ * drives each operation from several threads for a fixed time, reporting
+ * throughput and latency percentiles.
+ *
+ * Message texts are drawn from a generated vocabulary in which a few words
+ * are common and most are rare, so that SearchMessages sees realistic match
+ * counts.  For a search benchmark at millions of messages raise
+ * bench.messagesPerChat and restrict the run with bench.ops=SearchMessages.
+ *
+ * The benchmark DROPS and recreates every table, never point it at a
+ * database holding real data.
+ *
+ */
+public class MessengerBench {
+
+   /**
+    * One benchmarked operation.  run() returns false once the operation has
+    * nothing left to work on (e.g. no more accounts to delete).
+    */
+   interface Operation {
+      boolean run (Random rnd) throws Exception;
+   }
+
+   // settings, all overridable with -Dbench.<name>
+   private final File _dataDir = new File (System.getProperty ("bench.dataDir", "../../data"));
+   private final File _sqlDir = new File (System.getProperty ("bench.sqlDir", "../../sql/src"));
+   private final int _threads = Integer.getInteger ("bench.threads", 4);
+   private final long _warmupMillis = Long.getLong ("bench.warmupMillis", 2000L);
+   private final long _measureMillis = Long.getLong ("bench.measureMillis", 5000L);
+   private final int _messagesPerChat = Integer.getInteger ("bench.messagesPerChat", 50);
+   private final int _contactsPerUser = Integer.getInteger ("bench.contactsPerUser", 5);
+   private final int _throwawayAccounts = Integer.getInteger ("bench.throwawayAccounts", 500);
+   private final int _vocabularySize = Integer.getInteger ("bench.vocabulary", 5000);
+   // comma separated operation names, all of them when unset
+   private final String _ops = System.getProperty ("bench.ops");
+
+   private static final String[] SYLLABLES = {
+      "ka", "lo", "mi", "ne", "ru", "ta", "so", "vi", "de", "po", "zu", "fa", "ri", "gon", "bel", "tor" };
+
+   private final String _url;
+   private final String _dbname;
+   private final String _dbport;
+   private final String _user;
+
+   // the seeded data the operations pick their arguments from
+   private final List<String[]> _users = new ArrayList<String[]>();
+   private final List<int[]> _memberships = new ArrayList<int[]>();
+   private final List<String> _memberLogins = new ArrayList<String>();
+   private final List<int[]> _editableMessages = new ArrayList<int[]>();
+   private final ConcurrentLinkedQueue<int[]> _deletableMessages = new ConcurrentLinkedQueue<int[]>();
+   // the sender of each seeded message, by the third field of the two above
+   private final List<String> _senders = new ArrayList<String>();
+   private final ConcurrentLinkedQueue<String> _throwaway = new ConcurrentLinkedQueue<String>();
+   private final List<String> _vocabulary = new ArrayList<String>();
+
+   public MessengerBench (String dbname, String dbport, String user) {
+      this._dbname = dbname;
+      this._dbport = dbport;
+      this._user = user;
+      this._url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+   }//end MessengerBench
+
+   //-----------------Seeding-------------
+
+   private static List<String[]> readCsv (File file) throws IOException {
+      List<String[]> rows = new ArrayList<String[]>();
+      if (!file.exists ())
+         return rows;
+      BufferedReader reader = new BufferedReader (new FileReader (file));
+      try{
+         String line;
+         while ((line = reader.readLine ()) != null) {
+            if (line.length () > 0)
+               rows.add (line.split (";", -1));
+         }//end while
+      }finally{
+         reader.close ();
+      }//end try
+      return rows;
+   }//end readCsv
+
+   /**
+    * Builds the words message texts are made of, the same ones on every
+    * run
+    */
+   private void buildVocabulary () {
+      this._vocabulary.clear ();
+      for (int i = 0; this._vocabulary.size () < this._vocabularySize; ++i) {
+         StringBuilder w = new StringBuilder ();
+         for (int n = i; ; n /= SYLLABLES.length) {
+            w.append (SYLLABLES[n % SYLLABLES.length]);
+            if (n < SYLLABLES.length)
+               break;
+         }//end for
+         // at least two syllables, so no word is a stop word
+         if (i >= SYLLABLES.length)
+            this._vocabulary.add (w.toString ());
+      }//end for
+   }//end buildVocabulary
+
+   /**
+    * Picks a word, low indexes far more often than high ones
+    */
+   private String word (Random rnd) {
+      double r = rnd.nextDouble ();
+      return this._vocabulary.get ((int) (r * r * r * this._vocabulary.size ()));
+   }//end word
+
+   private String messageText (Random rnd) {
+      StringBuilder text = new StringBuilder ();
+      for (int i = 6 + rnd.nextInt (7); i > 0; --i)
+         text.append (text.length () > 0 ? " " : "").append (word (rnd));
+      return text.toString ();
+   }//end messageText
+
+   private static Integer intOrNull (String s) {
+      return s == null || s.length () == 0 ? null : Integer.valueOf (s.trim ());
+   }//end intOrNull
+
+   /**
+    * Recreates the schema and loads a data set with the given number of users.
+    */
+   private void seed (int userCount) throws Exception {
+      this._users.clear ();
+      this._memberships.clear ();
+      this._memberLogins.clear ();
+      this._editableMessages.clear ();
+      this._deletableMessages.clear ();
+      this._throwaway.clear ();
+      buildVocabulary ();
+      Random rnd = new Random (42);
+
+      Connection conn = DriverManager.getConnection (this._url, this._user, "");
+      try{
+         SqlScript.run (conn, new File (this._sqlDir, "create_tables.sql"));
+         // the month partitions the generated history falls into
+         long start = System.currentTimeMillis () - 86400000L * 30;
+         MessageArchiver.createPartitions (conn, "MESSAGE", new Timestamp (start));
+         conn.setAutoCommit (false);
+
+         // users and the lists they own
+         Set<String> logins = new HashSet<String>();
+         Set<Integer> listIds = new HashSet<Integer>();
+         for (String[] u : readCsv (new File (this._dataDir, "usr.csv"))) {
+            if (this._users.size () >= userCount)
+               break;
+            if (!logins.add (u[0]))
+               continue;
+            this._users.add (u);
+            if (intOrNull (u[4]) != null) listIds.add (intOrNull (u[4]));
+            if (intOrNull (u[5]) != null) listIds.add (intOrNull (u[5]));
+         }//end for
+         PreparedStatement ps = conn.prepareStatement ("INSERT INTO USER_LIST(list_id, list_type) VALUES (?, ?)");
+         for (String[] l : readCsv (new File (this._dataDir, "usr_list.csv"))) {
+            if (!listIds.contains (Integer.valueOf (l[0].trim ())))
+               continue;
+            ps.setInt (1, Integer.parseInt (l[0].trim ()));
+            ps.setString (2, l[1]);
+            ps.addBatch ();
+         }//end for
+         ps.executeBatch ();
+         ps.close ();
+         // user_ids are given in file order, the references below use them
+         Map<String, Integer> userIds = new HashMap<String, Integer>();
+         ps = conn.prepareStatement ("INSERT INTO USR(user_id, login, phoneNum, password, status, block_list, contact_list) VALUES (?, ?, ?, ?, ?, ?, ?)");
+         for (String[] u : this._users) {
+            Integer id = Integer.valueOf (userIds.size () + 1);
+            userIds.put (u[0], id);
+            Messenger.bind (ps, new Object[] { id, u[0], u[1], u[2], u[3], intOrNull (u[4]), intOrNull (u[5]) });
+            ps.addBatch ();
+         }//end for
+         ps.executeBatch ();
+         ps.close ();
+
+         // generated contacts, the data set ships without USER_LIST_CONTAINS
+         ps = conn.prepareStatement ("INSERT INTO USER_LIST_CONTAINS(list_id, member_id) VALUES (?, ?)");
+         for (String[] u : this._users) {
+            Integer contactList = intOrNull (u[5]);
+            if (contactList == null)
+               continue;
+            Set<String> added = new HashSet<String>();
+            for (int i = 0; i < this._contactsPerUser && this._users.size () > 1; ++i) {
+               String member = this._users.get (rnd.nextInt (this._users.size ()))[0];
+               if (member.equals (u[0]) || !added.add (member))
+                  continue;
+               ps.setInt (1, contactList.intValue ());
+               ps.setInt (2, userIds.get (member).intValue ());
+               ps.addBatch ();
+            }//end for
+         }//end for
+         ps.executeBatch ();
+         ps.close ();
+
+         // chats started by a seeded user, and their seeded members
+         Set<Integer> chats = new HashSet<Integer>();
+         ps = conn.prepareStatement ("INSERT INTO CHAT(chat_id, chat_type, init_sender_id) VALUES (?, ?, ?)");
+         for (String[] c : readCsv (new File (this._dataDir, "chat.csv"))) {
+            if (!logins.contains (c[2]))
+               continue;
+            chats.add (Integer.valueOf (c[0].trim ()));
+            ps.setInt (1, Integer.parseInt (c[0].trim ()));
+            ps.setString (2, c[1]);
+            ps.setInt (3, userIds.get (c[2]).intValue ());
+            ps.addBatch ();
+         }//end for
+         ps.executeBatch ();
+         ps.close ();
+         Map<Integer, List<String>> members = new LinkedHashMap<Integer, List<String>>();
+         ps = conn.prepareStatement ("INSERT INTO CHAT_LIST(chat_id, member_id) VALUES (?, ?)");
+         for (String[] m : readCsv (new File (this._dataDir, "chat_list.csv"))) {
+            Integer chat = Integer.valueOf (m[0].trim ());
+            if (!chats.contains (chat) || !logins.contains (m[1]))
+               continue;
+            List<String> list = members.get (chat);
+            if (list == null) {
+               list = new ArrayList<String>();
+               members.put (chat, list);
+            }//end if
+            if (list.contains (m[1]))
+               continue;
+            list.add (m[1]);
+            this._memberships.add (new int[] { chat.intValue (), this._memberLogins.size () });
+            this._memberLogins.add (m[1]);
+            ps.setInt (1, chat.intValue ());
+            ps.setInt (2, userIds.get (m[1]).intValue ());
+            ps.addBatch ();
+         }//end for
+         ps.executeBatch ();
+         ps.close ();
+
+         // generated history, the data set ships without MESSAGE rows; the
+         // search column is computed here as the trigger is created later
+         int msgId = 0;
+         ps = conn.prepareStatement ("INSERT INTO MESSAGE(msg_id, msg_text, msg_timestamp, sender_id, chat_id, msg_tsv) " +
+            "VALUES (?, ?, ?, ?, ?, to_tsvector('english', ?))");
+         for (Map.Entry<Integer, List<String>> e : members.entrySet ()) {
+            for (int i = 0; i < this._messagesPerChat; ++i) {
+               ++msgId;
+               String text = messageText (rnd);
+               ps.setInt (1, msgId);
+               ps.setString (2, text);
+               ps.setTimestamp (3, new Timestamp (start + msgId * 1000L));
+               String sender = e.getValue ().get (rnd.nextInt (e.getValue ().size ()));
+               ps.setInt (4, userIds.get (sender).intValue ());
+               ps.setInt (5, e.getKey ().intValue ());
+               ps.setString (6, text);
+               ps.addBatch ();
+               // every fifth message is set aside for the delete benchmark
+               if (msgId % 5 == 0)
+                  this._deletableMessages.add (new int[] { e.getKey ().intValue (), msgId, this._senders.size () });
+               else
+                  this._editableMessages.add (new int[] { e.getKey ().intValue (), msgId, this._senders.size () });
+               this._senders.add (sender);
+               if (msgId % 5000 == 0)
+                  ps.executeBatch ();
+            }//end for
+         }//end for
+         ps.executeBatch ();
+         ps.close ();
+         conn.commit ();
+         conn.setAutoCommit (true);
+
+         SqlScript.run (conn, new File (this._sqlDir, "create_constraints.sql"));
+         SqlScript.run (conn, new File (this._sqlDir, "create_indexes.sql"));
+         SqlScript.run (conn, new File (this._sqlDir, "create_triggers.sql"));
+         Statement stmt = conn.createStatement ();
+         stmt.execute ("SELECT setval('usr_user_id_seq', (SELECT COALESCE(MAX(user_id), 0) + 1 FROM USR), false)");
+         stmt.execute ("SELECT setval('user_list_list_id_seq', (SELECT COALESCE(MAX(list_id), 0) + 1 FROM USER_LIST), false)");
+         stmt.execute ("SELECT setval('chat_chat_id_seq', (SELECT COALESCE(MAX(chat_id), 0) + 1 FROM CHAT), false)");
+         stmt.execute ("SELECT setval('message_msg_id_seq', (SELECT COALESCE(MAX(msg_id), 0) + 1 FROM MESSAGE), false)");
+         stmt.execute ("ANALYZE");
+         stmt.close ();
+      }finally{
+         conn.close ();
+      }//end try
+      System.out.println (String.format ("Seeded %d users, %d chats, %d memberships, %d messages",
+         this._users.size (), chatCount (), this._memberships.size (),
+         this._editableMessages.size () + this._deletableMessages.size ()));
+   }//end seed
+
+   private int chatCount () {
+      Set<Integer> chats = new HashSet<Integer>();
+      for (int[] m : this._memberships)
+         chats.add (Integer.valueOf (m[0]));
+      return chats.size ();
+   }//end chatCount
+
+   /**
+    * Creates accounts, each with a chat and a short history, for the
+    * account deletion benchmark to consume.
+    */
+   private void createThrowawayAccounts (Messenger esql, int count) throws SQLException {
+      for (int i = 0; i < count; ++i) {
+         String login = "bench_del_" + i;
+         esql.createUser (login, "x", "+0(000)000-" + i);
+         int chat_id = esql.newChat (login);
+         for (int m = 0; m < 10; ++m)
+            esql.createNewMessage (chat_id, login, "bye " + m);
+         this._throwaway.add (login);
+      }//end for
+   }//end createThrowawayAccounts
+
+   //-----------------Operations-------------
+
+   private Map<String, Operation> operations (final Messenger esql) {
+      Map<String, Operation> ops = new LinkedHashMap<String, Operation>();
+      ops.put ("LogIn", new Operation () {
+         public boolean run (Random rnd) throws Exception {
+            String[] u = _users.get (rnd.nextInt (_users.size ()));
+            esql.logIn (u[0], u[2]);
+            return true;
+         }
+      });
+      ops.put ("ListContacts", new Operation () {
+         public boolean run (Random rnd) throws Exception {
+            String[] u = _users.get (rnd.nextInt (_users.size ()));
+            esql.listContacts (u[0]);
+            return true;
+         }
+      });
+      ops.put ("BrowseChats", new Operation () {
+         public boolean run (Random rnd) throws Exception {
+            int[] m = _memberships.get (rnd.nextInt (_memberships.size ()));
+            esql.inbox (_memberLogins.get (m[1]));
+            esql.chatInitSender (m[0]);
+            esql.showMessages (m[0], null, -1, Messenger.MESSAGE_PAGE_SIZE);
+            return true;
+         }
+      });
+      ops.put ("SearchMessages", new Operation () {
+         public boolean run (Random rnd) throws Exception {
+            int[] m = _memberships.get (rnd.nextInt (_memberships.size ()));
+            esql.searchMessages (_memberLogins.get (m[1]), word (rnd), 0);
+            return true;
+         }
+      });
+      ops.put ("CreateNewMessage", new Operation () {
+         public boolean run (Random rnd) throws Exception {
+            int[] m = _memberships.get (rnd.nextInt (_memberships.size ()));
+            esql.createNewMessage (m[0], _memberLogins.get (m[1]), "benchmark send");
+            return true;
+         }
+      });
+      ops.put ("EditMessage", new Operation () {
+         public boolean run (Random rnd) throws Exception {
+            int[] m = _editableMessages.get (rnd.nextInt (_editableMessages.size ()));
+            esql.editMessage (m[0], _senders.get (m[2]), m[1], "benchmark edit");
+            return true;
+         }
+      });
+      ops.put ("DeleteMessage", new Operation () {
+         public boolean run (Random rnd) throws Exception {
+            int[] m = _deletableMessages.poll ();
+            if (m == null)
+               return false;
+            esql.deleteMessage (m[0], _senders.get (m[2]), m[1]);
+            return true;
+         }
+      });
+      ops.put ("DeleteAccount", new Operation () {
+         public boolean run (Random rnd) throws Exception {
+            String login = _throwaway.poll ();
+            if (login == null)
+               return false;
+            esql.deleteAccount (login);
+            return true;
+         }
+      });
+      if (this._ops != null) {
+         Map<String, Operation> selected = new LinkedHashMap<String, Operation>();
+         for (String name : this._ops.split (","))
+            if (ops.containsKey (name.trim ()))
+               selected.put (name.trim (), ops.get (name.trim ()));
+         return selected;
+      }//end if
+      return ops;
+   }//end operations
+
+   /**
+    * Drives one operation from all threads, first for the warm-up period
+    * and then for the measured period.
+    */
+   private void measure (final String name, final Operation op) throws InterruptedException {
+      final LatencyHistogram histogram = new LatencyHistogram ();
+      final AtomicBoolean recording = new AtomicBoolean (false);
+      final AtomicBoolean running = new AtomicBoolean (true);
+      final AtomicLong errors = new AtomicLong ();
+      Thread[] workers = new Thread[this._threads];
+      for (int t = 0; t < workers.length; ++t) {
+         final long seed = 1000L + t;
+         workers[t] = new Thread (new Runnable () {
+            public void run () {
+               Random rnd = new Random (seed);
+               while (running.get ()) {
+                  long start = System.nanoTime ();
+                  try{
+                     if (!op.run (rnd))
+                        return;
+                  }catch (Exception e){
+                     errors.incrementAndGet ();
+                  }//end try
+                  if (recording.get ())
+                     histogram.record (System.nanoTime () - start);
+               }//end while
+            }
+         }, "bench-" + name + "-" + t);
+         workers[t].start ();
+      }//end for
+
+      Thread.sleep (this._warmupMillis);
+      recording.set (true);
+      long start = System.nanoTime ();
+      Thread.sleep (this._measureMillis);
+      running.set (false);
+      for (Thread w : workers)
+         w.join ();
+      double seconds = Math.min (System.nanoTime () - start, this._measureMillis * 1000000L) / 1e9;
+
+      System.out.println (String.format ("  %-18s %10.1f ops/s  %s%s", name, histogram.count () / seconds,
+         histogram.summary (), errors.get () > 0 ? "  errors=" + errors.get () : ""));
+   }//end measure
+
+   /**
+    * Seeds and benchmarks every data size in turn
+    */
+   public void run (int[] sizes) throws Exception {
+      for (int size : sizes) {
+         System.out.println ("\n=== " + size + " users, " + this._threads + " threads ===");
+         seed (size);
+         Messenger esql = new Messenger (this._dbname, this._dbport, this._user, "");
+         try{
+            if (this._ops == null || this._ops.contains ("DeleteAccount"))
+               createThrowawayAccounts (esql, this._throwawayAccounts);
+            for (Map.Entry<String, Operation> e : operations (esql).entrySet ())
+               measure (e.getKey (), e.getValue ());
+         }finally{
+            esql.cleanup ();
+         }//end try
+      }//end for
+   }//end run
+
+   /**
+    * The main execution method
+    *
+    * @param args the command line arguments <dbname> <port> <user> [sizes]
+    */
+   public static void main (String[] args) {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            MessengerBench.class.getName () +
+            " <dbname> <port> <user> [user counts, e.g. 1000,5000,20000]");
+         return;
+      }//end if
+      String[] s = (args.length > 3 ? args[3] : "1000,5000,20000").split (",");
+      int[] sizes = new int[s.length];
+      for (int i = 0; i < s.length; ++i)
+         sizes[i] = Integer.parseInt (s[i].trim ());
+      try{
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         new MessengerBench (args[0], args[1], args[2]).run (sizes);
+      }catch (Exception e){
+         System.err.println (e.getMessage ());
+         System.exit (1);
+      }//end try
+   }//end main
+
+}//end MessengerBench
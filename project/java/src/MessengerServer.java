@@ -0,0 +1,549 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves many Messenger sessions from one JVM.  Clients connect to a local
+ * TCP port and send one request per line; every session runs on its own
+ * thread and all of them share the connection pool of a single Messenger.
+ * As Messenger keeps the reads of a thread that just wrote on the primary,
+ * a session reads its own writes when replicas are in use.
+ *
+ * A request is a request type followed by its arguments, separated by tabs.
+ * The last argument may hold tabs itself (message text).  Every request
+ * gets exactly one reply:
+ *
+ *   OK &lt;n&gt;         followed by n result rows, fields separated by tabs
+ *   ERR &lt;message&gt;  the request failed, the session stays open
+ *
+ * Tabs, newlines and backslashes inside result fields are escaped as \t,
+ * \n and \\.  Request types, mirroring the console menu:
+ *
+ *   CREATE_USER login password phone      LOGIN login password
+ *   RESUME token                          LOGOUT
+ *   QUIT
+ *   LIST_CONTACTS                         LIST_BLOCKED
+ *   ADD_CONTACT login                     DELETE_CONTACT login
+ *   ADD_BLOCKED login                     DELETE_BLOCKED login
+ *   LIST_CHATS                            NEW_CHAT [login ...]
+ *   INBOX                                 MARK_READ chat_id
+ *   ADD_MEMBER chat_id login              DELETE_MEMBER chat_id login
+ *   SWITCH_TO_GROUP chat_id               DELETE_CHAT chat_id
+ *   SHOW_MESSAGES chat_id [before_ts before_id]
+ *   SEND chat_id text                     EDIT chat_id msg_id text
+ *   DELETE_MESSAGE chat_id msg_id         DELETE_ACCOUNT (replies deleted or queued)
+ *   WAIT chat_id last_msg_id              SEARCH words [page]
+ *   STATS
+ *
+ * LOGIN replies with one row holding a session token.  A client that
+ * reconnects sends RESUME with it instead of logging in again, which does
+ * not touch the database.  Everything but CREATE_USER, LOGIN, RESUME, STATS and
+ * QUIT needs a logged in session.
+ * Changing a chat's members or deleting it is left to its init sender,
+ * as in the menu.
+ * WAIT holds the reply until something happens in the chat or
+ * server.waitMillis (25000) pass.  It replies with a row
+ * NEW sender msg_id timestamp text for every message above last_msg_id,
+ * a row CHANGED when a message was edited or deleted, or no rows.
+ * INBOX replies with (chat_id, last sender, last timestamp, preview,
+ * unread) rows, most recent chat first.
+ * SEARCH replies with (chat_id, sender, msg_id, timestamp, text, rank)
+ * rows of the user's chats, best match first, ten per page.
+ * STATS replies with the database work per request type (operation, calls,
+ * round trips, rows, errors, total/mean/p50/p99/p999/max ms), the same
+ * numbers the Messenger:type=Operation MBeans show.
+ *
+ * Settings: -Dserver.port (5166), -Dserver.maxSessions (2000),
+ * -Dserver.idleMillis (600000, sessions idle for longer are closed) and
+ * -Dserver.waitMillis (25000).
+ *
+ */
+public class MessengerServer {
+
+   private final int _port = Integer.getInteger ("server.port", 5166);
+   private final int _maxSessions = Integer.getInteger ("server.maxSessions", 2000);
+   private final int _idleMillis = Integer.getInteger ("server.idleMillis", 600000);
+   private final int _waitMillis = Integer.getInteger ("server.waitMillis", 25000);
+
+   // the request types handle() knows, anything else is counted as UNKNOWN
+   // so clients cannot add operations to the stats
+   static final Set<String> REQUEST_TYPES = new HashSet<String> (Arrays.asList (
+      "CREATE_USER", "LOGIN", "RESUME", "LOGOUT", "LIST_CONTACTS", "LIST_BLOCKED",
+      "ADD_CONTACT", "DELETE_CONTACT", "ADD_BLOCKED", "DELETE_BLOCKED", "LIST_CHATS",
+      "INBOX", "MARK_READ", "NEW_CHAT", "ADD_MEMBER", "DELETE_MEMBER", "SWITCH_TO_GROUP",
+      "DELETE_CHAT", "SHOW_MESSAGES", "SEND", "EDIT", "DELETE_MESSAGE", "SEARCH", "WAIT",
+      "STATS", "DELETE_ACCOUNT"));
+
+   private final Messenger _esql;
+   private final AtomicInteger _sessions = new AtomicInteger ();
+   private final AtomicInteger _sessionIds = new AtomicInteger ();
+
+   // one thread per session, created on demand and reused once a session ends
+   private final ExecutorService _executor = Executors.newCachedThreadPool (new ThreadFactory () {
+      public Thread newThread (Runnable r) {
+         Thread t = new Thread (r, "session-" + _sessionIds.incrementAndGet ());
+         t.setDaemon (true);
+         return t;
+      }
+   });
+
+   private volatile ServerSocket _server;
+
+   /**
+    * Thrown for requests that are malformed or not allowed, the message is
+    * sent back to the client
+    */
+   static class RequestException extends Exception {
+      private static final long serialVersionUID = 1L;
+
+      RequestException (String message) {
+         super (message);
+      }
+   }//end RequestException
+
+   public MessengerServer (Messenger esql) {
+      this._esql = esql;
+   }//end MessengerServer
+
+   /**
+    * Accepts sessions until the server socket is closed
+    */
+   public void serve () throws IOException {
+      this._server = new ServerSocket (this._port, 128, InetAddress.getByName ("localhost"));
+      System.out.println ("Messenger server listening on localhost:" + this._port);
+      try{
+         while (true) {
+            final Socket socket;
+            try{
+               socket = this._server.accept ();
+            }catch (IOException e){
+               if (this._server.isClosed ())
+                  return;
+               System.err.println (e.getMessage ());
+               continue;
+            }//end try
+            if (this._sessions.incrementAndGet () > this._maxSessions) {
+               this._sessions.decrementAndGet ();
+               reject (socket, "server busy, try again later");
+               continue;
+            }//end if
+            this._executor.execute (new Runnable () {
+               public void run () {
+                  try{
+                     new Session (socket).run ();
+                  }finally{
+                     _sessions.decrementAndGet ();
+                  }//end try
+               }
+            });
+         }//end while
+      }finally{
+         this._executor.shutdownNow ();
+      }//end try
+   }//end serve
+
+   /**
+    * Stops accepting sessions
+    */
+   public void close () {
+      try{
+         if (this._server != null)
+            this._server.close ();
+      }catch (IOException e){
+         // nothing left to do
+      }//end try
+   }//end close
+
+   private static void reject (Socket socket, String message) {
+      try{
+         Writer out = new OutputStreamWriter (socket.getOutputStream (), "UTF-8");
+         out.write ("ERR " + message + "\n");
+         out.flush ();
+         socket.close ();
+      }catch (IOException e){
+         // the client is gone already
+      }//end try
+   }//end reject
+
+   /**
+    * Escapes a result field so it fits on one line between tabs
+    */
+   static String escape (String field) {
+      if (field == null)
+         return "";
+      StringBuilder sb = new StringBuilder (field.length ());
+      for (int i = 0; i < field.length (); ++i) {
+         char c = field.charAt (i);
+         switch (c) {
+            case '\\': sb.append ("\\\\"); break;
+            case '\t': sb.append ("\\t"); break;
+            case '\n': sb.append ("\\n"); break;
+            case '\r': sb.append ("\\r"); break;
+            default: sb.append (c); break;
+         }//end switch
+      }//end for
+      return sb.toString ();
+   }//end escape
+
+   //-----------------Session-------------
+
+   /**
+    * One client connection and the user logged in on it
+    */
+   class Session {
+      private final Socket _socket;
+      private UserSession _authorised;
+
+      Session (Socket socket) {
+         this._socket = socket;
+      }
+
+      void run () {
+         try{
+            this._socket.setSoTimeout (_idleMillis);
+            this._socket.setTcpNoDelay (true);
+            BufferedReader in = new BufferedReader (new InputStreamReader (this._socket.getInputStream (), "UTF-8"));
+            Writer out = new BufferedWriter (new OutputStreamWriter (this._socket.getOutputStream (), "UTF-8"));
+            String line;
+            while ((line = in.readLine ()) != null) {
+               if (line.trim ().length () == 0)
+                  continue;
+               String[] request = line.split ("\t");
+               if ("QUIT".equalsIgnoreCase (request[0].trim ())) {
+                  out.write ("OK 0\n");
+                  out.flush ();
+                  break;
+               }//end if
+               List<List<String>> rows;
+               String type = request[0].trim ().toUpperCase ();
+               // the database work of the request is counted under its type
+               OperationStats.Scope op = _esql.stats ().begin (REQUEST_TYPES.contains (type) ? type : "UNKNOWN");
+               try{
+                  rows = handle (type, line);
+               }catch (RequestException e){
+                  op.fail ();
+                  out.write ("ERR " + escape (e.getMessage ()) + "\n");
+                  out.flush ();
+                  continue;
+               }catch (SQLException e){
+                  op.fail ();
+                  out.write ("ERR " + escape (e.getMessage ()) + "\n");
+                  out.flush ();
+                  continue;
+               }catch (NumberFormatException e){
+                  op.fail ();
+                  out.write ("ERR not a number: " + escape (e.getMessage ()) + "\n");
+                  out.flush ();
+                  continue;
+               }finally{
+                  op.end ();
+               }//end try
+               out.write ("OK " + rows.size () + "\n");
+               for (List<String> row : rows) {
+                  for (int i = 0; i < row.size (); ++i) {
+                     if (i > 0)
+                        out.write ('\t');
+                     out.write (escape (row.get (i)));
+                  }//end for
+                  out.write ('\n');
+               }//end for
+               out.flush ();
+            }//end while
+         }catch (SocketTimeoutException e){
+            // idle for too long
+         }catch (IOException e){
+            // the client went away
+         }finally{
+            try{
+               this._socket.close ();
+            }catch (IOException e){
+               // already closed
+            }//end try
+         }//end try
+      }//end run
+
+      private UserSession session () throws RequestException {
+         if (this._authorised == null)
+            throw new RequestException ("log in first");
+         return this._authorised;
+      }//end session
+
+      private String user () throws RequestException {
+         return session ().getLogin ();
+      }//end user
+
+      /**
+       * Only the init sender may change a chat's members or delete it
+       */
+      private void checkInitSender (int chat_id) throws RequestException, SQLException {
+         if (!user ().equals (_esql.chatInitSender (chat_id)))
+            throw new RequestException ("only the init sender of chat " + chat_id + " may do that");
+      }//end checkInitSender
+
+      /**
+       * Only the members of a chat may read it or write to it
+       */
+      private void checkMember (int chat_id) throws RequestException, SQLException {
+         if (!_esql.isChatMember (chat_id, user ()))
+            throw new RequestException ("not a member of chat " + chat_id);
+      }//end checkMember
+
+      /**
+       * Splits a request into exactly count fields, the last one keeps any
+       * further tabs
+       */
+      private String[] args (String line, int count) throws RequestException {
+         String[] f = line.split ("\t", count + 1);
+         if (f.length < count + 1)
+            throw new RequestException (f[0].trim () + " takes " + count + " argument(s)");
+         return f;
+      }//end args
+
+      private List<List<String>> ok () {
+         return Collections.emptyList ();
+      }//end ok
+
+      private List<List<String>> one (String value) {
+         List<List<String>> rows = new ArrayList<List<String>>();
+         rows.add (Collections.singletonList (value));
+         return rows;
+      }//end one
+
+      /**
+       * Holds the request until the chat listener reports the chat
+       */
+      private List<List<String>> waitForMessages (int chat_id, int last_id) throws RequestException {
+         final LinkedBlockingQueue<List<List<String>>> events = new LinkedBlockingQueue<List<List<String>>>();
+         ChatListener.Subscription s = _esql.subscribeToChat (chat_id, last_id, new ChatListener.Listener () {
+            public void messagesArrived (int chat, List<ChatMessage> messages) {
+               List<List<String>> rows = new ArrayList<List<String>>(messages.size ());
+               for (ChatMessage m : messages)
+                  rows.add (Arrays.asList ("NEW", m.getSender (), String.valueOf (m.getMsgId ()),
+                     String.valueOf (m.getTimestamp ()), m.getText ()));
+               events.add (rows);
+            }
+            public void messagesChanged (int chat) {
+               events.add (Collections.singletonList (Collections.singletonList ("CHANGED")));
+            }
+         });
+         try{
+            List<List<String>> rows = events.poll (_waitMillis, TimeUnit.MILLISECONDS);
+            if (rows == null)
+               return ok ();
+            List<List<String>> all = new ArrayList<List<String>>(rows);
+            while ((rows = events.poll ()) != null)
+               all.addAll (rows);
+            return all;
+         }catch (InterruptedException e){
+            Thread.currentThread ().interrupt ();
+            throw new RequestException ("server shutting down");
+         }finally{
+            s.close ();
+         }//end try
+      }//end waitForMessages
+
+      private List<List<String>> handle (String type, String line) throws RequestException, SQLException {
+         if ("CREATE_USER".equals (type)) {
+            String[] a = args (line, 3);
+            _esql.createUser (a[1], a[2], a[3]);
+            return ok ();
+         }else if ("LOGIN".equals (type)) {
+            String[] a = args (line, 2);
+            UserSession s = _esql.openSession (a[1], a[2]);
+            if (s == null)
+               throw new RequestException ("wrong login or password");
+            this._authorised = s;
+            return one (s.getToken ());
+         }else if ("RESUME".equals (type)) {
+            UserSession s = _esql.resumeSession (args (line, 1)[1].trim ());
+            if (s == null)
+               throw new RequestException ("unknown or expired session, log in again");
+            this._authorised = s;
+            return ok ();
+         }else if ("LOGOUT".equals (type)) {
+            if (this._authorised != null)
+               _esql.closeSession (this._authorised);
+            this._authorised = null;
+            return ok ();
+         }else if ("LIST_CONTACTS".equals (type)) {
+            return _esql.listContacts (user ());
+         }else if ("LIST_BLOCKED".equals (type)) {
+            return _esql.listBlocked (user ());
+         }else if ("ADD_CONTACT".equals (type)) {
+            _esql.addToContact (session (), args (line, 1)[1]);
+            return ok ();
+         }else if ("DELETE_CONTACT".equals (type)) {
+            _esql.deleteContact (session (), args (line, 1)[1]);
+            return ok ();
+         }else if ("ADD_BLOCKED".equals (type)) {
+            _esql.addToBlocked (session (), args (line, 1)[1]);
+            return ok ();
+         }else if ("DELETE_BLOCKED".equals (type)) {
+            _esql.deleteBlocked (session (), args (line, 1)[1]);
+            return ok ();
+         }else if ("LIST_CHATS".equals (type)) {
+            return _esql.listChats (user ());
+         }else if ("INBOX".equals (type)) {
+            return _esql.inbox (user ());
+         }else if ("MARK_READ".equals (type)) {
+            _esql.markChatRead (Integer.parseInt (args (line, 1)[1].trim ()), user ());
+            return ok ();
+         }else if ("NEW_CHAT".equals (type)) {
+            String[] f = line.split ("\t");
+            String[] members = new String[f.length - 1];
+            System.arraycopy (f, 1, members, 0, members.length);
+            return one (String.valueOf (_esql.newChat (user (), members)));
+         }else if ("ADD_MEMBER".equals (type)) {
+            String[] a = args (line, 2);
+            int chat_id = Integer.parseInt (a[1].trim ());
+            checkInitSender (chat_id);
+            _esql.addMemberToChat (chat_id, a[2]);
+            return ok ();
+         }else if ("DELETE_MEMBER".equals (type)) {
+            String[] a = args (line, 2);
+            int chat_id = Integer.parseInt (a[1].trim ());
+            checkInitSender (chat_id);
+            _esql.deleteMemberFromChat (chat_id, a[2]);
+            return ok ();
+         }else if ("SWITCH_TO_GROUP".equals (type)) {
+            int chat_id = Integer.parseInt (args (line, 1)[1].trim ());
+            checkInitSender (chat_id);
+            _esql.switchToGroup (chat_id);
+            return ok ();
+         }else if ("DELETE_CHAT".equals (type)) {
+            int chat_id = Integer.parseInt (args (line, 1)[1].trim ());
+            checkInitSender (chat_id);
+            _esql.deleteChat (chat_id);
+            return ok ();
+         }else if ("SHOW_MESSAGES".equals (type)) {
+            String[] f = line.split ("\t");
+            if (f.length != 2 && f.length != 4)
+               throw new RequestException ("SHOW_MESSAGES takes chat_id [before_ts before_id]");
+            int chat_id = Integer.parseInt (f[1].trim ());
+            checkMember (chat_id);
+            if (f.length == 2)
+               return _esql.showMessages (chat_id, null, -1, Messenger.MESSAGE_PAGE_SIZE);
+            return _esql.showMessages (chat_id, f[2], Integer.parseInt (f[3].trim ()), Messenger.MESSAGE_PAGE_SIZE);
+         }else if ("SEND".equals (type)) {
+            String[] a = args (line, 2);
+            int chat_id = Integer.parseInt (a[1].trim ());
+            checkMember (chat_id);
+            _esql.createNewMessage (chat_id, user (), a[2]);
+            return ok ();
+         }else if ("EDIT".equals (type)) {
+            String[] a = args (line, 3);
+            int chat_id = Integer.parseInt (a[1].trim ());
+            checkMember (chat_id);
+            if (_esql.editMessage (chat_id, user (), Integer.parseInt (a[2].trim ()), a[3]) == null)
+               throw new RequestException ("no message " + a[2].trim () + " of yours in chat " + chat_id);
+            return ok ();
+         }else if ("DELETE_MESSAGE".equals (type)) {
+            String[] a = args (line, 2);
+            int chat_id = Integer.parseInt (a[1].trim ());
+            checkMember (chat_id);
+            if (!_esql.deleteMessage (chat_id, user (), Integer.parseInt (a[2].trim ())))
+               throw new RequestException ("no message " + a[2].trim () + " of yours in chat " + chat_id);
+            return ok ();
+         }else if ("SEARCH".equals (type)) {
+            String[] f = line.split ("\t");
+            if (f.length != 2 && f.length != 3)
+               throw new RequestException ("SEARCH takes words [page]");
+            return _esql.searchMessages (user (), f[1], f.length == 3 ? Integer.parseInt (f[2].trim ()) : 0);
+         }else if ("WAIT".equals (type)) {
+            String[] a = args (line, 2);
+            int chat_id = Integer.parseInt (a[1].trim ());
+            checkMember (chat_id);
+            return waitForMessages (chat_id, Integer.parseInt (a[2].trim ()));
+         }else if ("STATS".equals (type)) {
+            user ();
+            return _esql.stats ().rows ();
+         }else if ("DELETE_ACCOUNT".equals (type)) {
+            boolean deleted = _esql.deleteAccount (user ());
+            this._authorised = null;
+            return one (deleted ? "deleted" : "queued");
+         }//end if
+         throw new RequestException ("unknown request " + type);
+      }//end handle
+   }//end Session
+
+   /**
+    * The main execution method
+    *
+    * @param args the command line arguments <dbname> <port> <user>
+    */
+   public static void main (String[] args) {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] [-Dserver.port=<port>] " +
+            MessengerServer.class.getName () +
+            " <dbname> <port> <user>");
+         return;
+      }//end if
+      // sessions mostly wait on their clients, a small pool serves many of them
+      if (System.getProperty ("messenger.poolSize") == null)
+         System.setProperty ("messenger.poolSize", "16");
+      // sends from all sessions share commits
+      if (System.getProperty ("messenger.groupCommit") == null)
+         System.setProperty ("messenger.groupCommit", "true");
+      final Messenger esql;
+      try{
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         esql = new Messenger (args[0], args[1], args[2], "");
+      }catch (Exception e){
+         System.err.println (e.getMessage ());
+         return;
+      }//end try
+      // finish deleting accounts queued before the last shutdown
+      esql.startPurger ();
+      // keep MESSAGE partitioned ahead and archive expired months
+      esql.startArchiver ();
+      final MessengerServer server = new MessengerServer (esql);
+      Runtime.getRuntime ().addShutdownHook (new Thread () {
+         public void run () {
+            server.close ();
+            esql.cleanup ();
+         }
+      });
+      try{
+         server.serve ();
+      }catch (IOException e){
+         System.err.println (e.getMessage ());
+         System.exit (1);
+      }//end try
+   }//end main
+
+}//end MessengerServer
@@ -0,0 +1,278 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Database work per logical operation (LogIn, BrowseChats, SEND, ...).
+ *
+ * A caller opens a scope named after the operation with begin and ends it
+ * when the operation is done; every round trip Messenger's query helpers
+ * make on that thread meanwhile is charged to it.  Scopes nest, a round trip
+ * counts for the innermost one only.  Round trips made outside any scope
+ * are kept under "(untagged)", one invocation each.
+ *
+ * Per operation there are the invocations, round trips, rows and failed
+ * invocations, and a LatencyHistogram of the database time of each
+ * invocation.  That is the time spent in the helpers, not the wall time: a
+ * menu flow also waits for the keyboard.
+ *
+ * Every operation is registered as an MBean named
+ * Messenger:type=Operation,name="&lt;operation&gt;" when first seen.
+ *
+ */
+public class OperationStats {
+
+   public static final String UNTAGGED = "(untagged)";
+
+   /**
+    * The JMX view of one operation, times in milliseconds
+    */
+   public interface OperationMBean {
+      long getCalls ();
+      long getRoundTrips ();
+      long getRows ();
+      long getErrors ();
+      double getTotalMillis ();
+      double getMeanMillis ();
+      double getP50Millis ();
+      double getP99Millis ();
+      double getP999Millis ();
+      double getMaxMillis ();
+      void reset ();
+   }//end OperationMBean
+
+   /**
+    * The counters of one operation
+    */
+   static class Operation implements OperationMBean {
+      final String name;
+      private final LatencyHistogram _latency = new LatencyHistogram ();
+      private final AtomicLong _roundTrips = new AtomicLong ();
+      private final AtomicLong _rows = new AtomicLong ();
+      private final AtomicLong _errors = new AtomicLong ();
+
+      Operation (String name) {
+         this.name = name;
+      }
+
+      void add (long nanos, long roundTrips, long rows, boolean error) {
+         this._latency.record (nanos);
+         this._roundTrips.addAndGet (roundTrips);
+         this._rows.addAndGet (rows);
+         if (error)
+            this._errors.incrementAndGet ();
+      }
+
+      public long getCalls () { return this._latency.count (); }
+      public long getRoundTrips () { return this._roundTrips.get (); }
+      public long getRows () { return this._rows.get (); }
+      public long getErrors () { return this._errors.get (); }
+      public double getTotalMillis () { return this._latency.meanMicros () * this._latency.count () / 1000.0; }
+      public double getMeanMillis () { return this._latency.meanMicros () / 1000.0; }
+      public double getP50Millis () { return this._latency.percentileMicros (0.50) / 1000.0; }
+      public double getP99Millis () { return this._latency.percentileMicros (0.99) / 1000.0; }
+      public double getP999Millis () { return this._latency.percentileMicros (0.999) / 1000.0; }
+      public double getMaxMillis () { return this._latency.maxMicros () / 1000.0; }
+
+      public void reset () {
+         this._latency.reset ();
+         this._roundTrips.set (0);
+         this._rows.set (0);
+         this._errors.set (0);
+      }
+   }//end Operation
+
+   /**
+    * One running invocation of an operation on the calling thread
+    */
+   public class Scope {
+      private final String _name;
+      private final Scope _outer;
+      private long _nanos = 0;
+      private long _roundTrips = 0;
+      private long _rows = 0;
+      private boolean _error = false;
+      private boolean _ended = false;
+
+      Scope (String name, Scope outer) {
+         this._name = name;
+         this._outer = outer;
+      }
+
+      /**
+       * Marks the invocation as failed, for failures the helpers did not see
+       */
+      public void fail () {
+         this._error = true;
+      }
+
+      /**
+       * Ends the invocation and records it; ending it again does nothing
+       */
+      public void end () {
+         if (this._ended)
+            return;
+         this._ended = true;
+         // an inner scope left open by an exception ends with this one
+         Scope s = OperationStats.this._current.get ();
+         while (s != null && s != this) {
+            s.end ();
+            s = OperationStats.this._current.get ();
+         }//end while
+         if (this._outer == null)
+            OperationStats.this._current.remove ();
+         else
+            OperationStats.this._current.set (this._outer);
+         operation (this._name).add (this._nanos, this._roundTrips, this._rows, this._error);
+      }
+   }//end Scope
+
+   private final ConcurrentMap<String, Operation> _operations = new ConcurrentHashMap<String, Operation>();
+   private final ThreadLocal<Scope> _current = new ThreadLocal<Scope>();
+
+   /**
+    * Opens a scope on the calling thread, the caller ends it in a finally
+    *
+    * @param name the operation, e.g. "LogIn"
+    */
+   public Scope begin (String name) {
+      Scope scope = new Scope (name, this._current.get ());
+      this._current.set (scope);
+      return scope;
+   }//end begin
+
+   /**
+    * @return the name of the calling thread's innermost scope, UNTAGGED if
+    *         it has none
+    */
+   public String current () {
+      Scope scope = this._current.get ();
+      return scope == null ? UNTAGGED : scope._name;
+   }//end current
+
+   /**
+    * Charges one round trip to the calling thread's innermost scope
+    *
+    * @param nanos the time the round trip took
+    * @param rows the rows it returned or affected
+    * @param error true if it failed
+    */
+   public void record (long nanos, long rows, boolean error) {
+      Scope scope = this._current.get ();
+      if (scope == null) {
+         operation (UNTAGGED).add (nanos, 1, rows, error);
+         return;
+      }//end if
+      scope._nanos += nanos;
+      ++scope._roundTrips;
+      scope._rows += rows;
+      scope._error |= error;
+   }//end record
+
+   private Operation operation (String name) {
+      Operation op = this._operations.get (name);
+      if (op != null)
+         return op;
+      op = new Operation (name);
+      Operation raced = this._operations.putIfAbsent (name, op);
+      if (raced != null)
+         return raced;
+      register (op);
+      return op;
+   }//end operation
+
+   private static void register (Operation op) {
+      try{
+         MBeanServer server = ManagementFactory.getPlatformMBeanServer ();
+         ObjectName name = new ObjectName ("Messenger:type=Operation,name=" + ObjectName.quote (op.name));
+         if (!server.isRegistered (name))
+            server.registerMBean (new StandardMBean (op, OperationMBean.class), name);
+      }catch (JMException e){
+         // the statistics are still shown by printStats
+      }catch (SecurityException e){
+         // ditto
+      }//end try
+   }//end register
+
+   /**
+    * @return the operations seen so far, most database time first
+    */
+   List<Operation> operations () {
+      List<Operation> ops = new ArrayList<Operation>(this._operations.values ());
+      Collections.sort (ops, new Comparator<Operation> () {
+         public int compare (Operation a, Operation b) {
+            return Double.compare (b.getTotalMillis (), a.getTotalMillis ());
+         }
+      });
+      return ops;
+   }//end operations
+
+   /**
+    * Formats the statistics as rows of operation, calls, round trips, rows,
+    * errors, total/mean/p50/p99/p999/max milliseconds
+    */
+   public List<List<String>> rows () {
+      List<List<String>> rows = new ArrayList<List<String>>();
+      for (Operation op : operations ()) {
+         List<String> row = new ArrayList<String>();
+         row.add (op.name);
+         row.add (String.valueOf (op.getCalls ()));
+         row.add (String.valueOf (op.getRoundTrips ()));
+         row.add (String.valueOf (op.getRows ()));
+         row.add (String.valueOf (op.getErrors ()));
+         row.add (String.format ("%.1f", op.getTotalMillis ()));
+         row.add (String.format ("%.2f", op.getMeanMillis ()));
+         row.add (String.format ("%.2f", op.getP50Millis ()));
+         row.add (String.format ("%.2f", op.getP99Millis ()));
+         row.add (String.format ("%.2f", op.getP999Millis ()));
+         row.add (String.format ("%.2f", op.getMaxMillis ()));
+         rows.add (row);
+      }//end for
+      return rows;
+   }//end rows
+
+   /**
+    * Prints one line per operation, most database time first
+    */
+   public void printStats () {
+      System.out.println ("Database work per operation (ms)");
+      System.out.println ("--------------------------------");
+      System.out.println (String.format ("%-24s %8s %8s %9s %6s %10s %8s %8s %8s %8s %8s",
+         "operation", "calls", "trips", "rows", "errors", "total", "mean", "p50", "p99", "p999", "max"));
+      for (List<String> r : rows ())
+         System.out.println (String.format ("%-24s %8s %8s %9s %6s %10s %8s %8s %8s %8s %8s",
+            r.get (0), r.get (1), r.get (2), r.get (3), r.get (4), r.get (5), r.get (6), r.get (7),
+            r.get (8), r.get (9), r.get (10)));
+   }//end printStats
+
+   /**
+    * Forgets the statistics of every operation
+    */
+   public void reset () {
+      for (Operation op : this._operations.values ())
+         op.reset ();
+   }//end reset
+
+}//end OperationStats
@@ -0,0 +1,263 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Plan regression checker.  Runs EXPLAIN on every query shape in Queries
+ * against a loaded database, with bind values sampled from the data, and
+ * fails when a plan falls back to a sequential scan on one of the watched
+ * tables (MESSAGE and CHAT_LIST by default).
+ *
+ * Run it against a database of production size; on a tiny database the
+ * planner may rightly prefer a sequential scan.
+ *
+ */
+public class PlanChecker {
+
+   // sample values the query shapes are explained with
+   private int _chatId = 0;
+   private int _msgId = 0;
+   private String _msgTimestamp = "now";
+   private String _login = "";
+   private int _contactList = 0;
+   private int _blockList = 0;
+
+   /**
+    * Picks realistic bind values from the loaded data so that the planner
+    * sees the same kind of selectivity it does at run time.
+    */
+   private void sample (Connection conn) throws SQLException {
+      ResultSet rs = conn.createStatement ().executeQuery (
+         "SELECT M.chat_id, M.msg_id, M.msg_timestamp, U.login FROM MESSAGE M JOIN USR U ON U.user_id = M.sender_id " +
+         "ORDER BY M.msg_id DESC LIMIT 1");
+      if (rs.next ()) {
+         this._chatId = rs.getInt (1);
+         this._msgId = rs.getInt (2);
+         this._msgTimestamp = rs.getString (3);
+         this._login = rs.getString (4).trim ();
+      }else{
+         rs = conn.createStatement ().executeQuery (
+            "SELECT C.chat_id, U.login FROM CHAT_LIST C JOIN USR U ON U.user_id = C.member_id LIMIT 1");
+         if (rs.next ()) {
+            this._chatId = rs.getInt (1);
+            this._login = rs.getString (2).trim ();
+         }//end if
+      }//end if
+      rs = conn.createStatement ().executeQuery (String.format (
+         "SELECT contact_list, block_list FROM USR WHERE login = '%s'", this._login.replace ("'", "''")));
+      if (rs.next ()) {
+         this._contactList = rs.getInt (1);
+         this._blockList = rs.getInt (2);
+      }//end if
+   }//end sample
+
+   /**
+    * Returns the bind values for a query shape, or null if the checker does
+    * not know the shape yet.
+    */
+   private static final Object[] PROVISION_LIST_ROW = new Object[] { 0, "contact" };
+   private static final Object[] PROVISION_USER_ROW = new Object[] { "+1(000)000-0000", "plan_check", "x", 0, 0 };
+
+   private static Object[] repeat (Object[] row, int times) {
+      Object[] args = new Object[row.length * times];
+      for (int i = 0; i < times; ++i)
+         System.arraycopy (row, 0, args, i * row.length, row.length);
+      return args;
+   }//end repeat
+
+   private Object[] argsFor (String shape) {
+      switch (shape) {
+         case "PROVISION_LIST": return PROVISION_LIST_ROW;
+         case "PROVISION_LISTS": return repeat (PROVISION_LIST_ROW, Queries.PROVISION_ROWS);
+         case "PROVISION_USER": return PROVISION_USER_ROW;
+         case "PROVISION_USERS": return repeat (PROVISION_USER_ROW, Queries.PROVISION_ROWS);
+         case "CURRENT_WAL_LSN":
+         case "REPLAYED_WAL_LSN": return new Object[0];
+         case "NEXT_SEQ_VAL": return new Object[] { "message_msg_id_seq" };
+         case "NEXT_SEQ_VALS": return new Object[] { "user_list_list_id_seq", 2 };
+         case "CREATE_USER_ACCOUNT": return new Object[] { "+1(000)000-0000", "plan_check", "x" };
+         case "REHASH_PASSWORD": return new Object[] { "x", this._login, "x" };
+         case "USER_CREDENTIALS":
+         case "USER_LISTS":
+         case "DELETE_USER":
+         case "USER_ID_OF":
+         case "DELETE_USER_STUB":
+         case "LIST_CONTACTS":
+         case "LIST_BLOCKED":
+         case "USER_INBOX":
+         case "USER_CHATS":
+         case "DELETE_USER_MEMBERSHIPS":
+         case "DELETE_INIT_CHAT_MEMBERS":
+         case "DELETE_USER_INIT_CHATS":
+         case "DELETE_USER_MESSAGES":
+         case "DELETE_INIT_CHAT_MESSAGES":
+         case "DEQUEUE_PURGE": return new Object[] { this._login };
+         case "ACCOUNT_MESSAGES_UP_TO": return new Object[] { this._login, this._login, 5001 };
+         case "LOCK_OUT_USER": return new Object[] { "x", this._login };
+         case "ENQUEUE_PURGE": return new Object[] { this._login };
+         case "USER_LOGINS": return new Object[] { "{1,2}" };
+         case "CREATE_USER_STUB": return new Object[] { 0, "plan_check", "#0", "x" };
+         case "ALL_CHATS":
+         case "NEXT_PURGE": return new Object[] {};
+         case "RETRY_PURGE": return new Object[] { 60000L, 3600000L, this._login };
+         case "PURGE_USER_MESSAGES":
+         case "PURGE_INIT_CHAT_MESSAGES": return new Object[] { this._login, 1000 };
+         case "ADD_LIST_MEMBER":
+         case "DELETE_LIST_MEMBER": return new Object[] { this._contactList, this._login };
+         case "DELETE_LISTS_MEMBERS":
+         case "DELETE_USER_LISTS": return new Object[] { this._contactList, this._blockList };
+         case "CHAT_INIT_SENDER":
+         case "SWITCH_TO_GROUP":
+         case "DELETE_CHAT_MEMBERS":
+         case "DELETE_CHAT":
+         case "CHAT_HISTORY":
+         case "DELETE_CHAT_MESSAGES": return new Object[] { this._chatId };
+         case "MARK_CHAT_READ":
+         case "CREATE_CHAT":
+         case "ADD_CHAT_MEMBER":
+         case "IS_CHAT_MEMBER":
+         case "DELETE_CHAT_MEMBER": return new Object[] { this._chatId, this._login };
+         case "CHAT_HISTORY_RANGE": return new Object[] { this._chatId, this._msgTimestamp, null };
+         case "NEWEST_MESSAGES": return new Object[] { this._chatId, Messenger.MESSAGE_PAGE_SIZE };
+         case "MESSAGES_BEFORE": return new Object[] { this._chatId, this._msgTimestamp, this._msgId, Messenger.MESSAGE_PAGE_SIZE };
+         case "SEARCH_MESSAGES": return new Object[] { "plan check", this._login, Messenger.SEARCH_PAGE_SIZE, 0 };
+         case "MESSAGES_AFTER": return new Object[] { this._chatId, this._msgId, 500 };
+         case "CREATE_MESSAGE": return new Object[] { "plan check", this._login, this._chatId };
+         case "NEXT_MESSAGE_IDS": return new Object[] { 2 };
+         case "CREATE_MESSAGE_WITH_ID": return new Object[] { this._msgId, "plan check", this._login, this._chatId };
+         case "EDIT_MESSAGE": return new Object[] { "plan check", this._chatId, this._msgId, this._login };
+         case "DELETE_MESSAGE": return new Object[] { this._chatId, this._msgId, this._login };
+         default: return null;
+      }//end switch
+   }//end argsFor
+
+   /**
+    * Explains every query shape and reports the ones that scan a watched
+    * table sequentially.
+    *
+    * @return the number of failing shapes
+    */
+   public int check (Connection conn, List<String> watched) throws Exception {
+      sample (conn);
+      int failures = 0;
+      for (Field f : Queries.class.getDeclaredFields ()) {
+         int mod = f.getModifiers ();
+         if (!Modifier.isStatic (mod) || !Modifier.isPublic (mod) || f.getType () != String.class)
+            continue;
+         String shape = f.getName ();
+         String sql = (String) f.get (null);
+
+         Object[] args = argsFor (shape);
+         if (args == null) {
+            // a new query shape must be added above so it cannot slip past the check
+            System.out.println ("FAIL  " + shape + ": no sample arguments, add it to PlanChecker");
+            ++failures;
+            continue;
+         }//end if
+
+         List<String> plan = explain (conn, sql, args);
+         String offending = null;
+         for (String line : plan) {
+            String l = line.toLowerCase (Locale.ROOT);
+            for (String table : watched) {
+               // the month partitions of a table count as the table, its
+               // default partition is normally empty and does not
+               if (l.contains ("seq scan on " + table + " ") || l.endsWith ("seq scan on " + table)
+                   || l.contains ("seq scan on " + table + "_p"))
+                  offending = table;
+            }//end for
+         }//end for
+
+         if (offending == null) {
+            System.out.println ("ok    " + shape);
+         }else{
+            System.out.println ("FAIL  " + shape + ": sequential scan on " + offending);
+            for (String line : plan)
+               System.out.println ("        " + line);
+            ++failures;
+         }//end if
+      }//end for
+      return failures;
+   }//end check
+
+   private static List<String> explain (Connection conn, String sql, Object[] args) throws SQLException {
+      // a plain (not server-prepared) statement, EXPLAIN cannot be PREPAREd
+      PreparedStatement stmt = conn.prepareStatement ("EXPLAIN " + sql);
+      try{
+         Messenger.bind (stmt, args);
+         ResultSet rs = stmt.executeQuery ();
+         List<String> plan = new ArrayList<String>();
+         while (rs.next ())
+            plan.add (rs.getString (1));
+         rs.close ();
+         return plan;
+      }finally{
+         stmt.close ();
+      }//end try
+   }//end explain
+
+   /**
+    * The main execution method
+    *
+    * @param args the command line arguments <dbname> <port> <user>
+    */
+   public static void main (String[] args) {
+      if (args.length != 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] [-Dplancheck.tables=message,chat_list] " +
+            PlanChecker.class.getName () +
+            " <dbname> <port> <user>");
+         System.exit (2);
+      }//end if
+
+      List<String> watched = Arrays.asList (
+         System.getProperty ("plancheck.tables", "message,chat_list,inbox").toLowerCase (Locale.ROOT).split (","));
+      Connection conn = null;
+      int failures;
+      try{
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+         conn = DriverManager.getConnection (url, args[2], "");
+         failures = new PlanChecker ().check (conn, watched);
+      }catch (Exception e){
+         System.err.println ("Error - plan check failed: " + e.getMessage ());
+         failures = -1;
+      }finally{
+         try{
+            if (conn != null)
+               conn.close ();
+         }catch (SQLException e){
+            // ignored.
+         }//end try
+      }//end try
+
+      if (failures != 0) {
+         System.out.println (failures < 0 ? "Plan check could not run" : failures + " query shape(s) regressed");
+         System.exit (1);
+      }//end if
+      System.out.println ("All query shapes use an index on " + watched);
+   }//end main
+
+}//end PlanChecker
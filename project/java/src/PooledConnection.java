@@ -0,0 +1,139 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.postgresql.PGStatement;
+
+/**
+ * A physical connection owned by a ConnectionPool together with its cache of
+ * prepared statements.  Statements are keyed by their SQL text, so every call
+ * site that issues the same query shape reuses the statement that Postgres
+ * already parsed and planned on this connection.
+ *
+ */
+public class PooledConnection {
+
+   // reference to physical database connection.
+   private final Connection _connection;
+
+   // the pool this connection is returned to, also collects the cache stats
+   private final ConnectionPool _pool;
+
+   // maximum number of statements kept open on this connection
+   private final int _cacheSize;
+
+   // prepared statements in least recently used order
+   private final LinkedHashMap<String, PreparedStatement> _statements;
+
+   /**
+    * Wraps a freshly opened physical connection
+    *
+    * @param connection the physical connection
+    * @param pool the pool that owns this connection
+    * @param cacheSize the maximum number of cached statements
+    */
+   PooledConnection (Connection connection, ConnectionPool pool, int cacheSize) {
+      this._connection = connection;
+      this._pool = pool;
+      this._cacheSize = cacheSize;
+      this._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+   }//end PooledConnection
+
+   /**
+    * Returns the physical connection, e.g. to control transactions.
+    */
+   public Connection getConnection () {
+      return this._connection;
+   }//end getConnection
+
+   /**
+    * Returns the pool the connection goes back to
+    */
+   ConnectionPool getPool () {
+      return this._pool;
+   }//end getPool
+
+   /**
+    * Returns the cached prepared statement for the given SQL text, preparing
+    * it on the server the first time the shape is seen on this connection.
+    *
+    * @param sql the SQL text with '?' placeholders
+    * @return a prepared statement ready to be bound
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   public PreparedStatement prepare (String sql) throws SQLException {
+      PreparedStatement stmt = this._statements.get (sql);
+      if (stmt != null) {
+         this._pool.recordStatementHit ();
+         stmt.clearParameters ();
+         return stmt;
+      }//end if
+
+      this._pool.recordStatementMiss ();
+      stmt = this._connection.prepareStatement (sql);
+      // ask the driver for a named server-side statement so the parse and
+      // plan are done once per connection instead of once per execution
+      if (stmt instanceof PGStatement)
+         ((PGStatement) stmt).setUseServerPrepare (true);
+      this._statements.put (sql, stmt);
+
+      // evict the least recently used statement once the cache is full
+      if (this._statements.size () > this._cacheSize) {
+         Iterator<Map.Entry<String, PreparedStatement>> it = this._statements.entrySet ().iterator ();
+         PreparedStatement eldest = it.next ().getValue ();
+         it.remove ();
+         closeQuietly (eldest);
+      }//end if
+      return stmt;
+   }//end prepare
+
+   /**
+    * Checks whether the physical connection can still be handed out.
+    */
+   public boolean isUsable () {
+      try{
+         return !this._connection.isClosed ();
+      }catch (SQLException e){
+         return false;
+      }//end try
+   }//end isUsable
+
+   /**
+    * Closes every cached statement and the physical connection.
+    */
+   public void close () {
+      for (PreparedStatement stmt : this._statements.values ())
+         closeQuietly (stmt);
+      this._statements.clear ();
+      try{
+         this._connection.close ();
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+   }//end close
+
+   private static void closeQuietly (PreparedStatement stmt) {
+      try{
+         stmt.close ();
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+   }//end closeQuietly
+
+}//end PooledConnection
@@ -0,0 +1,268 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Every SQL statement Messenger issues, one constant per query shape.  The
+ * statements are parameterized with '?' placeholders so each shape is
+ * prepared once per pooled connection and then reused.
+ *
+ * The schema references users by their integer user_id, while callers deal
+ * in logins.  A login parameter is turned into its user_id inside the
+ * statement (USER_ID, an index lookup on USR's unique login), and logins in
+ * results come from a join with USR, so the mapping costs no round trip.
+ *
+ */
+public final class Queries {
+
+   private Queries () {
+   }
+
+   // the user_id of the login bound to its '?'
+   private static final String USER_ID = "(SELECT user_id FROM USR WHERE login = ?)";
+
+   /**
+    * @return the single-row INSERT ... VALUES (?, ...) repeated for rows rows
+    */
+   private static String multiRow (String single, int rows) {
+      int values = single.lastIndexOf (" VALUES ") + " VALUES ".length ();
+      String row = single.substring (values);
+      StringBuilder sql = new StringBuilder (single);
+      for (int r = 1; r < rows; ++r)
+         sql.append (", ").append (row);
+      return sql.toString ();
+   }//end multiRow
+
+   //-----------------Sequences-------------
+   public static final String NEXT_SEQ_VAL =
+      "SELECT nextval(?::regclass)";
+   public static final String NEXT_SEQ_VALS =
+      "SELECT nextval(?::regclass) FROM generate_series(1, ?)";
+
+   //-----------------Users-------------
+   // the user's two lists and the user in one statement
+   public static final String CREATE_USER_ACCOUNT =
+      "WITH L AS (INSERT INTO USER_LIST(list_type) VALUES ('block'), ('contact') RETURNING list_id, list_type) " +
+      "INSERT INTO USR (phoneNum, login, password, block_list, contact_list) " +
+      "SELECT ?, ?, ?, (SELECT list_id FROM L WHERE list_type = 'block'), (SELECT list_id FROM L WHERE list_type = 'contact')";
+   // provisionUsers inserts PROVISION_ROWS rows per statement and the rest
+   // one by one in a batch, so these are the only shapes it prepares
+   public static final int PROVISION_ROWS = 250;
+   public static final String PROVISION_LIST =
+      "INSERT INTO USER_LIST(list_id, list_type) VALUES (?, ?)";
+   public static final String PROVISION_LISTS = multiRow (PROVISION_LIST, PROVISION_ROWS);
+   public static final String PROVISION_USER =
+      "INSERT INTO USR (phoneNum, login, password, block_list, contact_list) VALUES (?, ?, ?, ?, ?)";
+   public static final String PROVISION_USERS = multiRow (PROVISION_USER, PROVISION_ROWS);
+   public static final String USER_CREDENTIALS =
+      "SELECT password, contact_list, block_list FROM USR WHERE login = ?";
+   // replaces a plain text password with its hash, unless it changed meanwhile
+   public static final String REHASH_PASSWORD =
+      "UPDATE USR SET password = ? WHERE login = ? AND rtrim(password) = ?";
+   public static final String USER_LISTS =
+      "SELECT contact_list, block_list FROM USR WHERE login = ?";
+   public static final String DELETE_USER =
+      "DELETE FROM USR WHERE login = ?";
+   // the logins of a set of user_ids, bound as an array literal '{1,2}'
+   public static final String USER_LOGINS =
+      "SELECT user_id, login FROM USR WHERE user_id = ANY (?::integer[])";
+   public static final String USER_ID_OF =
+      "SELECT user_id FROM USR WHERE login = ?";
+   // a shard's copy of a directory user, see ShardRouter.ensureUser; the
+   // phone number only has to be unique and no password matches
+   public static final String CREATE_USER_STUB =
+      "INSERT INTO USR(user_id, login, phoneNum, password) VALUES (?, ?, ?, ?) ON CONFLICT DO NOTHING";
+   public static final String DELETE_USER_STUB =
+      "DELETE FROM USR U WHERE U.login = ?";
+
+   //-----------------Contact and block lists-------------
+   // inserts nothing for an unknown login
+   public static final String ADD_LIST_MEMBER =
+      "INSERT INTO USER_LIST_CONTAINS(list_id, member_id) SELECT ?, user_id FROM USR WHERE login = ?";
+   public static final String DELETE_LIST_MEMBER =
+      "DELETE FROM USER_LIST_CONTAINS WHERE list_id = ? AND member_id = " + USER_ID;
+   public static final String LIST_CONTACTS =
+      "SELECT M.login, M.status FROM USR U JOIN USER_LIST_CONTAINS C ON C.list_id = U.contact_list " +
+      "JOIN USR M ON M.user_id = C.member_id WHERE U.login = ?";
+   public static final String LIST_BLOCKED =
+      "SELECT M.login FROM USR U JOIN USER_LIST_CONTAINS C ON C.list_id = U.block_list " +
+      "JOIN USR M ON M.user_id = C.member_id WHERE U.login = ?";
+   public static final String DELETE_LISTS_MEMBERS =
+      "DELETE FROM USER_LIST_CONTAINS WHERE list_id IN (?, ?)";
+   public static final String DELETE_USER_LISTS =
+      "DELETE FROM USER_LIST WHERE list_id IN (?, ?)";
+
+   //-----------------Chats-------------
+   public static final String USER_CHATS =
+      "SELECT C.chat_id FROM CHAT_LIST C WHERE C.member_id = " + USER_ID;
+   // the inbox is read from the summary the triggers keep, never from MESSAGE
+   public static final String USER_INBOX =
+      "SELECT I.chat_id, S.login, I.last_timestamp, I.preview, I.unread FROM INBOX I " +
+      "LEFT JOIN USR S ON S.user_id = I.last_sender_id WHERE I.member_id = " + USER_ID + " " +
+      "ORDER BY I.last_timestamp DESC NULLS LAST, I.chat_id";
+   public static final String MARK_CHAT_READ =
+      "UPDATE INBOX SET unread = 0, read_msg_id = COALESCE(last_msg_id, 0) WHERE chat_id = ? AND member_id = " + USER_ID;
+   public static final String CHAT_INIT_SENDER =
+      "SELECT U.login FROM CHAT C JOIN USR U ON U.user_id = C.init_sender_id WHERE C.chat_id = ?";
+   public static final String CREATE_CHAT =
+      "INSERT INTO CHAT(chat_id, chat_type, init_sender_id) SELECT ?, 'private', user_id FROM USR WHERE login = ?";
+   public static final String ALL_CHATS =
+      "SELECT chat_id FROM CHAT ORDER BY chat_id";
+   public static final String SWITCH_TO_GROUP =
+      "UPDATE CHAT SET chat_type = 'group' WHERE chat_id = ?";
+   // inserts nothing for an unknown login
+   public static final String ADD_CHAT_MEMBER =
+      "INSERT INTO CHAT_LIST(chat_id, member_id) SELECT ?, user_id FROM USR WHERE login = ?";
+   public static final String DELETE_CHAT_MEMBER =
+      "DELETE FROM CHAT_LIST WHERE chat_id = ? AND member_id = " + USER_ID;
+   public static final String IS_CHAT_MEMBER =
+      "SELECT 1 FROM CHAT_LIST WHERE chat_id = ? AND member_id = " + USER_ID;
+   public static final String DELETE_CHAT_MEMBERS =
+      "DELETE FROM CHAT_LIST WHERE chat_id = ?";
+   public static final String DELETE_CHAT =
+      "DELETE FROM CHAT WHERE chat_id = ?";
+   public static final String DELETE_USER_MEMBERSHIPS =
+      "DELETE FROM CHAT_LIST WHERE member_id = " + USER_ID;
+   public static final String DELETE_INIT_CHAT_MEMBERS =
+      "DELETE FROM CHAT_LIST WHERE chat_id IN (SELECT chat_id FROM CHAT WHERE init_sender_id = " + USER_ID + ")";
+   public static final String DELETE_USER_INIT_CHATS =
+      "DELETE FROM CHAT WHERE init_sender_id = " + USER_ID;
+
+   //-----------------Messages-------------
+   // every message read returns (sender login, msg_id, msg_timestamp, msg_text)
+   private static final String MESSAGE_ROWS =
+      "SELECT U.login, M.msg_id, M.msg_timestamp, M.msg_text FROM MESSAGE M LEFT JOIN USR U ON U.user_id = M.sender_id ";
+   public static final String NEWEST_MESSAGES =
+      MESSAGE_ROWS + "WHERE M.chat_id = ? " +
+      "ORDER BY M.msg_timestamp DESC, M.msg_id DESC LIMIT ?";
+   public static final String MESSAGES_BEFORE =
+      MESSAGE_ROWS + "WHERE M.chat_id = ? " +
+      "AND (M.msg_timestamp, M.msg_id) < (?::timestamp, ?) ORDER BY M.msg_timestamp DESC, M.msg_id DESC LIMIT ?";
+   // what a chat listener has not seen yet, served by the msg_id key
+   public static final String MESSAGES_AFTER =
+      MESSAGE_ROWS + "WHERE M.chat_id = ? AND M.msg_id > ? " +
+      "ORDER BY M.msg_id LIMIT ?";
+   public static final String CHAT_HISTORY =
+      MESSAGE_ROWS + "WHERE M.chat_id = ? " +
+      "ORDER BY M.msg_timestamp, M.msg_id";
+   // an open bound is bound as NULL
+   public static final String CHAT_HISTORY_RANGE =
+      MESSAGE_ROWS + "WHERE M.chat_id = ? " +
+      "AND M.msg_timestamp >= COALESCE(?::timestamp, '-infinity') AND M.msg_timestamp < COALESCE(?::timestamp, 'infinity') " +
+      "ORDER BY M.msg_timestamp, M.msg_id";
+   // ranked search over the chats a user is in; every match is ranked before
+   // the page is cut, so paging by OFFSET adds little to that
+   public static final String SEARCH_MESSAGES =
+      "SELECT M.chat_id, S.login, M.msg_id, M.msg_timestamp, M.msg_text, ts_rank(M.msg_tsv, Q) AS rank " +
+      "FROM plainto_tsquery('english', ?) Q, CHAT_LIST C JOIN MESSAGE M ON M.chat_id = C.chat_id " +
+      "LEFT JOIN USR S ON S.user_id = M.sender_id " +
+      "WHERE C.member_id = " + USER_ID + " AND M.msg_tsv @@ Q ORDER BY rank DESC, M.msg_id DESC LIMIT ? OFFSET ?";
+   // writes return the row as stored, so clients patch their view of the chat;
+   // an unknown sender inserts nothing
+   public static final String CREATE_MESSAGE =
+      "INSERT INTO MESSAGE(msg_text, msg_timestamp, sender_id, chat_id) " +
+      "SELECT V.msg_text, LOCALTIMESTAMP(2), U.user_id, V.chat_id " +
+      "FROM (SELECT ?::varchar AS msg_text, ?::varchar AS login, ?::integer AS chat_id) V JOIN USR U ON U.login = V.login " +
+      "RETURNING (SELECT login FROM USR WHERE user_id = sender_id), msg_id, msg_timestamp, msg_text";
+   // the group-commit writer allocates the msg_ids of a window up front
+   public static final String NEXT_MESSAGE_IDS =
+      "SELECT nextval('message_msg_id_seq'), LOCALTIMESTAMP(2) FROM generate_series(1, ?)";
+   public static final String CREATE_MESSAGE_WITH_ID =
+      "INSERT INTO MESSAGE(msg_id, msg_text, msg_timestamp, sender_id, chat_id) " +
+      "SELECT V.msg_id, V.msg_text, LOCALTIMESTAMP(2), U.user_id, V.chat_id " +
+      "FROM (SELECT ?::integer AS msg_id, ?::varchar AS msg_text, ?::varchar AS login, ?::integer AS chat_id) V " +
+      "JOIN USR U ON U.login = V.login";
+   // only the sender may edit or delete a message
+   public static final String EDIT_MESSAGE =
+      "UPDATE MESSAGE M SET msg_text = ? FROM USR U WHERE M.chat_id = ? AND M.msg_id = ? AND U.user_id = M.sender_id " +
+      "AND U.login = ? RETURNING U.login, M.msg_id, M.msg_timestamp, M.msg_text";
+   public static final String DELETE_MESSAGE =
+      "DELETE FROM MESSAGE WHERE chat_id = ? AND msg_id = ? AND sender_id = " + USER_ID;
+   public static final String DELETE_CHAT_MESSAGES =
+      "DELETE FROM MESSAGE WHERE chat_id = ?";
+   public static final String DELETE_USER_MESSAGES =
+      "DELETE FROM MESSAGE WHERE sender_id = " + USER_ID;
+   public static final String DELETE_INIT_CHAT_MESSAGES =
+      "DELETE FROM MESSAGE WHERE chat_id IN (SELECT chat_id FROM CHAT WHERE init_sender_id = " + USER_ID + ")";
+
+   //-----------------Account purge-------------
+   // counts the messages an account deletion removes, stopping at the limit
+   public static final String ACCOUNT_MESSAGES_UP_TO =
+      "SELECT count(*) FROM (SELECT 1 FROM MESSAGE WHERE sender_id = " + USER_ID + " UNION ALL " +
+      "SELECT 1 FROM MESSAGE WHERE chat_id IN (SELECT chat_id FROM CHAT WHERE init_sender_id = " + USER_ID + ") LIMIT ?) S";
+   public static final String LOCK_OUT_USER =
+      "UPDATE USR SET password = ? WHERE login = ?";
+   public static final String ENQUEUE_PURGE =
+      "INSERT INTO PURGE_QUEUE(user_id, queued_at) SELECT user_id, LOCALTIMESTAMP FROM USR WHERE login = ?";
+   public static final String NEXT_PURGE =
+      "SELECT U.login FROM PURGE_QUEUE P JOIN USR U ON U.user_id = P.user_id " +
+      "WHERE P.next_attempt <= LOCALTIMESTAMP ORDER BY P.next_attempt LIMIT 1";
+   // puts a failed purge back, waiting twice as long after every attempt up to a limit
+   public static final String RETRY_PURGE =
+      "UPDATE PURGE_QUEUE SET attempts = attempts + 1, " +
+      "next_attempt = LOCALTIMESTAMP + LEAST(? * power(2, attempts), ?) * interval '1 millisecond' WHERE user_id = " + USER_ID;
+   // deleting the account dequeues it as well, by cascade
+   public static final String DEQUEUE_PURGE =
+      "DELETE FROM PURGE_QUEUE WHERE user_id = " + USER_ID;
+   public static final String PURGE_USER_MESSAGES =
+      "DELETE FROM MESSAGE WHERE msg_id IN (SELECT msg_id FROM MESSAGE WHERE sender_id = " + USER_ID + " LIMIT ?)";
+   public static final String PURGE_INIT_CHAT_MESSAGES =
+      "DELETE FROM MESSAGE WHERE msg_id IN (SELECT msg_id FROM MESSAGE WHERE chat_id IN " +
+      "(SELECT chat_id FROM CHAT WHERE init_sender_id = " + USER_ID + ") LIMIT ?)";
+
+   //-----------------Routing-------------
+   // WAL positions, see Messenger.acquire: the primary's after a write, and
+   // how far a replica has replayed
+   public static final String CURRENT_WAL_LSN = "SELECT pg_current_wal_lsn()::text";
+   public static final String REPLAYED_WAL_LSN = "SELECT pg_last_wal_replay_lsn()::text";
+
+   // the reads a replica may answer, see Messenger.acquire.  They tolerate a
+   // little replication lag: chat lists, message pages and search.  Contact
+   // and block lists are served from MembershipCache, which loads from the
+   // primary to stay exact, and chat listeners read what a NOTIFY from the
+   // primary announced, so those stay off the replicas.
+   public static final Set<String> REPLICA_READS = Collections.unmodifiableSet (new HashSet<String>(Arrays.asList (
+      USER_LOGINS, USER_CHATS, USER_INBOX, CHAT_INIT_SENDER, ALL_CHATS,
+      NEWEST_MESSAGES, MESSAGES_BEFORE, CHAT_HISTORY, CHAT_HISTORY_RANGE, SEARCH_MESSAGES)));
+
+   // the statements on one chat's rows, run on the shard of the chat_id
+   // bound to the given parameter (counted from 0), see ShardRouter
+   public static final Map<String, Integer> CHAT_KEY;
+   static {
+      Map<String, Integer> key = new HashMap<String, Integer>();
+      for (String sql : new String[] { CHAT_INIT_SENDER, CREATE_CHAT, SWITCH_TO_GROUP, ADD_CHAT_MEMBER,
+                                       DELETE_CHAT_MEMBER, IS_CHAT_MEMBER, DELETE_CHAT_MEMBERS, DELETE_CHAT, MARK_CHAT_READ,
+                                       NEWEST_MESSAGES, MESSAGES_BEFORE, MESSAGES_AFTER, CHAT_HISTORY,
+                                       CHAT_HISTORY_RANGE, DELETE_MESSAGE, DELETE_CHAT_MESSAGES })
+         key.put (sql, 0);
+      key.put (CREATE_MESSAGE, 2);
+      key.put (CREATE_MESSAGE_WITH_ID, 3);
+      key.put (EDIT_MESSAGE, 1);
+      CHAT_KEY = Collections.unmodifiableMap (key);
+   }
+
+   // the statements on the chat rows of a user, run on every shard by
+   // ShardRouter.forEachShard; the results are merged by the caller
+   public static final Set<String> ALL_SHARDS = Collections.unmodifiableSet (new HashSet<String>(Arrays.asList (
+      USER_CHATS, USER_INBOX, ALL_CHATS, SEARCH_MESSAGES, NEXT_MESSAGE_IDS,
+      DELETE_USER_MEMBERSHIPS, DELETE_INIT_CHAT_MEMBERS, DELETE_USER_INIT_CHATS,
+      DELETE_USER_MESSAGES, DELETE_INIT_CHAT_MESSAGES, ACCOUNT_MESSAGES_UP_TO,
+      PURGE_USER_MESSAGES, PURGE_INIT_CHAT_MESSAGES, CREATE_USER_STUB, DELETE_USER_STUB)));
+
+}//end Queries
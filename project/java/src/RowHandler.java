@@ -0,0 +1,30 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+
+/**
+ * Receives the rows of a streamed query one at a time, see Messenger.stream.
+ * A row is not kept once handle returns, so a result of any size is read in
+ * the memory of one fetch.
+ *
+ */
+public interface RowHandler<T> {
+
+   /**
+    * @param row the mapped row
+    * @throws java.sql.SQLException to stop the stream, the query is rolled back
+    */
+   void handle (T row) throws SQLException;
+
+}//end RowHandler
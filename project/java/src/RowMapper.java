@@ -0,0 +1,68 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns the current row of a result set into a typed value.  Mappers read
+ * the columns with the matching getter (getInt, getTimestamp, ...) instead
+ * of going through strings, and must not move the cursor.
+ *
+ */
+public interface RowMapper<T> {
+
+   /**
+    * The first column as an Integer, null for SQL NULL
+    */
+   RowMapper<Integer> INTEGER = new RowMapper<Integer> () {
+      public Integer map (ResultSet rs) throws SQLException {
+         int value = rs.getInt (1);
+         return rs.wasNull () ? null : Integer.valueOf (value);
+      }
+   };
+
+   /**
+    * The first column as a string with the char(n) padding removed
+    */
+   RowMapper<String> STRING = new RowMapper<String> () {
+      public String map (ResultSet rs) throws SQLException {
+         String value = rs.getString (1);
+         return value == null ? null : value.trim ();
+      }
+   };
+
+   /**
+    * Every column as a string, the row format of executeQueryAndReturnResult
+    */
+   RowMapper<List<String>> STRINGS = new RowMapper<List<String>> () {
+      public List<String> map (ResultSet rs) throws SQLException {
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+         List<String> record = new ArrayList<String>(numCol);
+         for (int i = 1; i <= numCol; ++i)
+            record.add (rs.getString (i));
+         return record;
+      }
+   };
+
+   /**
+    * @param rs a result set positioned on a row
+    * @return the value for that row
+    */
+   T map (ResultSet rs) throws SQLException;
+
+}//end RowMapper
@@ -0,0 +1,550 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Migrates a database from schema v1 (char(n) columns, users referenced by
+ * login) to schema v2 (varchar columns, users referenced by user_id) while
+ * Messenger keeps running.
+ *
+ * The v2 tables are built next to the v1 ones as *_v2.  USR and the small
+ * tables are copied from one snapshot, then MESSAGE, by far the largest
+ * table, in msg_id batches, each batch its own transaction, while a trigger
+ * logs every message written meanwhile.  The keys and indexes of the sql
+ * scripts are then built on the v2 tables.  Only the last step takes a
+ * lock: writes to the v1 tables are blocked (reads are not) while the small
+ * tables are copied again, the logged messages replayed, the tables and
+ * indexes renamed and the triggers created.  The v1 tables stay behind as
+ * *_v1 and can be dropped once the migration is verified.
+ *
+ * Table sizes and the latency of representative queries are reported before
+ * and after.
+ *
+ */
+public class SchemaMigrator {
+
+   // the tables of the schema, in the order they are copied
+   static final String[] TABLES = new String[] {
+      "USER_LIST", "USR", "USER_LIST_CONTAINS", "CHAT", "CHAT_LIST", "MESSAGE", "INBOX", "PURGE_QUEUE" };
+
+   // the serial columns and the sequences Messenger allocates ids from
+   static final String[][] SEQUENCES = new String[][] {
+      { "USER_LIST", "list_id", "user_list_list_id_seq" },
+      { "USR", "user_id", "usr_user_id_seq" },
+      { "CHAT", "chat_id", "chat_chat_id_seq" },
+      { "MESSAGE", "msg_id", "message_msg_id_seq" } };
+
+   // a message row of v1 as a row of v2; senders missing from USR_v2 are
+   // accounts created during the copy, their messages are logged and replayed
+   private static final String COPY_MESSAGES =
+      "INSERT INTO MESSAGE_v2(msg_id, msg_text, msg_timestamp, sender_id, chat_id, msg_tsv) " +
+      "SELECT M.msg_id, rtrim(M.msg_text), M.msg_timestamp, U.user_id, M.chat_id, M.msg_tsv " +
+      "FROM MESSAGE M LEFT JOIN USR_v2 U ON U.login = rtrim(M.sender_login) ";
+
+   // the small tables, copied with USR and again under the lock
+   private static final String[] COPY_SMALL_TABLES = new String[] {
+      "INSERT INTO USER_LIST_v2(list_id, list_type) SELECT list_id, rtrim(list_type) FROM USER_LIST",
+      "INSERT INTO USER_LIST_CONTAINS_v2(list_id, member_id) " +
+         "SELECT C.list_id, U.user_id FROM USER_LIST_CONTAINS C JOIN USR_v2 U ON U.login = rtrim(C.list_member)",
+      "INSERT INTO CHAT_v2(chat_id, chat_type, init_sender_id) " +
+         "SELECT C.chat_id, rtrim(C.chat_type), U.user_id FROM CHAT C LEFT JOIN USR_v2 U ON U.login = rtrim(C.init_sender)",
+      "INSERT INTO CHAT_LIST_v2(chat_id, member_id) " +
+         "SELECT C.chat_id, U.user_id FROM CHAT_LIST C JOIN USR_v2 U ON U.login = rtrim(C.member)",
+      "INSERT INTO INBOX_v2(chat_id, member_id, last_msg_id, last_timestamp, last_sender_id, preview, unread, read_msg_id) " +
+         "SELECT I.chat_id, U.user_id, I.last_msg_id, I.last_timestamp, S.user_id, I.preview, I.unread, I.read_msg_id " +
+         "FROM INBOX I JOIN USR_v2 U ON U.login = rtrim(I.member) LEFT JOIN USR_v2 S ON S.login = rtrim(I.last_sender)",
+      "INSERT INTO PURGE_QUEUE_v2(user_id, queued_at) " +
+         "SELECT U.user_id, P.queued_at FROM PURGE_QUEUE P JOIN USR_v2 U ON U.login = rtrim(P.login)" };
+
+   // brings USR_v2 up to date with the accounts changed since it was copied
+   private static final String[] SYNC_USERS = new String[] {
+      "DELETE FROM USR_v2 V WHERE NOT EXISTS (SELECT 1 FROM USR U WHERE rtrim(U.login) = V.login)",
+      "UPDATE USR_v2 V SET phoneNum = rtrim(U.phoneNum), password = rtrim(U.password), status = rtrim(U.status), " +
+         "block_list = U.block_list, contact_list = U.contact_list FROM USR U WHERE rtrim(U.login) = V.login",
+      "INSERT INTO USR_v2(user_id, login, phoneNum, password, status, block_list, contact_list) " +
+         "SELECT nextval('usr_user_id_seq'), rtrim(U.login), rtrim(U.phoneNum), rtrim(U.password), rtrim(U.status), " +
+         "U.block_list, U.contact_list FROM USR U WHERE NOT EXISTS (SELECT 1 FROM USR_v2 V WHERE V.login = rtrim(U.login))" };
+
+   /**
+    * A query whose latency is compared, in its v1 and its v2 form
+    */
+   static class Probe {
+      final String name;
+      final String v1;
+      final String v2;
+
+      Probe (String name, String v1, String v2) {
+         this.name = name;
+         this.v1 = v1;
+         this.v2 = v2;
+      }
+   }//end Probe
+
+   // the reads behind BrowseChats, ShowMessages and the contact list
+   static final Probe[] PROBES = new Probe[] {
+      new Probe ("inbox",
+         "SELECT chat_id, last_sender, last_timestamp, preview, unread FROM INBOX WHERE member = ?::bpchar " +
+         "ORDER BY last_timestamp DESC NULLS LAST, chat_id", Queries.USER_INBOX),
+      new Probe ("newest messages",
+         "SELECT sender_login, msg_id, msg_timestamp, msg_text FROM MESSAGE WHERE chat_id = ? " +
+         "ORDER BY msg_timestamp DESC, msg_id DESC LIMIT ?", Queries.NEWEST_MESSAGES),
+      new Probe ("contacts",
+         "SELECT C.list_member, U.status FROM Usr U, USER_LIST_CONTAINS C WHERE U.login = ?::bpchar AND U.contact_list = C.list_id",
+         Queries.LIST_CONTACTS) };
+
+   private final String _url;
+   private final String _user;
+   private final File _sqlDir;
+
+   // settings, all overridable with -Dmigrate.<name>
+   private final int _batchRows = Integer.getInteger ("migrate.batchRows", 50000);
+   private final int _samples = Integer.getInteger ("migrate.samples", 200);
+
+   // the bind values of the probes
+   private String _login = "";
+   private int _chatId = 0;
+
+   public SchemaMigrator (String dbname, String dbport, String user, File sqlDir) {
+      this._url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+      this._user = user;
+      this._sqlDir = sqlDir;
+   }//end SchemaMigrator
+
+   private static void execute (Connection conn, String sql) throws SQLException {
+      Statement stmt = conn.createStatement ();
+      try{
+         stmt.execute (sql);
+      }finally{
+         stmt.close ();
+      }//end try
+   }//end execute
+
+   private static int update (Connection conn, String sql, Object... params) throws SQLException {
+      PreparedStatement stmt = conn.prepareStatement (sql);
+      try{
+         Messenger.bind (stmt, params);
+         return stmt.executeUpdate ();
+      }finally{
+         stmt.close ();
+      }//end try
+   }//end update
+
+   /**
+    * @return the rows of a query, every column as a string
+    */
+   private static List<String[]> rows (Connection conn, String sql) throws SQLException {
+      List<String[]> rows = new ArrayList<String[]>();
+      Statement stmt = conn.createStatement ();
+      try{
+         ResultSet rs = stmt.executeQuery (sql);
+         while (rs.next ()) {
+            String[] row = new String[rs.getMetaData ().getColumnCount ()];
+            for (int i = 0; i < row.length; ++i)
+               row[i] = rs.getString (i + 1);
+            rows.add (row);
+         }//end while
+         rs.close ();
+      }finally{
+         stmt.close ();
+      }//end try
+      return rows;
+   }//end rows
+
+   private static long queryLong (Connection conn, String sql) throws SQLException {
+      Statement stmt = conn.createStatement ();
+      try{
+         ResultSet rs = stmt.executeQuery (sql);
+         return rs.next () ? rs.getLong (1) : 0;
+      }finally{
+         stmt.close ();
+      }//end try
+   }//end queryLong
+
+   /**
+    * @return true if the database still has the v1 MESSAGE table
+    */
+   private static boolean isV1 (Connection conn) throws SQLException {
+      return queryLong (conn, "SELECT count(*) FROM pg_attribute " +
+         "WHERE attrelid = 'message'::regclass AND attname = 'sender_login' AND NOT attisdropped") > 0;
+   }//end isV1
+
+   /**
+    * @return the on-disk size of every table, its indexes and TOAST included;
+    *         a partitioned table has no storage of its own, its partitions
+    *         are summed (pg_partition_tree holds just the table otherwise)
+    */
+   private static Map<String, Long> sizes (Connection conn) throws SQLException {
+      Map<String, Long> sizes = new LinkedHashMap<String, Long>();
+      for (String table : TABLES)
+         sizes.put (table, queryLong (conn, "SELECT COALESCE(sum(pg_total_relation_size(relid)), 0) FROM pg_partition_tree('" +
+            table.toLowerCase (Locale.ROOT) + "')"));
+      return sizes;
+   }//end sizes
+
+   /**
+    * Picks a busy chat and one of its members to run the probes with
+    */
+   private void sample (Connection conn) throws SQLException {
+      Statement stmt = conn.createStatement ();
+      try{
+         ResultSet rs = stmt.executeQuery (
+            "SELECT chat_id, sender_login FROM MESSAGE ORDER BY msg_id DESC LIMIT 1");
+         if (rs.next ()) {
+            this._chatId = rs.getInt (1);
+            this._login = rs.getString (2).trim ();
+         }//end if
+      }finally{
+         stmt.close ();
+      }//end try
+   }//end sample
+
+   private Object[] argsFor (Probe probe) {
+      return probe.name.equals ("newest messages")
+         ? new Object[] { this._chatId, Messenger.MESSAGE_PAGE_SIZE }
+         : new Object[] { this._login };
+   }//end argsFor
+
+   /**
+    * Runs every probe migrate.samples times after one warm-up run
+    *
+    * @return the mean latency of each probe in microseconds
+    */
+   private double[] latencies (Connection conn, boolean v2) throws SQLException {
+      double[] means = new double[PROBES.length];
+      for (int p = 0; p < PROBES.length; ++p) {
+         PreparedStatement stmt = conn.prepareStatement (v2 ? PROBES[p].v2 : PROBES[p].v1);
+         try{
+            Messenger.bind (stmt, argsFor (PROBES[p]));
+            long total = 0;
+            for (int i = 0; i <= this._samples; ++i) {
+               long start = System.nanoTime ();
+               ResultSet rs = stmt.executeQuery ();
+               while (rs.next ())
+                  ;
+               rs.close ();
+               if (i > 0)
+                  total += System.nanoTime () - start;
+            }//end for
+            means[p] = total / 1e3 / Math.max (this._samples, 1);
+         }finally{
+            stmt.close ();
+         }//end try
+      }//end for
+      return means;
+   }//end latencies
+
+   /**
+    * The statements of create_tables.sql for the *_v2 tables.  The serial
+    * columns become plain integers, the v2 tables take over the existing
+    * sequences when they are swapped in.
+    */
+   private List<String> v2Tables () throws Exception {
+      List<String> ddl = new ArrayList<String>();
+      for (String sql : SqlScript.parse (new File (this._sqlDir, "create_tables.sql"))) {
+         String s = sql.trim ();
+         // the default partition of MESSAGE is created with MESSAGE_v2
+         if (!s.toUpperCase (Locale.ROOT).startsWith ("CREATE TABLE") || s.toUpperCase (Locale.ROOT).contains ("PARTITION OF"))
+            continue;
+         for (String table : TABLES)
+            s = s.replaceFirst ("(?i)^CREATE TABLE " + table + "\\s*\\(", "CREATE TABLE " + table + "_v2(");
+         ddl.add (s.replaceAll ("(?i)\\bserial\\b", "integer"));
+      }//end for
+      return ddl;
+   }//end v2Tables
+
+   /**
+    * Builds the empty v2 tables and starts logging the messages written to
+    * the v1 MESSAGE table
+    */
+   private void prepare (Connection conn) throws Exception {
+      for (String table : TABLES)
+         execute (conn, "DROP TABLE IF EXISTS " + table + "_v2");
+      for (String sql : v2Tables ())
+         execute (conn, sql);
+      execute (conn, "CREATE SEQUENCE IF NOT EXISTS usr_user_id_seq");
+      // the batches copy straight into the month partitions of the v1 rows
+      execute (conn, "CREATE TABLE MESSAGE_v2_default PARTITION OF MESSAGE_v2 DEFAULT");
+      Timestamp oldest = null;
+      Statement stmt = conn.createStatement ();
+      try{
+         ResultSet rs = stmt.executeQuery ("SELECT min(msg_timestamp) FROM MESSAGE");
+         if (rs.next ())
+            oldest = rs.getTimestamp (1);
+         rs.close ();
+      }finally{
+         stmt.close ();
+      }//end try
+      MessageArchiver.createPartitions (conn, "MESSAGE_v2", oldest);
+
+      execute (conn, "DROP TABLE IF EXISTS MIGRATE_LOG");
+      execute (conn, "CREATE TABLE MIGRATE_LOG(msg_id integer NOT NULL)");
+      execute (conn,
+         "CREATE OR REPLACE FUNCTION migrate_log() RETURNS trigger AS $$\n" +
+         "BEGIN\n" +
+         "   IF TG_OP = 'DELETE' THEN\n" +
+         "      INSERT INTO MIGRATE_LOG VALUES (OLD.msg_id);\n" +
+         "   ELSE\n" +
+         "      INSERT INTO MIGRATE_LOG VALUES (NEW.msg_id);\n" +
+         "   END IF;\n" +
+         "   RETURN NULL;\n" +
+         "END;\n" +
+         "$$ LANGUAGE plpgsql");
+      execute (conn, "DROP TRIGGER IF EXISTS message_migrate_log ON MESSAGE");
+      execute (conn, "CREATE TRIGGER message_migrate_log AFTER INSERT OR UPDATE OR DELETE ON MESSAGE " +
+         "FOR EACH ROW EXECUTE PROCEDURE migrate_log()");
+   }//end prepare
+
+   /**
+    * Copies USR and the small tables, then MESSAGE up to its highest msg_id
+    * at that time batch by batch, committing after every batch
+    *
+    * @return the highest msg_id copied
+    */
+   private int copy (Connection conn) throws SQLException {
+      conn.setAutoCommit (false);
+      try{
+         // one snapshot, so that the foreign keys built on the copies hold
+         conn.setTransactionIsolation (Connection.TRANSACTION_REPEATABLE_READ);
+         execute (conn, "SELECT setval('usr_user_id_seq', 1, false)");
+         update (conn, SYNC_USERS[2]);
+         for (String sql : COPY_SMALL_TABLES)
+            update (conn, sql);
+         int last = (int) queryLong (conn, "SELECT COALESCE(MAX(msg_id), 0) FROM MESSAGE");
+         conn.commit ();
+         conn.setTransactionIsolation (Connection.TRANSACTION_READ_COMMITTED);
+
+         // messages of chats created since are logged and replayed by swap
+         long copied = 0;
+         long start = System.nanoTime ();
+         for (int from = 0; from < last; from += this._batchRows) {
+            copied += update (conn, COPY_MESSAGES + "WHERE M.msg_id > ? AND M.msg_id <= ? " +
+                              "AND M.chat_id IN (SELECT chat_id FROM CHAT_v2)",
+                              from, Math.min (from + this._batchRows, last));
+            conn.commit ();
+            System.out.println (String.format ("  MESSAGE %10d rows copied (%.0f rows/sec)",
+               copied, copied / ((System.nanoTime () - start) / 1e9)));
+         }//end for
+         return last;
+      }finally{
+         conn.rollback ();
+         conn.setTransactionIsolation (Connection.TRANSACTION_READ_COMMITTED);
+         conn.setAutoCommit (true);
+      }//end try
+   }//end copy
+
+   /**
+    * Builds the keys and indexes of the sql scripts on the v2 tables while
+    * writes carry on; their index names end in _v2 until swap renames them
+    */
+   private void build (Connection conn) throws Exception {
+      long start = System.nanoTime ();
+      for (String script : new String[] { "create_constraints.sql", "create_indexes.sql" }) {
+         for (String sql : SqlScript.parse (new File (this._sqlDir, script)))
+            execute (conn, onV2 (sql));
+      }//end for
+      System.out.println (String.format ("Keys and indexes built in %.1fs", (System.nanoTime () - start) / 1e9));
+   }//end build
+
+   /**
+    * @return a statement of the sql scripts on the *_v2 tables
+    */
+   static String onV2 (String sql) {
+      for (String table : TABLES)
+         sql = sql.replaceAll ("(?i)\\b" + table + "\\b", table + "_v2");
+      return sql.replaceFirst ("(?i)^CREATE INDEX (\\w+)", "CREATE INDEX $1_v2");
+   }//end onV2
+
+   /**
+    * Blocks writes, brings the v2 tables up to date and swaps them in, all
+    * in one transaction.  Nothing in it builds an index.
+    *
+    * @param copied the highest msg_id the batches copied
+    */
+   private void swap (Connection conn, int copied) throws Exception {
+      long start = System.nanoTime ();
+      conn.setAutoCommit (false);
+      try{
+         // readers carry on, writers wait for the swap
+         StringBuilder lock = new StringBuilder ("LOCK TABLE ");
+         for (int t = 0; t < TABLES.length; ++t)
+            lock.append (t > 0 ? ", " : "").append (TABLES[t]);
+         execute (conn, lock.append (" IN EXCLUSIVE MODE").toString ());
+
+         // the copies below come from the locked v1 tables, whose keys hold,
+         // so the v2 foreign keys are not checked (nor cascaded) row by row
+         execute (conn, "SET LOCAL session_replication_role = replica");
+         for (String sql : SYNC_USERS)
+            update (conn, sql);
+         for (String table : TABLES) {
+            if (!table.equals ("USR") && !table.equals ("MESSAGE"))
+               update (conn, "DELETE FROM " + table + "_v2");
+         }//end for
+         for (String sql : COPY_SMALL_TABLES)
+            update (conn, sql);
+         // messages written during the copy: the ones past it, and the logged
+         // ones it may have missed or copied before they changed
+         update (conn, COPY_MESSAGES + "WHERE M.msg_id > ?", copied);
+         update (conn, "DELETE FROM MESSAGE_v2 WHERE msg_id <= ? AND msg_id IN (SELECT msg_id FROM MIGRATE_LOG)", copied);
+         update (conn, COPY_MESSAGES + "WHERE M.msg_id <= ? AND M.msg_id IN (SELECT msg_id FROM MIGRATE_LOG)", copied);
+         execute (conn, "DROP TRIGGER message_migrate_log ON MESSAGE");
+         execute (conn, "DROP FUNCTION migrate_log()");
+         execute (conn, "DROP TABLE MIGRATE_LOG");
+         execute (conn, "SET LOCAL session_replication_role = origin");
+
+         // the v1 tables keep their data but lose their triggers, whose
+         // functions are replaced below, and the names of their indexes
+         List<String> drops = new ArrayList<String>();
+         for (String[] trigger : rows (conn,
+               "SELECT tgname, relname FROM pg_trigger T JOIN pg_class C ON C.oid = T.tgrelid " +
+               "WHERE NOT T.tgisinternal AND C.relname IN ('" + lowerNames ("") + "')"))
+            drops.add ("DROP TRIGGER " + trigger[0] + " ON " + trigger[1]);
+         for (String[] seq : SEQUENCES) {
+            // v1 USR has no user_id, the other serial columns let go of their sequence
+            if (!seq[0].equals ("USR"))
+               drops.add ("ALTER TABLE " + seq[0] + " ALTER " + seq[1] + " DROP DEFAULT");
+         }//end for
+         for (String table : TABLES)
+            drops.add ("ALTER TABLE " + table + " RENAME TO " + table + "_v1");
+         for (String sql : drops)
+            execute (conn, sql);
+         for (String[] index : rows (conn,
+               "SELECT indexname FROM pg_indexes WHERE schemaname = current_schema() AND tablename IN ('" + lowerNames ("_v1") + "')"))
+            execute (conn, "ALTER INDEX " + index[0] + " RENAME TO " + index[0] + "_v1");
+         // and the ones built on the v2 tables take the names of a fresh database
+         for (String[] index : rows (conn,
+               "SELECT indexname FROM pg_indexes WHERE schemaname = current_schema() AND indexname LIKE '%\\_v2%'"))
+            execute (conn, "ALTER INDEX " + index[0] + " RENAME TO " + index[0].replaceFirst ("_v2", ""));
+
+         for (String table : TABLES)
+            execute (conn, "ALTER TABLE " + table + "_v2 RENAME TO " + table);
+         for (String partition : MessageArchiver.partitions (conn, "MESSAGE").values ())
+            execute (conn, "ALTER TABLE " + partition + " RENAME TO message_" + partition.substring ("message_v2_".length ()));
+         for (String[] seq : SEQUENCES) {
+            execute (conn, String.format ("SELECT setval('%s', (SELECT COALESCE(MAX(%s), 0) + 1 FROM %s), false)",
+               seq[2], seq[1], seq[0]));
+            execute (conn, "ALTER TABLE " + seq[0] + " ALTER " + seq[1] + " SET DEFAULT nextval('" + seq[2] + "')");
+            execute (conn, "ALTER SEQUENCE " + seq[2] + " OWNED BY " + seq[0] + "." + seq[1]);
+         }//end for
+
+         // triggers exactly as a fresh v2 database has them
+         for (String sql : SqlScript.parse (new File (this._sqlDir, "create_triggers.sql")))
+            execute (conn, sql);
+         conn.commit ();
+      }finally{
+         conn.rollback ();
+         conn.setAutoCommit (true);
+      }//end try
+      System.out.println (String.format ("Writes were blocked for %.1fs", (System.nanoTime () - start) / 1e9));
+   }//end swap
+
+   private static String lowerNames (String suffix) {
+      StringBuilder names = new StringBuilder ();
+      for (int t = 0; t < TABLES.length; ++t)
+         names.append (t > 0 ? "', '" : "").append (TABLES[t].toLowerCase (Locale.ROOT)).append (suffix);
+      return names.toString ();
+   }//end lowerNames
+
+   /**
+    * Prints the size of every table and the latency of every probe, before
+    * and after
+    */
+   private static void report (Map<String, Long> before, Map<String, Long> after, double[] v1, double[] v2) {
+      System.out.println (String.format ("%-20s %12s %12s %8s", "table", "v1 MB", "v2 MB", "change"));
+      long total1 = 0, total2 = 0;
+      for (String table : TABLES) {
+         long b = before.get (table).longValue ();
+         long a = after.get (table).longValue ();
+         total1 += b;
+         total2 += a;
+         System.out.println (String.format ("%-20s %12.1f %12.1f %7.0f%%",
+            table, b / 1048576.0, a / 1048576.0, b == 0 ? 0.0 : 100.0 * (a - b) / b));
+      }//end for
+      System.out.println (String.format ("%-20s %12.1f %12.1f %7.0f%%",
+         "total", total1 / 1048576.0, total2 / 1048576.0, total1 == 0 ? 0.0 : 100.0 * (total2 - total1) / total1));
+      System.out.println ();
+      System.out.println (String.format ("%-20s %12s %12s %8s", "query", "v1 us", "v2 us", "change"));
+      for (int p = 0; p < PROBES.length; ++p)
+         System.out.println (String.format ("%-20s %12.0f %12.0f %7.0f%%",
+            PROBES[p].name, v1[p], v2[p], v1[p] == 0 ? 0.0 : 100.0 * (v2[p] - v1[p]) / v1[p]));
+   }//end report
+
+   /**
+    * Migrates the database and reports the difference
+    */
+   public void migrate () throws Exception {
+      Connection conn = DriverManager.getConnection (this._url, this._user, "");
+      try{
+         if (!isV1 (conn)) {
+            System.out.println ("The database already has schema v2");
+            return;
+         }//end if
+         sample (conn);
+         execute (conn, "ANALYZE");
+         Map<String, Long> before = sizes (conn);
+         double[] v1 = latencies (conn, false);
+
+         long start = System.nanoTime ();
+         prepare (conn);
+         int copied = copy (conn);
+         System.out.println (String.format ("Copied in %.1fs", (System.nanoTime () - start) / 1e9));
+         build (conn);
+         swap (conn, copied);
+         execute (conn, "ANALYZE");
+         System.out.println (String.format ("Migrated in %.1fs, the v1 tables are kept as *_v1",
+            (System.nanoTime () - start) / 1e9));
+         System.out.println ();
+
+         report (before, sizes (conn), v1, latencies (conn, true));
+      }finally{
+         conn.close ();
+      }//end try
+   }//end migrate
+
+   /**
+    * The main execution method
+    *
+    * @param args the command line arguments <dbname> <port> <user> <sql dir>
+    */
+   public static void main (String[] args) {
+      if (args.length != 4) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] [-Dmigrate.batchRows=50000] " +
+            SchemaMigrator.class.getName () +
+            " <dbname> <port> <user> <sql dir>");
+         System.exit (2);
+      }//end if
+
+      try{
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         new SchemaMigrator (args[0], args[1], args[2], new File (args[3])).migrate ();
+      }catch (Exception e){
+         System.err.println ("Error - migration failed: " + e.getMessage ());
+         System.exit (1);
+      }//end try
+   }//end main
+
+}//end SchemaMigrator
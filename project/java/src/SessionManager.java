@@ -0,0 +1,268 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Authenticates users and keeps the resulting sessions.
+ *
+ * A log in reads only the stored password and the two list ids of the user
+ * and compares the password in constant time.  New passwords are stored as
+ * a salted, iterated SHA-256 hash ("s1$salt$hash"); passwords loaded with
+ * the data set are still plain text, compared as such and replaced by
+ * their hash at the first successful log in.
+ *
+ * Two bounded, least recently used caches whose entries lapse after
+ * messenger.sessionTtlMillis (30 minutes) keep repeated log ins and
+ * reconnects away from USR:
+ *
+ *   sessions     token -> UserSession, for clients resuming a session
+ *   credentials  login -> stored password and list ids, for repeated log ins
+ *
+ * Both hold up to messenger.sessionCacheSize (10000) entries.
+ *
+ */
+public class SessionManager {
+
+   private static final String HASH_PREFIX = "s1$";
+   private static final int HASH_ROUNDS = 1000;
+   private static final int SALT_BYTES = 8;
+
+   /**
+    * Stored as the password of an account that is being deleted, no
+    * password matches it (a hash without its salt separator)
+    */
+   public static final String LOCKED_OUT = HASH_PREFIX + "locked";
+
+   private static final SecureRandom RANDOM = new SecureRandom ();
+
+   private final long _ttlMillis = Long.getLong ("messenger.sessionTtlMillis", 30L * 60 * 1000);
+   private final int _cacheSize = Integer.getInteger ("messenger.sessionCacheSize", 10000);
+
+   private final Messenger _esql;
+   private final LinkedHashMap<String, UserSession> _sessions = new LinkedHashMap<String, UserSession>(16, 0.75f, true);
+   private final LinkedHashMap<String, Credential> _credentials = new LinkedHashMap<String, Credential>(16, 0.75f, true);
+
+   /**
+    * What a log in needs to know about a user
+    */
+   static class Credential {
+      final String stored;
+      final int contactList;
+      final int blockList;
+      final long expiresAt;
+
+      Credential (String stored, int contactList, int blockList, long expiresAt) {
+         this.stored = stored;
+         this.contactList = contactList;
+         this.blockList = blockList;
+         this.expiresAt = expiresAt;
+      }
+   }//end Credential
+
+   private static final RowMapper<Credential> CREDENTIAL = new RowMapper<Credential> () {
+      public Credential map (ResultSet rs) throws SQLException {
+         return new Credential (rs.getString (1).trim (), rs.getInt (2), rs.getInt (3), 0);
+      }
+   };
+
+   public SessionManager (Messenger esql) {
+      this._esql = esql;
+   }//end SessionManager
+
+   //-----------------Passwords-------------
+
+   private static String hex (byte[] bytes) {
+      StringBuilder sb = new StringBuilder (bytes.length * 2);
+      for (byte b : bytes)
+         sb.append (Character.forDigit ((b >> 4) & 0xf, 16)).append (Character.forDigit (b & 0xf, 16));
+      return sb.toString ();
+   }//end hex
+
+   private static byte[] utf8 (String s) {
+      try{
+         return s.getBytes ("UTF-8");
+      }catch (UnsupportedEncodingException e){
+         throw new IllegalStateException (e);
+      }//end try
+   }//end utf8
+
+   private static String digest (String salt, String password) {
+      try{
+         MessageDigest md = MessageDigest.getInstance ("SHA-256");
+         byte[] h = utf8 (salt + password);
+         for (int i = 0; i < HASH_ROUNDS; ++i)
+            h = md.digest (h);
+         return hex (h);
+      }catch (NoSuchAlgorithmException e){
+         throw new IllegalStateException (e);
+      }//end try
+   }//end digest
+
+   /**
+    * Hashes a password with a fresh salt for storing in USR
+    */
+   public static String hashPassword (String password) {
+      byte[] salt = new byte[SALT_BYTES];
+      RANDOM.nextBytes (salt);
+      String s = hex (salt);
+      return HASH_PREFIX + s + "$" + digest (s, password);
+   }//end hashPassword
+
+   /**
+    * Compares a password with the stored value without leaking through
+    * timing how much of it matched
+    */
+   static boolean checkPassword (String password, String stored) {
+      if (stored.startsWith (HASH_PREFIX)) {
+         int sep = stored.indexOf ('$', HASH_PREFIX.length ());
+         if (sep < 0)
+            return false;
+         String salt = stored.substring (HASH_PREFIX.length (), sep);
+         return MessageDigest.isEqual (utf8 (digest (salt, password)), utf8 (stored.substring (sep + 1)));
+      }//end if
+      // plain text from the loaded data set, the column is char(n) padded
+      return MessageDigest.isEqual (utf8 (password.trim ()), utf8 (stored));
+   }//end checkPassword
+
+   private static String newToken () {
+      byte[] token = new byte[16];
+      RANDOM.nextBytes (token);
+      return hex (token);
+   }//end newToken
+
+   //-----------------Sessions-------------
+
+   private <V> void putBounded (LinkedHashMap<String, V> cache, String key, V value) {
+      cache.put (key, value);
+      if (cache.size () > this._cacheSize) {
+         Iterator<Map.Entry<String, V>> it = cache.entrySet ().iterator ();
+         it.next ();
+         it.remove ();
+      }//end if
+   }//end putBounded
+
+   /**
+    * Checks the credentials and opens a session
+    *
+    * @return the new session, or null if the login or password is wrong
+    * @throws java.sql.SQLException when the user cannot be looked up
+    */
+   public UserSession logIn (String login, String password) throws SQLException {
+      long now = System.currentTimeMillis ();
+      Credential c;
+      synchronized (this._credentials) {
+         c = this._credentials.get (login);
+         if (c != null && c.expiresAt <= now) {
+            this._credentials.remove (login);
+            c = null;
+         }//end if
+      }//end synchronized
+      if (c == null) {
+         c = this._esql.queryOne (Queries.USER_CREDENTIALS, CREDENTIAL, login);
+         if (c == null)
+            return null;
+         c = new Credential (c.stored, c.contactList, c.blockList, now + this._ttlMillis);
+         synchronized (this._credentials) {
+            putBounded (this._credentials, login, c);
+         }//end synchronized
+      }//end if
+      if (!checkPassword (password, c.stored))
+         return null;
+      if (!c.stored.startsWith (HASH_PREFIX))
+         c = rehash (login, password.trim (), c);
+
+      UserSession session = new UserSession (newToken (), login, c.contactList, c.blockList, now + this._ttlMillis);
+      synchronized (this._sessions) {
+         putBounded (this._sessions, session.getToken (), session);
+      }//end synchronized
+      return session;
+   }//end logIn
+
+   /**
+    * Stores the hash of a plain text password that just matched
+    *
+    * @return the credential with the hash, or the old one if it was not stored
+    */
+   private Credential rehash (String login, String password, Credential c) {
+      Credential hashed = new Credential (hashPassword (password), c.contactList, c.blockList, c.expiresAt);
+      try{
+         if (this._esql.executeUpdate (Queries.REHASH_PASSWORD, hashed.stored, login, c.stored) == 0)
+            return c;
+      }catch (SQLException e){
+         // the log in stands, the next one tries again
+         System.err.println ("Rehash of " + login + ": " + e.getMessage ());
+         return c;
+      }//end try
+      synchronized (this._credentials) {
+         if (this._credentials.get (login) == c)
+            this._credentials.put (login, hashed);
+      }//end synchronized
+      return hashed;
+   }//end rehash
+
+   /**
+    * Looks up the session a client was given at log in, without touching
+    * the database
+    *
+    * @return the session, or null if it is unknown or has lapsed
+    */
+   public UserSession resume (String token) {
+      long now = System.currentTimeMillis ();
+      synchronized (this._sessions) {
+         UserSession session = this._sessions.get (token);
+         if (session == null)
+            return null;
+         if (session.getExpiresAt () <= now) {
+            this._sessions.remove (token);
+            return null;
+         }//end if
+         session.setExpiresAt (now + this._ttlMillis);
+         return session;
+      }//end synchronized
+   }//end resume
+
+   /**
+    * Ends a session
+    */
+   public void logOut (String token) {
+      synchronized (this._sessions) {
+         this._sessions.remove (token);
+      }//end synchronized
+   }//end logOut
+
+   /**
+    * Forgets everything cached about a user, e.g. when the account is
+    * deleted
+    */
+   public void invalidate (String login) {
+      synchronized (this._credentials) {
+         this._credentials.remove (login);
+      }//end synchronized
+      synchronized (this._sessions) {
+         for (Iterator<UserSession> it = this._sessions.values ().iterator (); it.hasNext (); ) {
+            if (it.next ().getLogin ().equals (login))
+               it.remove ();
+         }//end for
+      }//end synchronized
+   }//end invalidate
+
+}//end SessionManager
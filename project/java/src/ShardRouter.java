@@ -0,0 +1,309 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Places chats on the databases listed in messenger.shards.  A chat's CHAT,
+ * CHAT_LIST, MESSAGE and INBOX rows live on the shard its chat_id hashes
+ * to; USR, the contact and block lists and PURGE_QUEUE stay on the
+ * directory, the database Messenger was opened on.  Without
+ * messenger.shards the directory is the only shard.
+ *
+ * A shard is given as a database name, host:port/database or
+ * port/database, all of them logged into as the directory's user.  Every
+ * shard has the full schema (sql/scripts/create_shards.sh); its USR holds a
+ * stub (user_id, login) of every user with rows there, made from the
+ * directory's row the first time the user writes to the shard, so the
+ * statements of Queries run unchanged.
+ *
+ * Chat ids stay globally unique: they are taken from the directory's
+ * chat_chat_id_seq messenger.chatIdBlock (100) at a time, so creating a
+ * chat rarely costs a round trip to the directory.
+ *
+ * Messenger routes each statement by its shape (see acquire): the ones in
+ * Queries.CHAT_KEY go to the shard of their chat_id parameter, the ones in
+ * Queries.ALL_SHARDS run on a shard chosen with forEachShard, and the rest
+ * on the directory.
+ *
+ */
+public class ShardRouter {
+
+   /**
+    * Work done once per shard by forEachShard
+    */
+   public interface Task<T> {
+      T run (int shard) throws SQLException;
+   }//end Task
+
+   private final ConnectionPool _directory;
+   private final List<ConnectionPool> _shards = new ArrayList<ConnectionPool>();
+   private final List<String> _names = new ArrayList<String>();
+
+   // the logins known to have a USR stub, per shard
+   private final List<Set<String>> _stubs = new ArrayList<Set<String>>();
+
+   // the shard each thread's statements are pinned to, see pin
+   private final ThreadLocal<Integer> _pinned = new ThreadLocal<Integer>();
+
+   // runs the per shard work of forEachShard in parallel
+   private ExecutorService _scatter = null;
+
+   // chat ids taken from the directory and not handed out yet
+   private final int _chatIdBlock = Integer.getInteger ("messenger.chatIdBlock", 100);
+   private final List<Integer> _chatIds = new ArrayList<Integer>();
+
+   /**
+    * @param directory the pool of the directory database
+    * @param dbname the directory's database name, for the shard names
+    * @param shards the messenger.shards list, empty when not sharded
+    */
+   ShardRouter (ConnectionPool directory, String dbname, String dbport, String user, String passwd, String shards) {
+      this._directory = directory;
+      for (String s : shards.trim ().length () == 0 ? new String[0] : shards.split (",")) {
+         String spec = s.trim ();
+         String db = spec;
+         String host = "localhost:" + dbport;
+         int slash = spec.indexOf ('/');
+         if (slash >= 0) {
+            db = spec.substring (slash + 1);
+            host = spec.substring (0, slash).indexOf (':') < 0 ? "localhost:" + spec.substring (0, slash) : spec.substring (0, slash);
+         }//end if
+         this._shards.add (new ConnectionPool ("jdbc:postgresql://" + host + "/" + db, user, passwd,
+            Integer.getInteger ("messenger.shardPoolSize", Integer.getInteger ("messenger.poolSize", 4)),
+            Integer.getInteger ("messenger.stmtCacheSize", 64)));
+         this._names.add (db);
+         this._stubs.add (Collections.newSetFromMap (new ConcurrentHashMap<String, Boolean>()));
+      }//end for
+      if (this._shards.isEmpty ()) {
+         this._shards.add (directory);
+         this._names.add (dbname);
+         this._stubs.add (Collections.<String>emptySet ());
+      }//end if
+   }//end ShardRouter
+
+   /**
+    * @return true if chats live on databases of their own
+    */
+   public boolean isSharded () {
+      return this._shards.get (0) != this._directory;
+   }//end isSharded
+
+   /**
+    * @return the number of shards, 1 when not sharded
+    */
+   public int count () {
+      return this._shards.size ();
+   }//end count
+
+   /**
+    * @return the database name of a shard, e.g. to name its archive
+    */
+   public String name (int shard) {
+      return this._names.get (shard);
+   }//end name
+
+   ConnectionPool directory () {
+      return this._directory;
+   }//end directory
+
+   ConnectionPool pool (int shard) {
+      return this._shards.get (shard);
+   }//end pool
+
+   List<ConnectionPool> shards () {
+      return this._shards;
+   }//end shards
+
+   /**
+    * Spreads consecutive ids over the shards (the finalizer of MurmurHash3)
+    *
+    * @return the shard of a chat among count shards
+    */
+   public static int shardOf (int chat_id, int count) {
+      int h = chat_id;
+      h ^= h >>> 16;
+      h *= 0x85ebca6b;
+      h ^= h >>> 13;
+      h *= 0xc2b2ae35;
+      h ^= h >>> 16;
+      return (h & Integer.MAX_VALUE) % count;
+   }//end shardOf
+
+   /**
+    * @return the shard of a chat
+    */
+   public int shardOf (int chat_id) {
+      return this._shards.size () == 1 ? 0 : shardOf (chat_id, this._shards.size ());
+   }//end shardOf
+
+   /**
+    * Pins the calling thread's statements to a shard: the ones of
+    * Queries.ALL_SHARDS run there, and so does begin.  Restore the value
+    * returned in a finally.
+    *
+    * @return the previous pin, null if there was none
+    */
+   Integer pin (int shard) {
+      Integer previous = this._pinned.get ();
+      this._pinned.set (shard);
+      return previous;
+   }//end pin
+
+   void restore (Integer previous) {
+      if (previous == null)
+         this._pinned.remove ();
+      else
+         this._pinned.set (previous);
+   }//end restore
+
+   /**
+    * @return the shard the calling thread is pinned to, or -1
+    */
+   int pinned () {
+      Integer shard = this._pinned.get ();
+      return shard == null ? -1 : shard.intValue ();
+   }//end pinned
+
+   /**
+    * Runs a task for every shard, each pinned to its shard.  With
+    * messenger.shards, even a single one, they run in parallel on threads
+    * of their own, so a transaction a task opens is its own; without it
+    * the task runs on the calling thread and joins its transaction, if any.
+    *
+    * @return the results, in shard order
+    * @throws java.sql.SQLException the first failure, after every task ended
+    */
+   public <T> List<T> forEachShard (final Task<T> task) throws SQLException {
+      List<T> results = new ArrayList<T>(this._shards.size ());
+      if (!isSharded ()) {
+         Integer previous = pin (0);
+         try{
+            results.add (task.run (0));
+         }finally{
+            restore (previous);
+         }//end try
+         return results;
+      }//end if
+
+      List<Future<T>> futures = new ArrayList<Future<T>>(this._shards.size ());
+      for (int i = 0; i < this._shards.size (); ++i) {
+         final int shard = i;
+         futures.add (scatter ().submit (new Callable<T> () {
+            public T call () throws Exception {
+               pin (shard);
+               try{
+                  return task.run (shard);
+               }finally{
+                  ShardRouter.this._pinned.remove ();
+               }//end try
+            }
+         }));
+      }//end for
+      SQLException failure = null;
+      for (Future<T> f : futures) {
+         try{
+            results.add (f.get ());
+         }catch (ExecutionException e){
+            if (failure == null)
+               failure = e.getCause () instanceof SQLException
+                  ? (SQLException) e.getCause () : new SQLException (String.valueOf (e.getCause ()));
+         }catch (InterruptedException e){
+            Thread.currentThread ().interrupt ();
+            if (failure == null)
+               failure = new SQLException ("interrupted while waiting for the shards");
+         }//end try
+      }//end for
+      if (failure != null)
+         throw failure;
+      return results;
+   }//end forEachShard
+
+   private synchronized ExecutorService scatter () {
+      if (this._scatter == null)
+         this._scatter = Executors.newCachedThreadPool (new ThreadFactory () {
+            public Thread newThread (Runnable r) {
+               Thread t = new Thread (r, "shard-scatter");
+               t.setDaemon (true);
+               return t;
+            }
+         });
+      return this._scatter;
+   }//end scatter
+
+   /**
+    * Hands out the next chat id, taking a new block from the directory
+    * when the last one is used up
+    */
+   int nextChatId (Messenger esql) throws SQLException {
+      synchronized (this._chatIds) {
+         if (this._chatIds.isEmpty ())
+            this._chatIds.addAll (esql.query (Queries.NEXT_SEQ_VALS, RowMapper.INTEGER, "chat_chat_id_seq", this._chatIdBlock));
+         return this._chatIds.remove (0).intValue ();
+      }//end synchronized
+   }//end nextChatId
+
+   /**
+    * Makes sure a user has a USR stub on a shard before rows there refer to it
+    *
+    * @throws java.sql.SQLException when there is no such user
+    */
+   void ensureUser (Messenger esql, int shard, String login) throws SQLException {
+      if (!isSharded () || this._stubs.get (shard).contains (login))
+         return;
+      Integer user_id = esql.queryOne (Queries.USER_ID_OF, RowMapper.INTEGER, login);
+      if (user_id == null)
+         throw new SQLException ("No such user: " + login.trim ());
+      Integer previous = pin (shard);
+      try{
+         esql.executeUpdate (Queries.CREATE_USER_STUB, user_id, login, "#" + user_id, SessionManager.LOCKED_OUT);
+      }finally{
+         restore (previous);
+      }//end try
+      this._stubs.get (shard).add (login);
+   }//end ensureUser
+
+   /**
+    * Forgets the stubs of a deleted user
+    */
+   void forgetUser (String login) {
+      for (Set<String> stubs : this._stubs)
+         stubs.remove (login);
+   }//end forgetUser
+
+   /**
+    * Closes the shard pools
+    */
+   void close () {
+      synchronized (this) {
+         if (this._scatter != null)
+            this._scatter.shutdownNow ();
+      }//end synchronized
+      if (isSharded ()) {
+         for (ConnectionPool pool : this._shards)
+            pool.close ();
+      }//end if
+   }//end close
+
+}//end ShardRouter
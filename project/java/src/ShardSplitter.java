@@ -0,0 +1,258 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Moves the chats of a loaded database onto the shards in messenger.shards
+ * (see ShardRouter), for sql/scripts/create_shards.sh.  The shards are
+ * expected to hold the bare tables from create_tables.sql.
+ *
+ * Every user is copied to every shard as a stub, and the CHAT, CHAT_LIST,
+ * MESSAGE and INBOX rows of each chat go to the shard its chat_id hashes
+ * to, split.batchRows (500) rows per JDBC batch.  Each shard then gets its
+ * MESSAGE partitions, keys, indexes and triggers the way BulkLoader builds
+ * them, and its message_msg_id_seq counts in steps of the number of shards
+ * from an offset of its own, so msg_ids stay unique across the shards.
+ * When every shard is done the chat tables of the directory are emptied.
+ *
+ */
+public class ShardSplitter {
+
+   /**
+    * One table to move and its columns with their types
+    */
+   static class TableSpec {
+      final String table;
+      final String[] columns;
+      final String[] types;
+
+      TableSpec (String table, String[] columns, String[] types) {
+         this.table = table;
+         this.columns = columns;
+         this.types = types;
+      }
+
+      String select () {
+         return "SELECT " + join (this.columns) + " FROM " + this.table;
+      }
+
+      String insert () {
+         String[] values = new String[this.types.length];
+         for (int i = 0; i < values.length; ++i)
+            values[i] = "?::" + this.types[i];
+         return "INSERT INTO " + this.table + "(" + join (this.columns) + ") VALUES (" + join (values) + ")";
+      }
+
+      int chatColumn () {
+         for (int i = 0; i < this.columns.length; ++i)
+            if (this.columns[i].equals ("chat_id"))
+               return i;
+         return -1;
+      }
+   }//end TableSpec
+
+   // parents first, so the foreign keys created afterwards hold
+   static final TableSpec[] TABLES = new TableSpec[] {
+      new TableSpec ("CHAT",
+         new String[] { "chat_id", "chat_type", "init_sender_id" },
+         new String[] { "integer", "varchar", "integer" }),
+      new TableSpec ("CHAT_LIST",
+         new String[] { "chat_id", "member_id" },
+         new String[] { "integer", "integer" }),
+      new TableSpec ("MESSAGE",
+         new String[] { "msg_id", "msg_text", "msg_timestamp", "sender_id", "chat_id", "msg_tsv" },
+         new String[] { "integer", "varchar", "timestamp", "integer", "integer", "tsvector" }),
+      new TableSpec ("INBOX",
+         new String[] { "chat_id", "member_id", "last_msg_id", "last_timestamp", "last_sender_id", "preview", "unread", "read_msg_id" },
+         new String[] { "integer", "integer", "integer", "timestamp", "integer", "varchar", "integer", "integer" }),
+   };
+
+   private static String join (String[] parts) {
+      StringBuilder s = new StringBuilder ();
+      for (int i = 0; i < parts.length; ++i)
+         s.append (i == 0 ? "" : ", ").append (parts[i]);
+      return s.toString ();
+   }//end join
+
+   // reads every column as text, the inserts cast it back
+   private static final RowMapper<Object[]> TEXT_ROW = new RowMapper<Object[]> () {
+      public Object[] map (ResultSet rs) throws SQLException {
+         Object[] row = new Object[rs.getMetaData ().getColumnCount ()];
+         for (int i = 0; i < row.length; ++i)
+            row[i] = rs.getString (i + 1);
+         return row;
+      }
+   };
+
+   private final int _batchRows = Integer.getInteger ("split.batchRows", 500);
+
+   private final Messenger _esql;
+   private final ShardRouter _shards;
+   private final File _sqlDir;
+
+   public ShardSplitter (Messenger esql, File sqlDir) {
+      this._esql = esql;
+      this._shards = esql.shards ();
+      this._sqlDir = sqlDir;
+   }//end ShardSplitter
+
+   /**
+    * Batches the inserts of one table on every shard
+    */
+   private class Writer implements RowHandler<Object[]> {
+      private final PreparedStatement[] _stmts;
+      private final int[] _pending;
+      private final int _chatColumn;
+      long rows = 0;
+
+      Writer (Connection[] conns, String insert, int chatColumn) throws SQLException {
+         this._stmts = new PreparedStatement[conns.length];
+         this._pending = new int[conns.length];
+         for (int i = 0; i < conns.length; ++i)
+            this._stmts[i] = conns[i].prepareStatement (insert);
+         this._chatColumn = chatColumn;
+      }
+
+      public void handle (Object[] row) throws SQLException {
+         if (this._chatColumn < 0) {
+            for (int shard = 0; shard < this._stmts.length; ++shard)
+               add (shard, row);
+         }else{
+            add (_shards.shardOf (Integer.parseInt (((String) row[this._chatColumn]).trim ())), row);
+         }//end if
+         ++this.rows;
+      }
+
+      private void add (int shard, Object[] row) throws SQLException {
+         Messenger.bind (this._stmts[shard], row);
+         this._stmts[shard].addBatch ();
+         if (++this._pending[shard] == _batchRows) {
+            this._stmts[shard].executeBatch ();
+            this._pending[shard] = 0;
+         }//end if
+      }
+
+      void close () throws SQLException {
+         for (int shard = 0; shard < this._stmts.length; ++shard) {
+            if (this._pending[shard] > 0)
+               this._stmts[shard].executeBatch ();
+            this._stmts[shard].close ();
+         }//end for
+      }
+   }//end Writer
+
+   /**
+    * Copies the users and chats to the shards and empties the directory's
+    * chat tables
+    */
+   public void split () throws Exception {
+      if (!this._shards.isSharded ())
+         throw new SQLException ("no shards given, set messenger.shards");
+      long start = System.nanoTime ();
+      int count = this._shards.count ();
+      Connection[] conns = new Connection[count];
+      try{
+         for (int shard = 0; shard < count; ++shard) {
+            conns[shard] = this._esql.openConnection (shard);
+            conns[shard].setAutoCommit (false);
+         }//end for
+
+         // a stub of every user on every shard, as ShardRouter.ensureUser makes them
+         Writer users = new Writer (conns, Queries.CREATE_USER_STUB, -1);
+         this._esql.stream ("SELECT user_id, login FROM USR", new RowMapper<Object[]> () {
+            public Object[] map (ResultSet rs) throws SQLException {
+               int user_id = rs.getInt (1);
+               return new Object[] { user_id, rs.getString (2), "#" + user_id, SessionManager.LOCKED_OUT };
+            }
+         }, users);
+         users.close ();
+         System.out.println (String.format ("  %-20s %10d rows on every shard", "USR", users.rows));
+
+         for (TableSpec spec : TABLES) {
+            Writer writer = new Writer (conns, spec.insert (), spec.chatColumn ());
+            this._esql.stream (spec.select (), TEXT_ROW, writer);
+            writer.close ();
+            System.out.println (String.format ("  %-20s %10d rows", spec.table, writer.rows));
+         }//end for
+         for (Connection conn : conns)
+            conn.commit ();
+
+         Integer lastMsgId = this._esql.queryOne ("SELECT COALESCE(MAX(msg_id), 0) FROM MESSAGE", RowMapper.INTEGER);
+         for (int shard = 0; shard < count; ++shard) {
+            Connection conn = conns[shard];
+            conn.setAutoCommit (true);
+            MessageArchiver.createPartitions (conn, "MESSAGE", null);
+            SqlScript.run (conn, new File (this._sqlDir, "create_constraints.sql"));
+            SqlScript.run (conn, new File (this._sqlDir, "create_indexes.sql"));
+            SqlScript.run (conn, new File (this._sqlDir, "create_triggers.sql"));
+            Statement stmt = conn.createStatement ();
+            try{
+               stmt.execute (String.format ("ALTER SEQUENCE message_msg_id_seq INCREMENT BY %d RESTART WITH %d",
+                  count, lastMsgId.intValue () + 1 + shard));
+               stmt.execute ("ANALYZE");
+            }finally{
+               stmt.close ();
+            }//end try
+            System.out.println ("Shard " + this._shards.name (shard) + " done");
+         }//end for
+      }finally{
+         for (Connection conn : conns) {
+            if (conn != null)
+               conn.close ();
+         }//end for
+      }//end try
+
+      // the chats are served from the shards now, and rows left here would
+      // keep deleted accounts referenced
+      this._esql.executeUpdate ("TRUNCATE INBOX, MESSAGE, CHAT_LIST, CHAT");
+      System.out.println (String.format ("Split into %d shards in %.1fs", count, (System.nanoTime () - start) / 1e9));
+   }//end split
+
+   /**
+    * The main execution method
+    *
+    * @param args the command line arguments <dbname> <port> <user>
+    */
+   public static void main (String[] args) {
+      if (args.length != 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] -Dmessenger.shards=<db>,... [-Dload.sqlDir=<sql dir>] " +
+            ShardSplitter.class.getName () +
+            " <dbname> <port> <user>");
+         System.exit (2);
+      }//end if
+      Messenger esql = null;
+      int status = 0;
+      try{
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         esql = new Messenger (args[0], args[1], args[2], "");
+         File sqlDir = new File (System.getProperty ("load.sqlDir", "../../sql/src"));
+         new ShardSplitter (esql, sqlDir).split ();
+      }catch (Exception e){
+         System.err.println ("Error - split failed: " + e.getMessage ());
+         status = 1;
+      }finally{
+         if (esql != null)
+            esql.cleanup ();
+      }//end try
+      System.exit (status);
+   }//end main
+
+}//end ShardSplitter
@@ -0,0 +1,282 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.FileHandler;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.regex.Pattern;
+
+/**
+ * Logs the statements of Messenger's query helpers that take longer than
+ * slowlog.thresholdMillis (off when negative, the default) to a rotating
+ * file: slowlog.file ("slow_queries.%g.log", see java.util.logging.FileHandler),
+ * slowlog.files (5) files of up to slowlog.maxBytes (10 MB) each.
+ *
+ * An entry holds the time, the operation being run (see OperationStats),
+ * whether the statement was part of a transaction, the SQL and its bind
+ * values.  Values of statements on passwords are left out, long ones are
+ * cut.
+ *
+ * A fraction slowlog.explainSample (0.05) of the slow statements is run
+ * again under EXPLAIN (ANALYZE, BUFFERS) on a connection of its own, in a
+ * transaction that is rolled back, and the plan is logged after the entry.
+ * This happens in the background, at most slowlog.explainQueue (16) waiting,
+ * each limited to slowlog.explainTimeoutMillis (10000).  Statements that
+ * change data are explained only with slowlog.explainWrites, as the re-run
+ * takes their locks again.  A re-run much faster than the original points
+ * at a lock wait or a cold cache rather than the plan.  The re-run goes to
+ * the database the statement ran on, its shard with messenger.shards.
+ *
+ */
+public class SlowQueryLog {
+
+   private static final int MAX_VALUE_CHARS = 100;
+
+   private final long _thresholdNanos = Long.getLong ("slowlog.thresholdMillis", -1L) * 1000000L;
+   private final double _explainSample = Double.parseDouble (System.getProperty ("slowlog.explainSample", "0.05"));
+   private final boolean _explainWrites = Boolean.getBoolean ("slowlog.explainWrites");
+   private final int _explainTimeoutMillis = Integer.getInteger ("slowlog.explainTimeoutMillis", 10000);
+
+   // the log file, opened with the first slow statement
+   private FileHandler _file = null;
+   private boolean _failed = false;
+
+   // runs the EXPLAINs, one at a time, on a connection per database
+   private final ThreadPoolExecutor _explainer;
+   private final Map<ConnectionPool, Connection> _explainConns = new ConcurrentHashMap<ConnectionPool, Connection>();
+
+   /**
+    * Writes the message of a record as it is, after its time
+    */
+   static class EntryFormatter extends Formatter {
+      private final SimpleDateFormat _time = new SimpleDateFormat ("yyyy-MM-dd HH:mm:ss.SSS", Locale.ROOT);
+
+      public synchronized String format (LogRecord record) {
+         return this._time.format (new Date (record.getMillis ())) + " " + record.getMessage () + "\n";
+      }
+   }//end EntryFormatter
+
+   public SlowQueryLog () {
+      this._explainer = new ThreadPoolExecutor (1, 1, 0, TimeUnit.MILLISECONDS,
+         new ArrayBlockingQueue<Runnable>(Integer.getInteger ("slowlog.explainQueue", 16)),
+         new ThreadFactory () {
+            public Thread newThread (Runnable r) {
+               Thread t = new Thread (r, "slow-query-explain");
+               t.setDaemon (true);
+               return t;
+            }
+         },
+         new ThreadPoolExecutor.DiscardPolicy ());
+   }//end SlowQueryLog
+
+   /**
+    * @return true if statements are checked at all
+    */
+   public boolean enabled () {
+      return this._thresholdNanos >= 0;
+   }//end enabled
+
+   /**
+    * Logs a statement if it took longer than the threshold
+    *
+    * @param sql the statement, or COMMIT / ROLLBACK
+    * @param params its bind values
+    * @param nanos the time it took
+    * @param rows the rows it returned or changed
+    * @param operation the operation it ran for, see OperationStats.current
+    * @param inTransaction true if it ran in the caller's open transaction
+    * @param pool the database it ran on, null if it cannot be explained
+    */
+   public void check (String sql, Object[] params, long nanos, long rows, String operation, boolean inTransaction,
+                      ConnectionPool pool) {
+      if (this._thresholdNanos < 0 || nanos < this._thresholdNanos)
+         return;
+      StringBuilder entry = new StringBuilder ();
+      entry.append (String.format ("slow %.1f ms op=%s rows=%d tx=%s%n  ", nanos / 1e6, operation, rows,
+         inTransaction ? "yes" : "no"));
+      entry.append (sql.replaceAll ("\\s+", " ").trim ());
+      if (params != null && params.length > 0)
+         entry.append ("\n  binds: ").append (formatParams (sql, params));
+      write (entry.toString ());
+
+      if (pool != null && this._explainSample > 0 && explainable (sql)
+          && ThreadLocalRandom.current ().nextDouble () < this._explainSample)
+         this._explainer.execute (new Explain (sql, params, nanos, operation, pool));
+   }//end check
+
+   /**
+    * Formats bind values as a list, leaving out the values of statements on
+    * passwords
+    */
+   static String formatParams (String sql, Object[] params) {
+      boolean secret = sql.toLowerCase (Locale.ROOT).contains ("password");
+      StringBuilder s = new StringBuilder ("[");
+      for (int i = 0; i < params.length; ++i) {
+         if (i > 0)
+            s.append (", ");
+         Object p = params[i];
+         if (p == null)
+            s.append ("NULL");
+         else if (secret)
+            s.append ("***");
+         else if (p instanceof Number)
+            s.append (p);
+         else {
+            String v = p.toString ();
+            if (v.length () > MAX_VALUE_CHARS)
+               v = v.substring (0, MAX_VALUE_CHARS) + "...(" + v.length () + " chars)";
+            s.append ('\'').append (v.replace ("'", "''").replace ("\n", "\\n")).append ('\'');
+         }//end if
+      }//end for
+      return s.append (']').toString ();
+   }//end formatParams
+
+   // a WITH whose parts change data, e.g. Queries.CREATE_USER_ACCOUNT
+   private static final Pattern WRITING_CTE = Pattern.compile ("\\b(INSERT|UPDATE|DELETE)\\b");
+
+   private boolean explainable (String sql) {
+      String head = sql.trim ().toUpperCase (Locale.ROOT);
+      boolean writes = head.startsWith ("INSERT") || head.startsWith ("UPDATE") || head.startsWith ("DELETE")
+         || (head.startsWith ("WITH") && WRITING_CTE.matcher (head).find ());
+      if (writes)
+         return this._explainWrites;
+      return head.startsWith ("SELECT") || head.startsWith ("WITH") || head.startsWith ("VALUES");
+   }//end explainable
+
+   private synchronized void write (String entry) {
+      if (this._failed)
+         return;
+      if (this._file == null) {
+         try{
+            this._file = new FileHandler (System.getProperty ("slowlog.file", "slow_queries.%g.log"),
+               Integer.getInteger ("slowlog.maxBytes", 10485760), Integer.getInteger ("slowlog.files", 5), true);
+            this._file.setFormatter (new EntryFormatter ());
+         }catch (IOException e){
+            System.err.println ("Slow query log: " + e.getMessage ());
+            this._failed = true;
+            return;
+         }//end try
+      }//end if
+      this._file.publish (new LogRecord (Level.INFO, entry));
+      this._file.flush ();
+   }//end write
+
+   /**
+    * Runs a logged statement again under EXPLAIN and logs the plan
+    */
+   private class Explain implements Runnable {
+      private final String _sql;
+      private final Object[] _params;
+      private final long _nanos;
+      private final String _operation;
+      private final ConnectionPool _pool;
+
+      Explain (String sql, Object[] params, long nanos, String operation, ConnectionPool pool) {
+         this._sql = sql;
+         this._params = params;
+         this._nanos = nanos;
+         this._operation = operation;
+         this._pool = pool;
+      }
+
+      public void run () {
+         StringBuilder plan = new StringBuilder ();
+         long start = System.nanoTime ();
+         try{
+            Connection conn = explainConnection (this._pool);
+            try{
+               PreparedStatement stmt = conn.prepareStatement ("EXPLAIN (ANALYZE, BUFFERS) " + this._sql);
+               try{
+                  Messenger.bind (stmt, this._params == null ? new Object[0] : this._params);
+                  ResultSet rs = stmt.executeQuery ();
+                  while (rs.next ())
+                     plan.append ("\n  ").append (rs.getString (1));
+                  rs.close ();
+               }finally{
+                  stmt.close ();
+               }//end try
+            }finally{
+               conn.rollback ();
+            }//end try
+         }catch (SQLException e){
+            closeExplainConnection (this._pool);
+            plan.append ("\n  EXPLAIN failed: ").append (e.getMessage ());
+         }//end try
+         write (String.format ("plan of the %.1f ms statement op=%s (re-run %.1f ms)%n  %s%s", this._nanos / 1e6,
+            this._operation, (System.nanoTime () - start) / 1e6, this._sql.replaceAll ("\\s+", " ").trim (), plan));
+      }
+   }//end Explain
+
+   private Connection explainConnection (ConnectionPool pool) throws SQLException {
+      Connection conn = this._explainConns.get (pool);
+      if (conn == null) {
+         conn = pool.connect ();
+         Statement stmt = conn.createStatement ();
+         try{
+            stmt.execute ("SET statement_timeout = " + this._explainTimeoutMillis);
+         }finally{
+            stmt.close ();
+         }//end try
+         conn.setAutoCommit (false);
+         this._explainConns.put (pool, conn);
+      }//end if
+      return conn;
+   }//end explainConnection
+
+   private void closeExplainConnection (ConnectionPool pool) {
+      try{
+         Connection conn = this._explainConns.remove (pool);
+         if (conn != null)
+            conn.close ();
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+   }//end closeExplainConnection
+
+   /**
+    * Stops the explains and closes the file
+    */
+   public void close () {
+      this._explainer.shutdownNow ();
+      try{
+         this._explainer.awaitTermination (this._explainTimeoutMillis, TimeUnit.MILLISECONDS);
+      }catch (InterruptedException e){
+         Thread.currentThread ().interrupt ();
+      }//end try
+      for (ConnectionPool pool : this._explainConns.keySet ())
+         closeExplainConnection (pool);
+      synchronized (this) {
+         if (this._file != null)
+            this._file.close ();
+         this._file = null;
+      }//end synchronized
+   }//end close
+
+}//end SlowQueryLog
@@ -0,0 +1,107 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the scripts in project/sql/src over JDBC the way psql does: statement
+ * by statement, reporting failures and carrying on with the next one.
+ *
+ */
+public class SqlScript {
+
+   private SqlScript () {
+   }
+
+   /**
+    * Splits a script into statements.  Line comments are dropped and
+    * semicolons inside quotes or $$ function bodies do not end a statement.
+    *
+    * @param file the .sql file
+    * @return the statements without their trailing semicolon
+    * @throws java.io.IOException when the file cannot be read
+    */
+   public static List<String> parse (File file) throws IOException {
+      List<String> statements = new ArrayList<String>();
+      StringBuilder current = new StringBuilder();
+      boolean inQuote = false;
+      boolean inDollar = false;
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try{
+         String line;
+         while ((line = reader.readLine ()) != null) {
+            for (int i = 0; i < line.length (); ++i) {
+               char c = line.charAt (i);
+               if (!inQuote && !inDollar && c == '-' && i + 1 < line.length () && line.charAt (i + 1) == '-')
+                  break;
+               if (!inQuote && c == '$' && i + 1 < line.length () && line.charAt (i + 1) == '$') {
+                  inDollar = !inDollar;
+                  current.append ("$$");
+                  ++i;
+                  continue;
+               }//end if
+               if (!inDollar && c == '\'')
+                  inQuote = !inQuote;
+               if (!inQuote && !inDollar && c == ';') {
+                  if (current.toString ().trim ().length () > 0)
+                     statements.add (current.toString ().trim ());
+                  current.setLength (0);
+                  continue;
+               }//end if
+               current.append (c);
+            }//end for
+            current.append ('\n');
+         }//end while
+      }finally{
+         reader.close ();
+      }//end try
+      if (current.toString ().trim ().length () > 0)
+         statements.add (current.toString ().trim ());
+      return statements;
+   }//end parse
+
+   /**
+    * Executes every statement of a script in autocommit mode.
+    *
+    * @param conn the connection to run the script on
+    * @param file the .sql file
+    * @return the number of statements that failed
+    * @throws java.io.IOException when the file cannot be read
+    */
+   public static int run (Connection conn, File file) throws IOException {
+      int failures = 0;
+      for (String sql : parse (file)) {
+         try{
+            Statement stmt = conn.createStatement ();
+            try{
+               stmt.execute (sql);
+            }finally{
+               stmt.close ();
+            }//end try
+         }catch (SQLException e){
+            System.err.println (file.getName () + ": " + e.getMessage ());
+            ++failures;
+         }//end try
+      }//end for
+      return failures;
+   }//end run
+
+}//end SqlScript
@@ -0,0 +1,139 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Creates user accounts in bulk through Messenger.provisionUsers, one
+ * transaction per batch and several batches in parallel, and reports the
+ * throughput.  The accounts come either from a ';' delimited file of
+ * login;password;phone lines or are generated as &lt;prefix&gt;&lt;n&gt;.
+ *
+ *   provision.batchSize  accounts per transaction (1000)
+ *   provision.threads    batches in flight (4)
+ *   provision.prefix     login prefix of generated accounts ("wave_")
+ *
+ */
+public class UserProvisioner {
+
+   private final int _batchSize = Integer.getInteger ("provision.batchSize", 1000);
+   private final int _threads = Integer.getInteger ("provision.threads", 4);
+
+   private final Messenger _esql;
+
+   public UserProvisioner (Messenger esql) {
+      this._esql = esql;
+   }//end UserProvisioner
+
+   private static List<String[]> readAccounts (File file) throws IOException {
+      List<String[]> accounts = new ArrayList<String[]>();
+      BufferedReader reader = new BufferedReader (new FileReader (file));
+      try{
+         String line;
+         while ((line = reader.readLine ()) != null) {
+            if (line.trim ().length () > 0)
+               accounts.add (line.split (";", -1));
+         }//end while
+      }finally{
+         reader.close ();
+      }//end try
+      return accounts;
+   }//end readAccounts
+
+   private static List<String[]> generateAccounts (String prefix, int count) {
+      List<String[]> accounts = new ArrayList<String[]>(count);
+      for (int i = 0; i < count; ++i) {
+         // phone numbers are unique, keep them apart from the loaded data set
+         String phone = String.format ("+9(%03d)%03d-%04d", i / 10000000 % 1000, i / 10000 % 1000, i % 10000);
+         accounts.add (new String[] { prefix + i, "welcome" + i, phone });
+      }//end for
+      return accounts;
+   }//end generateAccounts
+
+   /**
+    * Provisions the accounts batch by batch
+    *
+    * @return the number of accounts created, failed batches are reported and skipped
+    */
+   public int provision (List<String[]> accounts) throws InterruptedException {
+      ExecutorService executor = Executors.newFixedThreadPool (this._threads);
+      List<Future<Integer>> batches = new ArrayList<Future<Integer>>();
+      long start = System.nanoTime ();
+      try{
+         for (int from = 0; from < accounts.size (); from += this._batchSize) {
+            final List<String[]> batch = accounts.subList (from, Math.min (accounts.size (), from + this._batchSize));
+            batches.add (executor.submit (new Callable<Integer> () {
+               public Integer call () throws Exception {
+                  return Integer.valueOf (_esql.provisionUsers (batch));
+               }
+            }));
+         }//end for
+         int created = 0;
+         for (Future<Integer> f : batches) {
+            try{
+               created += f.get ().intValue ();
+            }catch (ExecutionException e){
+               System.err.println ("Batch failed: " + e.getCause ().getMessage ());
+            }//end try
+         }//end for
+         double seconds = (System.nanoTime () - start) / 1e9;
+         System.out.println (String.format ("Created %d of %d accounts in %.1f s (%.0f accounts/s, %d per batch, %d threads)",
+            created, accounts.size (), seconds, created / seconds, this._batchSize, this._threads));
+         return created;
+      }finally{
+         executor.shutdown ();
+      }//end try
+   }//end provision
+
+   /**
+    * The main execution method
+    *
+    * @param args the command line arguments <dbname> <port> <user> <count | accounts file>
+    */
+   public static void main (String[] args) {
+      if (args.length < 4) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] [-Dprovision.<setting>=<value>] " +
+            UserProvisioner.class.getName () +
+            " <dbname> <port> <user> <number of accounts | login;password;phone file>");
+         return;
+      }//end if
+      if (System.getProperty ("messenger.poolSize") == null)
+         System.setProperty ("messenger.poolSize", String.valueOf (Integer.getInteger ("provision.threads", 4)));
+      Messenger esql = null;
+      try{
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         List<String[]> accounts = new File (args[3]).isFile () ? readAccounts (new File (args[3]))
+            : generateAccounts (System.getProperty ("provision.prefix", "wave_"), Integer.parseInt (args[3]));
+         esql = new Messenger (args[0], args[1], args[2], "");
+         new UserProvisioner (esql).provision (accounts);
+      }catch (Exception e){
+         System.err.println (e.getMessage ());
+      }finally{
+         if (esql != null)
+            esql.cleanup ();
+      }//end try
+   }//end main
+
+}//end UserProvisioner
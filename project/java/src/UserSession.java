@@ -0,0 +1,62 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+/**
+ * An authenticated user, handed out by SessionManager.  It carries the ids
+ * of the user's contact and block lists so that list operations need no
+ * further USR lookup, and the token a client presents to resume it.
+ *
+ */
+public class UserSession {
+
+   private final String _token;
+   private final String _login;
+   private final int _contactList;
+   private final int _blockList;
+
+   // when the session lapses, pushed forward each time it is used
+   private volatile long _expiresAt;
+
+   UserSession (String token, String login, int contactList, int blockList, long expiresAt) {
+      this._token = token;
+      this._login = login;
+      this._contactList = contactList;
+      this._blockList = blockList;
+      this._expiresAt = expiresAt;
+   }//end UserSession
+
+   public String getToken () {
+      return this._token;
+   }//end getToken
+
+   public String getLogin () {
+      return this._login;
+   }//end getLogin
+
+   public int getContactList () {
+      return this._contactList;
+   }//end getContactList
+
+   public int getBlockList () {
+      return this._blockList;
+   }//end getBlockList
+
+   long getExpiresAt () {
+      return this._expiresAt;
+   }//end getExpiresAt
+
+   void setExpiresAt (long expiresAt) {
+      this._expiresAt = expiresAt;
+   }//end setExpiresAt
+
+}//end UserSession
@@ -0,0 +1,420 @@
+/*
+ * Template JAVA User Interface
+ * =============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless load driver.  Every simulated user is a thread that logs in and
+ * then runs a scripted session against the Messenger operations: browsing
+ * and paging its chats, sending and editing messages, adding and removing
+ * contacts, starting chats and creating and deleting a throwaway account.
+ * Unlike MessengerBench it works on an existing database and mixes the
+ * operations the way concurrent users would, so lock waits and deadlocks
+ * between them show up.
+ *
+ * Settings, all overridable with -Dworkload.<name>:
+ *
+ *   workload.users          simulated users (200)
+ *   workload.warmupMillis   run time before measuring (5000)
+ *   workload.measureMillis  measured run time (30000)
+ *   workload.thinkMillis    mean pause between two operations of a user (0)
+ *   workload.mix            operation weights, e.g. browse=40,send=25,...
+ *
+ * Operations that change data only touch the simulated user's own chats,
+ * messages, contacts and throwaway accounts, but they do change the data:
+ * do not point the driver at a database holding real data.
+ *
+ */
+public class WorkloadDriver {
+
+   private static final String DEFAULT_MIX =
+      "browse=40,send=25,edit=10,listContacts=10,addContact=8,newChat=4,deleteMessage=2,deleteAccount=1";
+
+   // picks the users to simulate, the same login may not be used twice.  Only
+   // the plain text passwords of the loaded data set are known to the driver
+   private static final String SAMPLE_USERS =
+      "SELECT login, password FROM USR WHERE password NOT LIKE 's1$%' ORDER BY random() LIMIT ?";
+
+   private final int _users = Integer.getInteger ("workload.users", 200);
+   private final long _warmupMillis = Long.getLong ("workload.warmupMillis", 5000L);
+   private final long _measureMillis = Long.getLong ("workload.measureMillis", 30000L);
+   private final long _thinkMillis = Long.getLong ("workload.thinkMillis", 0L);
+
+   private final Messenger _esql;
+
+   // operation name -> weight, in the order of the report
+   private final Map<String, Integer> _mix = new LinkedHashMap<String, Integer>();
+   private int _totalWeight;
+
+   private final Map<String, OpStats> _stats = new LinkedHashMap<String, OpStats>();
+   private final AtomicBoolean _recording = new AtomicBoolean (false);
+   private final AtomicBoolean _running = new AtomicBoolean (true);
+   private final AtomicLong _sessionsFailed = new AtomicLong ();
+
+   // every login sampled for the run, used as contacts and chat members
+   private List<List<String>> _logins;
+
+   /**
+    * Counters of one logical operation
+    */
+   static class OpStats {
+      final LatencyHistogram histogram = new LatencyHistogram ();
+      final AtomicLong errors = new AtomicLong ();
+      final AtomicLong lockErrors = new AtomicLong ();
+   }//end OpStats
+
+   public WorkloadDriver (Messenger esql) {
+      this._esql = esql;
+      for (String entry : System.getProperty ("workload.mix", DEFAULT_MIX).split (",")) {
+         String[] kv = entry.split ("=");
+         int weight = Integer.parseInt (kv[1].trim ());
+         if (weight <= 0)
+            continue;
+         this._mix.put (kv[0].trim (), Integer.valueOf (weight));
+         this._totalWeight += weight;
+      }//end for
+      for (String op : new String[] { "logIn", "browse", "send", "edit", "listContacts", "addContact",
+                                      "deleteContact", "newChat", "deleteMessage", "createUser", "deleteAccount" })
+         this._stats.put (op, new OpStats ());
+   }//end WorkloadDriver
+
+   /**
+    * Tells whether a failure was caused by lock contention: a deadlock, a
+    * serialization failure or a lock that could not be acquired.  The
+    * server does not always send a SQLSTATE, so the message is checked too.
+    */
+   static boolean isLockError (SQLException e) {
+      for (SQLException x = e; x != null; x = x.getNextException ()) {
+         String state = x.getSQLState ();
+         if ("40P01".equals (state) || "40001".equals (state) || "55P03".equals (state))
+            return true;
+         String msg = x.getMessage ();
+         if (msg != null && (msg.indexOf ("deadlock detected") >= 0 || msg.indexOf ("could not serialize") >= 0
+                             || msg.indexOf ("could not obtain lock") >= 0))
+            return true;
+      }//end for
+      return false;
+   }//end isLockError
+
+   //-----------------Simulated user-------------
+
+   /**
+    * One scripted session.  Keeps the state a real client would: the
+    * user's chats, the page being shown and the contacts it added.
+    */
+   class Session implements Runnable {
+      private final String _login;
+      private final String _password;
+      private final Random _rnd;
+      private final String _prefix;
+      private final String _phonePrefix;
+      private final List<Integer> _chats = new ArrayList<Integer>();
+      private final List<String> _added = new ArrayList<String>();
+      private UserSession _session;
+      private int _throwaway;
+
+      Session (String login, String password, long seed) {
+         this._login = login;
+         this._password = password;
+         this._rnd = new Random (seed);
+         long stamp = System.currentTimeMillis () % 100000;
+         this._prefix = "wl" + seed + "_" + stamp;
+         // phoneNum is unique and varchar(16): +seed-stamp-n
+         this._phonePrefix = "+" + seed + "-" + stamp % 10000 + "-";
+      }
+
+      /**
+       * Runs one operation and records its latency, failures are counted
+       * and the session carries on as a user retrying would.
+       * @return false if the operation failed
+       */
+      private boolean timed (String op, Step step) {
+         OpStats stats = _stats.get (op);
+         long start = System.nanoTime ();
+         try{
+            if (!step.run ())
+               return true;
+         }catch (SQLException e){
+            if (_recording.get ()) {
+               stats.errors.incrementAndGet ();
+               if (isLockError (e))
+                  stats.lockErrors.incrementAndGet ();
+            }//end if
+            return false;
+         }//end try
+         if (_recording.get ())
+            stats.histogram.record (System.nanoTime () - start);
+         return true;
+      }//end timed
+
+      private String otherUser () {
+         return _logins.get (this._rnd.nextInt (_logins.size ())).get (0).trim ();
+      }//end otherUser
+
+      private Integer someChat () {
+         return this._chats.isEmpty () ? null : this._chats.get (this._rnd.nextInt (this._chats.size ()));
+      }//end someChat
+
+      public void run () {
+         try{
+            this._session = _esql.openSession (this._login, this._password);
+            if (this._session == null) {
+               _sessionsFailed.incrementAndGet ();
+               return;
+            }//end if
+            for (List<String> chat : _esql.listChats (this._login))
+               this._chats.add (Integer.valueOf (chat.get (0).trim ()));
+         }catch (SQLException e){
+            _sessionsFailed.incrementAndGet ();
+            return;
+         }//end try
+
+         while (_running.get ()) {
+            step (pick ());
+            if (_thinkMillis > 0) {
+               try{
+                  Thread.sleep ((long) (-Math.log (1 - this._rnd.nextDouble ()) * _thinkMillis));
+               }catch (InterruptedException e){
+                  return;
+               }//end try
+            }//end if
+         }//end while
+      }//end run
+
+      private String pick () {
+         int r = this._rnd.nextInt (_totalWeight);
+         for (Map.Entry<String, Integer> e : _mix.entrySet ()) {
+            r -= e.getValue ().intValue ();
+            if (r < 0)
+               return e.getKey ();
+         }//end for
+         return "browse";
+      }//end pick
+
+      private void step (String op) {
+         final String me = this._login;
+         if ("logIn".equals (op)) {
+            timed ("logIn", new Step () {
+               public boolean run () throws SQLException {
+                  _esql.logIn (me, _password);
+                  return true;
+               }
+            });
+         }else if ("browse".equals (op)) {
+            final Integer chat = someChat ();
+            if (chat == null)
+               return;
+            // open the inbox, the chat and one page of older history
+            timed ("browse", new Step () {
+               public boolean run () throws SQLException {
+                  _esql.inbox (me);
+                  _esql.chatInitSender (chat.intValue ());
+                  List<List<String>> page = _esql.showMessages (chat.intValue (), null, -1, Messenger.MESSAGE_PAGE_SIZE);
+                  if (page.size () == Messenger.MESSAGE_PAGE_SIZE)
+                     _esql.showMessages (chat.intValue (), page.get (0).get (2), Integer.parseInt (page.get (0).get (1).trim ()),
+                                         Messenger.MESSAGE_PAGE_SIZE);
+                  return true;
+               }
+            });
+         }else if ("send".equals (op)) {
+            final Integer chat = someChat ();
+            if (chat == null)
+               return;
+            timed ("send", new Step () {
+               public boolean run () throws SQLException {
+                  _esql.createNewMessage (chat.intValue (), me, "workload message from " + me);
+                  return true;
+               }
+            });
+         }else if ("edit".equals (op) || "deleteMessage".equals (op)) {
+            final Integer chat = someChat ();
+            if (chat == null)
+               return;
+            final boolean edit = "edit".equals (op);
+            // only the user's own messages on the newest page, as in the menu
+            timed (op, new Step () {
+               public boolean run () throws SQLException {
+                  List<List<String>> page = _esql.showMessages (chat.intValue (), null, -1, Messenger.MESSAGE_PAGE_SIZE);
+                  for (int i = page.size () - 1; i >= 0; --i) {
+                     if (!me.equals (page.get (i).get (0).trim ()))
+                        continue;
+                     int msg_id = Integer.parseInt (page.get (i).get (1).trim ());
+                     if (edit)
+                        _esql.editMessage (chat.intValue (), me, msg_id, "edited by " + me);
+                     else
+                        _esql.deleteMessage (chat.intValue (), me, msg_id);
+                     return true;
+                  }//end for
+                  return false;
+               }
+            });
+         }else if ("listContacts".equals (op)) {
+            timed ("listContacts", new Step () {
+               public boolean run () throws SQLException {
+                  _esql.listContacts (me);
+                  return true;
+               }
+            });
+         }else if ("addContact".equals (op)) {
+            // keeps the contact lists from growing: every other call removes one again
+            if (this._added.size () > 0 && this._rnd.nextBoolean ()) {
+               final String contact = this._added.remove (this._added.size () - 1);
+               timed ("deleteContact", new Step () {
+                  public boolean run () throws SQLException {
+                     _esql.deleteContact (_session, contact);
+                     return true;
+                  }
+               });
+            }else{
+               final String contact = otherUser ();
+               if (timed ("addContact", new Step () {
+                     public boolean run () throws SQLException {
+                        _esql.addToContact (_session, contact);
+                        return true;
+                     }
+                  }))
+                  this._added.add (contact);
+            }//end if
+         }else if ("newChat".equals (op)) {
+            final String member = otherUser ();
+            final int[] chat = new int[1];
+            if (timed ("newChat", new Step () {
+                  public boolean run () throws SQLException {
+                     chat[0] = _esql.newChat (me, member);
+                     return true;
+                  }
+               }))
+               this._chats.add (Integer.valueOf (chat[0]));
+         }else if ("deleteAccount".equals (op)) {
+            // a throwaway account with a chat with this user and some history
+            final String login = this._prefix + "_" + this._throwaway;
+            final String phone = this._phonePrefix + (this._throwaway++);
+            boolean created = timed ("createUser", new Step () {
+               public boolean run () throws SQLException {
+                  _esql.createUser (login, "x", phone);
+                  try{
+                     int chat_id = _esql.newChat (login, me);
+                     for (int m = 0; m < 5; ++m)
+                        _esql.createNewMessage (chat_id, login, "bye " + m);
+                  }catch (SQLException e){
+                     // do not leave a half set up account behind
+                     try{
+                        _esql.deleteAccount (login);
+                     }catch (SQLException ignored){
+                        // ignored.
+                     }//end try
+                     throw e;
+                  }//end try
+                  return true;
+               }
+            });
+            if (created) {
+               timed ("deleteAccount", new Step () {
+                  public boolean run () throws SQLException {
+                     _esql.deleteAccount (login);
+                     return true;
+                  }
+               });
+            }//end if
+         }//end if
+      }//end step
+   }//end Session
+
+   /**
+    * One timed piece of a session, returns false when there was nothing to do
+    */
+   interface Step {
+      boolean run () throws SQLException;
+   }
+
+   //-----------------Run-------------
+
+   /**
+    * Starts the sessions, measures after the warm-up and prints the report
+    */
+   public void run () throws Exception {
+      this._logins = this._esql.executeQueryAndReturnResult (SAMPLE_USERS, this._users);
+      if (this._logins.isEmpty ())
+         throw new SQLException ("USR is empty, load some data first");
+      System.out.println (String.format ("Simulating %d users for %d ms after a %d ms warm-up",
+         this._logins.size (), this._measureMillis, this._warmupMillis));
+
+      Thread[] sessions = new Thread[this._logins.size ()];
+      for (int i = 0; i < sessions.length; ++i) {
+         List<String> u = this._logins.get (i);
+         sessions[i] = new Thread (new Session (u.get (0).trim (), u.get (1).trim (), 1000L + i), "session-" + i);
+         sessions[i].setDaemon (true);
+         sessions[i].start ();
+      }//end for
+
+      Thread.sleep (this._warmupMillis);
+      this._recording.set (true);
+      long start = System.nanoTime ();
+      Thread.sleep (this._measureMillis);
+      this._recording.set (false);
+      double seconds = (System.nanoTime () - start) / 1e9;
+      this._running.set (false);
+      for (Thread s : sessions)
+         s.join ();
+
+      long total = 0;
+      for (Map.Entry<String, OpStats> e : this._stats.entrySet ()) {
+         OpStats s = e.getValue ();
+         total += s.histogram.count ();
+         if (s.histogram.count () == 0 && s.errors.get () == 0)
+            continue;
+         System.out.println (String.format ("  %-14s %9.1f ops/s  %s  errors=%d lock/deadlock=%d", e.getKey (),
+            s.histogram.count () / seconds, s.histogram.summary (), s.errors.get (), s.lockErrors.get ()));
+      }//end for
+      System.out.println (String.format ("  %-14s %9.1f ops/s%s", "total", total / seconds,
+         this._sessionsFailed.get () > 0 ? "  sessions failed to start=" + this._sessionsFailed.get () : ""));
+   }//end run
+
+   /**
+    * The main execution method
+    *
+    * @param args the command line arguments <dbname> <port> <user>
+    */
+   public static void main (String[] args) {
+      if (args.length < 3) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] [-Dworkload.<setting>=<value>] " +
+            WorkloadDriver.class.getName () +
+            " <dbname> <port> <user>");
+         return;
+      }//end if
+      // hundreds of sessions share the pool, give it more than the console default
+      if (System.getProperty ("messenger.poolSize") == null)
+         System.setProperty ("messenger.poolSize", "32");
+      Messenger esql = null;
+      try{
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         esql = new Messenger (args[0], args[1], args[2], "");
+         new WorkloadDriver (esql).run ();
+      }catch (Exception e){
+         System.err.println (e.getMessage ());
+      }finally{
+         if (esql != null)
+            esql.cleanup ();
+      }//end try
+   }//end main
+
+}//end WorkloadDriver
@@ -1,5 +1,10 @@
 #!/bin/bash
 DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
 psql -p $PGPORT $DB_NAME < $DIR/../src/create_tables.sql
-psql -p $PGPORT $DB_NAME < $DIR/../src/create_indexes.sql
-psql -p $PGPORT $DB_NAME < $DIR/../src/load_data.sql
\ No newline at end of file
+
+# load project/data in parallel, then add keys, foreign keys and indexes
+# (create_constraints.sql and create_indexes.sql), reset the sequences and add
+# the triggers (create_triggers.sql)
+javac -d $DIR/../../java/classes -cp $DIR/../../java/lib/pg73jdbc3.jar $DIR/../../java/src/*.java
+java $JAVA_OPTS -Dload.sqlDir=$DIR/../src -cp $DIR/../../java/classes:$DIR/../../java/lib/pg73jdbc3.jar \
+   BulkLoader $DB_NAME $PGPORT $USER $DIR/../../data
@@ -0,0 +1,15 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# set up a hot standby of the cluster on $PGPORT, streaming from it, in
+# $REPLICA_DATA (default project/replica) on $REPLICA_PORT (default PGPORT+1).
+# The primary needs wal_level=replica (the default) and a pg_hba.conf line
+# allowing the replication connection, e.g. "local replication all trust".
+REPLICA_PORT=${REPLICA_PORT:-$((PGPORT + 1))}
+REPLICA_DATA=${REPLICA_DATA:-$DIR/../../replica}
+pg_basebackup -p $PGPORT -D $REPLICA_DATA -R -X stream -c fast || exit 1
+pg_ctl -D $REPLICA_DATA -o "-p $REPLICA_PORT" -l $REPLICA_DATA/replica.log -w start || exit 1
+
+# the replica reports being in recovery, the primary a streaming client
+psql -p $REPLICA_PORT -c "SELECT pg_is_in_recovery()" $DB_NAME
+psql -p $PGPORT -c "SELECT client_addr, state, replay_lsn FROM pg_stat_replication" $DB_NAME
+echo "Route reads to it with REPLICAS=$REPLICA_PORT (server.sh) or JAVA_OPTS=\"-Dmessenger.replicas=localhost:$REPLICA_PORT\""
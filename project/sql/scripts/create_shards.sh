@@ -0,0 +1,18 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+# move the chats of $DB_NAME (loaded by create_db.sh) onto the databases in
+# $SHARDS (comma separated, e.g. SHARDS=${DB_NAME}_s0,${DB_NAME}_s1) on $PGPORT.
+# $DB_NAME keeps the users, their lists and the purge queue; each chat's
+# rows move to the shard its chat_id hashes to, see java/src/ShardRouter.java
+for SHARD in ${SHARDS//,/ }
+do
+   createdb -p $PGPORT $SHARD || exit 1
+   psql -p $PGPORT $SHARD < $DIR/../src/create_tables.sql
+done
+
+# copy the users and chats, build keys, indexes and triggers on the shards
+# and empty the chat tables of $DB_NAME
+javac -d $DIR/../../java/classes -cp $DIR/../../java/lib/pg73jdbc3.jar $DIR/../../java/src/*.java
+java $JAVA_OPTS -Dmessenger.shards=$SHARDS -Dload.sqlDir=$DIR/../src \
+   -cp $DIR/../../java/classes:$DIR/../../java/lib/pg73jdbc3.jar ShardSplitter $DB_NAME $PGPORT $USER || exit 1
+echo "Route the chats to them with SHARDS=$SHARDS (server.sh, workload.sh) or JAVA_OPTS=\"-Dmessenger.shards=$SHARDS\""
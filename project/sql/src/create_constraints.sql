@@ -0,0 +1,30 @@
+ALTER TABLE USER_LIST ADD PRIMARY KEY(list_id);
+
+ALTER TABLE USR ADD PRIMARY KEY(user_id);
+ALTER TABLE USR ADD UNIQUE(login);
+ALTER TABLE USR ADD UNIQUE(phoneNum);
+ALTER TABLE USR ADD FOREIGN KEY(block_list) REFERENCES USER_LIST(list_id);
+ALTER TABLE USR ADD FOREIGN KEY(contact_list) REFERENCES USER_LIST(list_id);
+
+ALTER TABLE USER_LIST_CONTAINS ADD PRIMARY KEY(list_id,member_id);
+ALTER TABLE USER_LIST_CONTAINS ADD FOREIGN KEY(list_id) REFERENCES USER_LIST(list_id) ON DELETE CASCADE;
+ALTER TABLE USER_LIST_CONTAINS ADD FOREIGN KEY(member_id) REFERENCES USR(user_id) ON DELETE CASCADE;
+
+ALTER TABLE CHAT ADD PRIMARY KEY(chat_id);
+ALTER TABLE CHAT ADD FOREIGN KEY(init_sender_id) REFERENCES USR(user_id);
+
+ALTER TABLE CHAT_LIST ADD PRIMARY KEY(chat_id,member_id);
+ALTER TABLE CHAT_LIST ADD FOREIGN KEY(member_id) REFERENCES USR(user_id);
+ALTER TABLE CHAT_LIST ADD FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id);
+
+-- a key of a partitioned table includes the partition key, msg_id alone is
+-- unique by its sequence
+ALTER TABLE MESSAGE ADD PRIMARY KEY(msg_id, msg_timestamp);
+ALTER TABLE MESSAGE ADD FOREIGN KEY(sender_id) REFERENCES USR(user_id);
+ALTER TABLE MESSAGE ADD FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id);
+
+ALTER TABLE INBOX ADD PRIMARY KEY(chat_id,member_id);
+
+-- a queued account leaves the queue when it is finally deleted
+ALTER TABLE PURGE_QUEUE ADD PRIMARY KEY(user_id);
+ALTER TABLE PURGE_QUEUE ADD FOREIGN KEY(user_id) REFERENCES USR(user_id) ON DELETE CASCADE;
@@ -0,0 +1,27 @@
+-- chat history is paged newest first by (msg_timestamp, msg_id) within a chat,
+-- the same index serves every other MESSAGE lookup by chat_id
+CREATE INDEX message_chat_ts_id_idx ON MESSAGE(chat_id, msg_timestamp, msg_id);
+
+-- message search matches msg_tsv against the query terms
+CREATE INDEX message_tsv_idx ON MESSAGE USING GIN (msg_tsv);
+
+-- DeleteAccount removes the messages a user sent
+CREATE INDEX message_sender_idx ON MESSAGE(sender_id);
+
+-- BrowseChats lists the chats a user is a member of, the primary key
+-- (chat_id, member_id) only helps lookups by chat
+CREATE INDEX chat_list_member_idx ON CHAT_LIST(member_id);
+
+-- a user's inbox is listed most recent chat first
+CREATE INDEX inbox_member_idx ON INBOX(member_id, last_timestamp);
+
+-- DeleteAccount looks up the chats a user started
+CREATE INDEX chat_init_sender_idx ON CHAT(init_sender_id);
+
+-- USER_LIST_CONTAINS is read by list_id through its primary key
+-- (list_id, member_id); deleting a user cascades by member_id
+CREATE INDEX user_list_contains_member_idx ON USER_LIST_CONTAINS(member_id);
+
+-- deleting a USER_LIST row checks that no USR row still references it
+CREATE INDEX usr_block_list_idx ON USR(block_list);
+CREATE INDEX usr_contact_list_idx ON USR(contact_list);
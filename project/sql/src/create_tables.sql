@@ -1,55 +1,78 @@
-DROP TABLE MESSAGE;
-DROP TABLE CHAT_LIST;
-DROP TABLE CHAT;
-DROP TABLE USER_LIST_CONTAINS;
-DROP TABLE USR;
-DROP TABLE USER_LIST;
-
-CREATE TABLE USER_LIST(
-	list_id serial,
-	list_type char(10) NOT NULL, 
-	PRIMARY KEY(list_id));
-
-CREATE TABLE USR(
-	login char(50), 
-	phoneNum CHAR(16) UNIQUE NOT NULL, 
-	password char(50) NOT NULL,
-	status char(140),
-	block_list integer,
-	contact_list integer,
-	Primary Key(login),
-	FOREIGN KEY(block_list) REFERENCES USER_LIST(list_id),
-	FOREIGN KEY(contact_list) REFERENCES USER_LIST(list_id));
-
-CREATE TABLE USER_LIST_CONTAINS(
-	list_id integer,
-	list_member char(50),
-	PRIMARY KEY(list_id,list_member), 
-	FOREIGN KEY(list_id) REFERENCES USER_LIST(list_id) ON DELETE CASCADE,
-	FOREIGN KEY(list_member) REFERENCES USR(login) ON DELETE CASCADE);
-
-CREATE TABLE CHAT(
-	chat_id serial, 
-	chat_type char(50) NOT NULL,
-	init_sender char(50),
-	PRIMARY KEY(chat_id), 
-	FOREIGN KEY(init_sender) REFERENCES USR(login));
-
-CREATE TABLE CHAT_LIST(
-	chat_id integer, 
-	member char(50),
-	PRIMARY KEY(chat_id,member), 
-	FOREIGN KEY(member) REFERENCES USR(login), 
-	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id));
-
-CREATE TABLE MESSAGE(
-	msg_id serial, 
-	msg_text char(300) NOT NULL, 
-	msg_timestamp timestamp NOT NULL,
-		sender_login char(50),
-	chat_id integer,
-	PRIMARY KEY(msg_id), 
-	FOREIGN KEY(sender_login) REFERENCES USR(login),
-	FOREIGN KEY(chat_id) REFERENCES CHAT(chat_id));
-
-
+DROP TABLE INBOX;
+DROP TABLE PURGE_QUEUE;
+DROP TABLE MESSAGE;
+DROP TABLE CHAT_LIST;
+DROP TABLE CHAT;
+DROP TABLE USER_LIST_CONTAINS;
+DROP TABLE USR;
+DROP TABLE USER_LIST;
+
+-- keys and foreign keys live in create_constraints.sql so that bulk loads
+-- can fill the tables first and build the key indexes once afterwards
+
+-- schema v2: text is stored without padding and users are referenced by
+-- their integer user_id, the login is stored once in USR (migrate a v1
+-- database with SchemaMigrator)
+
+CREATE TABLE USER_LIST(
+	list_id serial,
+	list_type varchar(10) NOT NULL);
+
+CREATE TABLE USR(
+	user_id serial,
+	login varchar(50) NOT NULL, 
+	phoneNum varchar(16) NOT NULL, 
+	password varchar(100) NOT NULL,
+	status varchar(140),
+	block_list integer,
+	contact_list integer);
+
+CREATE TABLE USER_LIST_CONTAINS(
+	list_id integer,
+	member_id integer);
+
+CREATE TABLE CHAT(
+	chat_id serial, 
+	chat_type varchar(50) NOT NULL,
+	init_sender_id integer);
+
+CREATE TABLE CHAT_LIST(
+	chat_id integer, 
+	member_id integer);
+
+-- msg_tsv is the searchable form of msg_text, kept up to date by the trigger
+-- in create_triggers.sql (bulk loads compute it themselves)
+-- MESSAGE is partitioned by month (Postgres 13 or later).  MessageArchiver
+-- creates the month partitions ahead of time and moves rows that landed in
+-- the default partition into them; expired months are archived to files
+CREATE TABLE MESSAGE(
+	msg_id serial, 
+	msg_text varchar(300) NOT NULL, 
+	msg_timestamp timestamp NOT NULL,
+	sender_id integer,
+	chat_id integer,
+	msg_tsv tsvector) PARTITION BY RANGE (msg_timestamp);
+
+CREATE TABLE MESSAGE_DEFAULT PARTITION OF MESSAGE DEFAULT;
+
+-- one row per chat member: the chat's last message and the member's read
+-- cursor, kept up to date by the triggers in create_triggers.sql so that the
+-- inbox is listed without reading MESSAGE
+CREATE TABLE INBOX(
+	chat_id integer, 
+	member_id integer, 
+	last_msg_id integer,
+	last_timestamp timestamp,
+	last_sender_id integer,
+	preview varchar(60),
+	unread integer NOT NULL DEFAULT 0,
+	read_msg_id integer NOT NULL DEFAULT 0);
+
+-- accounts too large to delete in one transaction, emptied in chunks
+-- by the background purger and then deleted; a failed purge is retried
+-- at next_attempt, later after every failed attempt
+CREATE TABLE PURGE_QUEUE(
+	user_id integer,
+	queued_at timestamp NOT NULL,
+	attempts integer NOT NULL DEFAULT 0,
+	next_attempt timestamp NOT NULL DEFAULT LOCALTIMESTAMP);
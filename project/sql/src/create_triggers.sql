@@ -0,0 +1,93 @@
+-- publish every change to MESSAGE on a per chat channel so open chats can be
+-- updated without reloading them (see ChatListener): chat_<chat_id> for new
+-- messages, chat_<chat_id>_changed for edited and deleted ones.  Postgres
+-- folds identical notifications of one transaction into one.
+CREATE OR REPLACE FUNCTION notify_chat() RETURNS trigger AS $$
+BEGIN
+   IF TG_OP = 'INSERT' THEN
+      PERFORM pg_notify('chat_' || NEW.chat_id, '');
+   ELSE
+      PERFORM pg_notify('chat_' || OLD.chat_id || '_changed', '');
+   END IF;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS message_notify ON MESSAGE;
+CREATE TRIGGER message_notify AFTER INSERT OR UPDATE OR DELETE ON MESSAGE
+   FOR EACH ROW EXECUTE PROCEDURE notify_chat();
+
+-- keep the search column of a message in step with its text
+DROP TRIGGER IF EXISTS message_tsv ON MESSAGE;
+CREATE TRIGGER message_tsv BEFORE INSERT OR UPDATE OF msg_text ON MESSAGE
+   FOR EACH ROW EXECUTE PROCEDURE tsvector_update_trigger(msg_tsv, 'pg_catalog.english', msg_text);
+
+-- the inbox of freshly loaded data, in which every member has read
+-- everything so far; an inbox that exists already (e.g. one migrated by
+-- SchemaMigrator) is kept
+INSERT INTO INBOX(chat_id, member_id, last_msg_id, last_timestamp, last_sender_id, preview, unread, read_msg_id)
+   SELECT C.chat_id, C.member_id, L.msg_id, L.msg_timestamp, L.sender_id, left(L.msg_text, 60), 0, COALESCE(L.msg_id, 0)
+   FROM CHAT_LIST C LEFT JOIN (
+      SELECT DISTINCT ON (chat_id) chat_id, msg_id, msg_timestamp, sender_id, msg_text
+      FROM MESSAGE ORDER BY chat_id, msg_timestamp DESC, msg_id DESC) L ON L.chat_id = C.chat_id
+   WHERE NOT EXISTS (SELECT 1 FROM INBOX);
+
+-- a new message becomes the last one of its chat and is unread for every
+-- member but its sender; an edit of the last message changes the preview;
+-- deleting an unread message lowers the count, deleting the last message
+-- makes the one before it the last
+CREATE OR REPLACE FUNCTION inbox_message() RETURNS trigger AS $$
+DECLARE
+   last_id integer;
+   last_ts timestamp;
+   last_from integer;
+   last_text varchar(300);
+BEGIN
+   IF TG_OP = 'INSERT' THEN
+      UPDATE INBOX SET last_msg_id = NEW.msg_id, last_timestamp = NEW.msg_timestamp,
+            last_sender_id = NEW.sender_id, preview = left(NEW.msg_text, 60),
+            unread = CASE WHEN member_id = NEW.sender_id THEN 0 ELSE unread + 1 END,
+            read_msg_id = CASE WHEN member_id = NEW.sender_id THEN NEW.msg_id ELSE read_msg_id END
+         WHERE chat_id = NEW.chat_id;
+   ELSIF TG_OP = 'UPDATE' THEN
+      UPDATE INBOX SET preview = left(NEW.msg_text, 60)
+         WHERE chat_id = NEW.chat_id AND last_msg_id = NEW.msg_id;
+   ELSE
+      UPDATE INBOX SET unread = unread - 1
+         WHERE chat_id = OLD.chat_id AND unread > 0 AND read_msg_id < OLD.msg_id AND member_id <> OLD.sender_id;
+      IF EXISTS (SELECT 1 FROM INBOX WHERE chat_id = OLD.chat_id AND last_msg_id = OLD.msg_id) THEN
+         SELECT msg_id, msg_timestamp, sender_id, msg_text INTO last_id, last_ts, last_from, last_text
+            FROM MESSAGE WHERE chat_id = OLD.chat_id ORDER BY msg_timestamp DESC, msg_id DESC LIMIT 1;
+         UPDATE INBOX SET last_msg_id = last_id, last_timestamp = last_ts,
+               last_sender_id = last_from, preview = left(last_text, 60)
+            WHERE chat_id = OLD.chat_id;
+      END IF;
+   END IF;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS message_inbox ON MESSAGE;
+CREATE TRIGGER message_inbox AFTER INSERT OR UPDATE OF msg_text OR DELETE ON MESSAGE
+   FOR EACH ROW EXECUTE PROCEDURE inbox_message();
+
+-- joining a chat adds it to the member's inbox with nothing unread, leaving
+-- removes it
+CREATE OR REPLACE FUNCTION inbox_member() RETURNS trigger AS $$
+BEGIN
+   IF TG_OP = 'INSERT' THEN
+      INSERT INTO INBOX(chat_id, member_id, last_msg_id, last_timestamp, last_sender_id, preview, unread, read_msg_id)
+         SELECT NEW.chat_id, NEW.member_id, L.msg_id, L.msg_timestamp, L.sender_id, left(L.msg_text, 60), 0, COALESCE(L.msg_id, 0)
+         FROM (SELECT 1) X LEFT JOIN (
+            SELECT msg_id, msg_timestamp, sender_id, msg_text FROM MESSAGE
+            WHERE chat_id = NEW.chat_id ORDER BY msg_timestamp DESC, msg_id DESC LIMIT 1) L ON true;
+   ELSE
+      DELETE FROM INBOX WHERE chat_id = OLD.chat_id AND member_id = OLD.member_id;
+   END IF;
+   RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS chat_list_inbox ON CHAT_LIST;
+CREATE TRIGGER chat_list_inbox AFTER INSERT OR DELETE ON CHAT_LIST
+   FOR EACH ROW EXECUTE PROCEDURE inbox_member();